@@ -0,0 +1,102 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.cg.ftc.shared.structures.TableInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.standin.FusionTablesStandIn;
+
+/**
+ * Table list and query latency against the local stand-in with and without
+ * gzip and fields= partial responses, on loopback and on a simulated 1 MB/s
+ * link. The response bytes per request are printed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompactResponseBenchmark {
+
+	@Param({ "true", "false" })
+	public boolean compact;
+
+	@Param({ "200" })
+	public int tables;
+
+	/**
+	 * simulated link speed, 0 for loopback speed
+	 */
+	@Param({ "0", "1000000" })
+	public long bytesPerSecond;
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector connector;
+	private String query;
+
+	private long bytesBefore;
+	private long requestsBefore;
+
+	@Setup
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 4).start();
+		standIn.setBandwidth(bytesPerSecond);
+		for (int i = 0; i < tables; i++)
+			standIn.addGeneratedTable("generated" + i, i == 0 ? 1000 : 0, 8, 10);
+
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				CompactResponseBenchmark.class);
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("benchmark"));
+		connector.setCompactResponses(compact);
+		query = "SELECT * FROM " + connector.getTableInfo().get(0).id;
+	}
+
+	@Setup(Level.Iteration)
+	public void startCounting() {
+		bytesBefore = standIn.getBytesSent();
+		requestsBefore = standIn.getRequestCount();
+	}
+
+	@TearDown(Level.Iteration)
+	public void printBytes() {
+		long requests = standIn.getRequestCount() - requestsBefore;
+		if (requests > 0)
+			System.out.printf("  %d response bytes per request%n", (standIn.getBytesSent() - bytesBefore) / requests);
+	}
+
+	@TearDown
+	public void tearDown() {
+		standIn.stop();
+	}
+
+	@Benchmark
+	public List<TableInfo> tableList() {
+		connector.invalidateTableInfo();
+		return connector.getTableInfo();
+	}
+
+	@Benchmark
+	public QueryResult query() {
+		return connector.fetch(query);
+	}
+}
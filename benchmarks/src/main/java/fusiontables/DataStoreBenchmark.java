@@ -0,0 +1,114 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+
+/**
+ * get and set on CustomDataStore and both PreferencesDataStore modes, with 1
+ * and 4 threads. Other thread counts via -t. Values are StoredCredentials, what
+ * the connector keeps in its stores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DataStoreBenchmark {
+
+	private static final String storeId = "DataStoreBenchmark";
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({ "memory", "preferences", "preferencesIncremental" })
+		public String type;
+
+		@Param({ "100" })
+		public int keys;
+
+		CustomDataStore<StoredCredential> store;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			if (type.equals("memory"))
+				store = new CustomDataStore<StoredCredential>(MemoryDataStoreFactory.getDefaultInstance(), storeId);
+			else
+				store = new PreferencesDataStore<StoredCredential>(new PreferencesDataStoreFactory(DataStoreBenchmark.class),
+						storeId, DataStoreBenchmark.class, type.equals("preferencesIncremental"),
+						PreferencesDataStoreFactory.DEFAULT_FLUSH_DELAY_MILLIS);
+
+			for (int i = 0; i < keys; i++)
+				store.set(key(i), value(i));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			if (store instanceof PreferencesDataStore) {
+				((PreferencesDataStore<StoredCredential>) store).close();
+				((PreferencesDataStore<StoredCredential>) store).Clear();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+
+		int next(int keys) {
+			next = (next + 1) % keys;
+			return next;
+		}
+	}
+
+	private static String key(int i) {
+		return "key" + i;
+	}
+
+	private static StoredCredential value(int i) {
+		return new StoredCredential().setAccessToken("access token of user " + i)
+				.setRefreshToken("refresh token of user " + i).setExpirationTimeMilliseconds(3600000L + i);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public StoredCredential get(Store s, Cursor c) throws IOException {
+		return s.store.get(key(c.next(s.keys)));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public StoredCredential get4(Store s, Cursor c) throws IOException {
+		return s.store.get(key(c.next(s.keys)));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object set(Store s, Cursor c) throws IOException {
+		int i = c.next(s.keys);
+		return s.store.set(key(i), value(i));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object set4(Store s, Cursor c) throws IOException {
+		int i = c.next(s.keys);
+		return s.store.set(key(i), value(i));
+	}
+}
@@ -0,0 +1,107 @@
+package main.java.fusiontables;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.fusiontables.model.Sqlresponse;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+import main.java.fusiontables.deserialize.GftResponseJson;
+
+/**
+ * Deserialization of query().sql responses of 10 to 1M rows: the former
+ * Sqlresponse/toPrettyString path, the String path with the shared reader and
+ * with an ObjectMapper per call, and the streaming path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class DeserializeBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "5" })
+	public int columns;
+
+	private String json;
+	private byte[] bytes;
+	private String errorJson;
+
+	@Setup
+	public void setup() throws IOException {
+		json = Payloads.sqlResponse(rows, columns);
+		bytes = json.getBytes("UTF-8");
+		errorJson = "400 Bad Request\n" + json;
+	}
+
+	@Benchmark
+	public QueryResult prettyPrintPath() throws IOException {
+		Sqlresponse r = JacksonFactory.getDefaultInstance().fromInputStream(new ByteArrayInputStream(bytes),
+				Sqlresponse.class);
+		return FusionTablesConnector.deserializeGftJson(r.toPrettyString());
+	}
+
+	@Benchmark
+	public QueryResult deserializeGftJson() {
+		return FusionTablesConnector.deserializeGftJson(json);
+	}
+
+	/**
+	 * deserializeGftJson as it was, with a new ObjectMapper per call binding
+	 * into GftResponseJson
+	 */
+	@Benchmark
+	public QueryResult perCallObjectMapper() throws IOException {
+		GftResponseJson data = new ObjectMapper().readValue(json, GftResponseJson.class);
+		return new QueryResult(HttpStatus.SC_OK, ColumnarTableModel.of(data.columns, data.rows, null), null);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public QueryResult deserializeGftJson8() {
+		return FusionTablesConnector.deserializeGftJson(json);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public QueryResult perCallObjectMapper8() throws IOException {
+		return perCallObjectMapper();
+	}
+
+	@Benchmark
+	public QueryResult deserializeGftJsonStream() {
+		return FusionTablesConnector.deserializeGftJsonStream(new ByteArrayInputStream(bytes));
+	}
+
+	@Benchmark
+	public HttpStatus getHttpStatusOk() {
+		return FusionTablesConnector.getHttpStatus(json);
+	}
+
+	@Benchmark
+	public HttpStatus getHttpStatusError() {
+		return FusionTablesConnector.getHttpStatus(errorJson);
+	}
+}
@@ -0,0 +1,95 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.export.ExportFormat;
+import main.java.fusiontables.standin.FusionTablesStandIn;
+
+/**
+ * Exporting a result to a channel compared with fetching it into a
+ * TableModel, run with -prof gc for the bytes allocated per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+	@Param({ "100000" })
+	public int rows;
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector connector;
+	private String query;
+
+	private final WritableByteChannel discard = new WritableByteChannel() {
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+	};
+
+	@Setup
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 4).start();
+		String tableId = standIn.addGeneratedTable("generated", rows, 5, 10);
+
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				ExportBenchmark.class);
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("benchmark"));
+		query = "SELECT * FROM " + tableId;
+	}
+
+	@TearDown
+	public void tearDown() {
+		standIn.stop();
+	}
+
+	@Benchmark
+	public QueryResult fetch() {
+		return connector.fetch(query);
+	}
+
+	@Benchmark
+	public long exportCsv() throws IOException {
+		return connector.export(query, ExportFormat.CSV, discard);
+	}
+
+	@Benchmark
+	public long exportColumnar() throws IOException {
+		return connector.export(query, ExportFormat.COLUMNAR, discard);
+	}
+}
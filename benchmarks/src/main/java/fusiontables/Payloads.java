@@ -0,0 +1,58 @@
+package main.java.fusiontables;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cg.ftc.shared.structures.ColumnInfo;
+import org.cg.ftc.shared.structures.TableInfo;
+
+import com.google.api.services.fusiontables.model.Column;
+import com.google.api.services.fusiontables.model.Table;
+
+/**
+ * Generated test data for the benchmarks.
+ */
+class Payloads {
+
+	static String sqlResponse(int rows, int columns) {
+		StringBuilder sb = new StringBuilder(rows * columns * 12);
+		sb.append("{\"kind\":\"fusiontables#sqlresponse\",\"columns\":[");
+		for (int c = 0; c < columns; c++)
+			sb.append(c > 0 ? "," : "").append("\"col").append(c).append('"');
+		sb.append("],\"rows\":[");
+		for (int r = 0; r < rows; r++) {
+			sb.append(r > 0 ? ",[" : "[");
+			for (int c = 0; c < columns; c++)
+				sb.append(c > 0 ? "," : "").append('"').append(r * columns + c).append('"');
+			sb.append(']');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	static ArrayList<TableInfo> tables(int count, int columns) {
+		ArrayList<TableInfo> result = new ArrayList<TableInfo>(count);
+		for (int t = 0; t < count; t++) {
+			List<ColumnInfo> cols = new ArrayList<ColumnInfo>(columns);
+			for (int c = 0; c < columns; c++)
+				cols.add(new ColumnInfo("col" + c, "STRING", "fusiontables#column"));
+			result.add(new TableInfo("table" + t, "1id" + t, "generated", cols));
+		}
+		return result;
+	}
+
+	/**
+	 * the same tables as Table resources, as returned by table().list()
+	 */
+	static List<Table> tableResources(int count, int columns) {
+		List<Table> result = new ArrayList<Table>(count);
+		for (int t = 0; t < count; t++) {
+			List<Column> cols = new ArrayList<Column>(columns);
+			for (int c = 0; c < columns; c++)
+				cols.add(new Column().setName("col" + c).setType("STRING").setKind("fusiontables#column"));
+			result.add(new Table().setName("table" + t).setTableId("1id" + t).setDescription("generated")
+					.setColumns(cols));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,90 @@
+package main.java.fusiontables;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.standin.FusionTablesStandIn;
+
+/**
+ * A filtered query answered by a Replica compared with the same query sent to
+ * the stand-in with simulated server latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReplicaBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int rows;
+
+	@Param({ "20" })
+	public long latencyMillis;
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector local;
+	private FusionTablesConnector remote;
+	private File directory;
+	private String query;
+
+	@Setup
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 4).start();
+		String tableId = standIn.addGeneratedTable("generated", rows, 5, 10);
+
+		local = connector();
+		remote = connector();
+		directory = new File(System.getProperty("java.io.tmpdir"), "ftc-replica-benchmark");
+		local.enableReplica(directory).mirror(tableId);
+		standIn.setLatency(latencyMillis, 0);
+
+		QueryResult sample = remote.fetch("SELECT * FROM " + tableId + " LIMIT 1");
+		String column = sample.data.get().getColumnName(0);
+		query = "SELECT * FROM " + tableId + " WHERE '" + column + "' = '" + sample.data.get().getValueAt(0, 0) + "'";
+	}
+
+	private FusionTablesConnector connector() {
+		FusionTablesConnector c = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				ReplicaBenchmark.class);
+		c.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("benchmark"));
+		return c;
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (String id : local.getReplica().get().getMirroredTables())
+			local.getReplica().get().unmirror(id);
+		directory.delete();
+		standIn.stop();
+	}
+
+	@Benchmark
+	public QueryResult local() {
+		return local.fetch(query);
+	}
+
+	@Benchmark
+	public QueryResult remote() {
+		return remote.fetch(query);
+	}
+}
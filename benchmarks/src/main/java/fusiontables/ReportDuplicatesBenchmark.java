@@ -0,0 +1,65 @@
+package main.java.fusiontables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.TableInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.fusiontables.model.Table;
+import com.google.common.base.Optional;
+
+/**
+ * Rebuilding the table name to ID map for accounts with many tables, against
+ * diffing an unchanged table list. The connector is created without
+ * credentials, no network involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportDuplicatesBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int tables;
+
+	private FusionTablesConnector connector;
+	private ArrayList<TableInfo> tableInfo;
+	private List<Table> tableList;
+	private TableInfoIndex index;
+
+	@Setup
+	public void setup() {
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				ReportDuplicatesBenchmark.class);
+		tableInfo = Payloads.tables(tables, 10);
+		tableList = Payloads.tableResources(tables, 10);
+		index = new TableInfoIndex();
+		index.apply(tableList);
+	}
+
+	@Benchmark
+	public FusionTablesConnector reportDuplicates() {
+		connector.reportDuplicates(tableInfo);
+		return connector;
+	}
+
+	@Benchmark
+	public TableInfoChanges applyUnchanged() {
+		return index.apply(tableList);
+	}
+}
@@ -0,0 +1,53 @@
+package main.java.fusiontables;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a repeated statement from a prepared template compared with
+ * concatenating and escaping it every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SqlTemplateBenchmark {
+
+	private static final String TABLE_ID = "1KxVV0wQXhxhMScSDuqr-0Ebf0YEt4m4xzVplKd4";
+
+	private SqlTemplate.Binding binding;
+	private long number;
+
+	@Setup
+	public void setup() {
+		binding = new SqlTemplate(null,
+				"INSERT INTO " + TABLE_ID + " (Text,Number,Location) VALUES (?, ?, ?)").newBinding();
+	}
+
+	@Benchmark
+	public String concatenate() {
+		StringBuilder sb = new StringBuilder("INSERT INTO " + TABLE_ID + " (Text,Number,Location) VALUES (");
+		SqlStatements.appendQuoted(sb, "Google Inc");
+		sb.append(", ").append(number++).append(", ");
+		SqlStatements.appendQuoted(sb, "1600 Amphitheatre Parkway Mountain View, CA 94043, USA");
+		return sb.append(')').toString();
+	}
+
+	@Benchmark
+	public String template() {
+		return binding.setString(0, "Google Inc").setLong(1, number++)
+				.setString(2, "1600 Amphitheatre Parkway Mountain View, CA 94043, USA").sql();
+	}
+}
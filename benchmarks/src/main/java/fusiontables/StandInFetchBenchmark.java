@@ -0,0 +1,83 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.standin.FusionTablesStandIn;
+
+/**
+ * End to end fetch latency distribution against the local stand-in, with
+ * simulated server latency. SampleTime mode reports the percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StandInFetchBenchmark {
+
+	@Param({ "100", "10000" })
+	public int rows;
+
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	/**
+	 * false fetches the response as String and deserializes that
+	 */
+	@Param({ "true", "false" })
+	public boolean streaming;
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector connector;
+	private String query;
+
+	@Setup
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 16).start();
+		standIn.setLatency(latencyMillis, latencyMillis / 2);
+		String tableId = standIn.addGeneratedTable("generated", rows, 5, 10);
+
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				StandInFetchBenchmark.class);
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("benchmark"));
+		connector.setStreamingFetch(streaming);
+		query = "SELECT * FROM " + tableId;
+	}
+
+	@TearDown
+	public void tearDown() {
+		standIn.stop();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public QueryResult fetch() {
+		return connector.fetch(query);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public QueryResult fetch8() {
+		return connector.fetch(query);
+	}
+}
@@ -0,0 +1,75 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.ftc.shared.structures.TableInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.standin.FusionTablesStandIn;
+
+/**
+ * Loading the metadata of many tables from the stand-in, listed in pages of
+ * 100 without columns, so the columns of every table take their own requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TableListBenchmark {
+
+	@Param({ "1000" })
+	public int tables;
+
+	@Param({ "20" })
+	public long latencyMillis;
+
+	@Param({ "1", "8" })
+	public int maxInFlight;
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector connector;
+
+	@Setup
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 16).start();
+		List<String> names = Arrays.asList("a", "b", "c");
+		List<String> types = Arrays.asList("STRING", "NUMBER", "DATETIME");
+		for (int i = 0; i < tables; i++)
+			standIn.addTable("t" + i, names, types);
+		standIn.setListPageSize(100).setListColumns(false).setLatency(latencyMillis, 0);
+
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				TableListBenchmark.class, maxInFlight);
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("benchmark"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		standIn.stop();
+	}
+
+	@Benchmark
+	public List<TableInfo> getTableInfo() {
+		connector.invalidateTableInfo();
+		return connector.getTableInfo();
+	}
+}
@@ -0,0 +1,208 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.impl.client.RequestWrapper;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A blocking connector call run on a pool thread, as a future that can be
+ * cancelled and has an optional deadline.
+ * 
+ * Requests the call sends pick it up through current(): their connect and
+ * read timeouts are cut to the time left, and the underlying Apache requests
+ * get registered once they have a connection. Cancelling or missing the
+ * deadline aborts those requests, whether they still wait for the response
+ * or read it, and interrupts a call waiting for its turn in the
+ * RequestScheduler. Work the call hands to other threads joins it through
+ * propagate().
+ */
+final class AsyncCall<T> extends AbstractFuture<T> implements Runnable {
+
+	private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-deadlines").build());
+
+	private static final ThreadLocal<AsyncCall<?>> current = new ThreadLocal<AsyncCall<?>>();
+
+	private final Callable<T> work;
+	private final long deadlineNanos;
+	private final long timeoutMillis;
+	private final Set<AbortableHttpRequest> requests = Collections
+			.newSetFromMap(new ConcurrentHashMap<AbortableHttpRequest, Boolean>());
+	private Thread worker = null;
+	private ScheduledFuture<?> deadline = null;
+
+	/**
+	 * @param timeoutMillis
+	 *            counted from now, 0 for none
+	 */
+	AsyncCall(Callable<T> work, long timeoutMillis) {
+		this.work = work;
+		this.timeoutMillis = timeoutMillis;
+		this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * starts the deadline, to be called once the call got submitted
+	 */
+	synchronized AsyncCall<T> watch() {
+		if (timeoutMillis > 0 && !isDone())
+			deadline = deadlines.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (setException(new TimeoutException("no result within " + timeoutMillis + " ms")))
+						abort(true);
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * the call the current thread runs, null outside of calls
+	 */
+	static AsyncCall<?> current() {
+		return current.get();
+	}
+
+	/**
+	 * runs task as part of the current call, if there is one, wherever it
+	 * gets submitted: its requests get the call's timeouts and are aborted
+	 * with it
+	 */
+	static <V> Callable<V> propagate(final Callable<V> task) {
+		final AsyncCall<?> call = current();
+		if (call == null)
+			return task;
+
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				AsyncCall<?> previous = current.get();
+				current.set(call);
+				try {
+					return task.call();
+				} finally {
+					if (previous == null)
+						current.remove();
+					else
+						current.set(previous);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (isDone())
+				return;
+			worker = Thread.currentThread();
+		}
+
+		current.set(this);
+		try {
+			T result = work.call();
+			if (!timedOut())
+				set(result);
+		} catch (Throwable t) {
+			if (!timedOut())
+				setException(t);
+		} finally {
+			current.remove();
+			synchronized (this) {
+				worker = null;
+				if (deadline != null)
+					deadline.cancel(false);
+			}
+			// an abort racing with the end of the call must not hit the
+			// next task of the pool thread
+			Thread.interrupted();
+		}
+	}
+
+	/**
+	 * fails the call if it ran past its deadline, a socket timeout cut to the
+	 * time left may end the call just before the deadline task runs
+	 */
+	private boolean timedOut() {
+		if (timeoutMillis <= 0 || System.nanoTime() - deadlineNanos < 0)
+			return false;
+		setException(new TimeoutException("no result within " + timeoutMillis + " ms"));
+		return true;
+	}
+
+	/**
+	 * aborts the request in flight, mayInterruptIfRunning also interrupts a
+	 * call waiting in the RequestScheduler
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!super.cancel(mayInterruptIfRunning))
+			return false;
+		abort(mayInterruptIfRunning);
+		return true;
+	}
+
+	private synchronized void abort(boolean interrupt) {
+		for (AbortableHttpRequest r : requests)
+			r.abort();
+		if (interrupt && worker != null)
+			worker.interrupt();
+	}
+
+	/**
+	 * called by the http client for every request of the call, on the
+	 * thread sending it
+	 */
+	void register(HttpRequest apacheRequest) {
+		if (apacheRequest instanceof RequestWrapper)
+			apacheRequest = ((RequestWrapper) apacheRequest).getOriginal();
+		if (!(apacheRequest instanceof AbortableHttpRequest))
+			return;
+
+		AbortableHttpRequest request = (AbortableHttpRequest) apacheRequest;
+		requests.add(request);
+		if (isDone())
+			request.abort();
+	}
+
+	/**
+	 * @param timeout
+	 *            0 for infinite
+	 */
+	private static int atMost(int timeout, long millis) {
+		return (int) (timeout == 0 ? Math.min(millis, Integer.MAX_VALUE) : Math.min(timeout, millis));
+	}
+
+	/**
+	 * called by the request initializer for every request of the call
+	 */
+	void prepare(com.google.api.client.http.HttpRequest request) throws IOException {
+		if (isDone())
+			throw new InterruptedIOException("call cancelled or timed out");
+
+		if (timeoutMillis > 0) {
+			long leftNanos = deadlineNanos - System.nanoTime();
+			if (leftNanos <= 0)
+				throw new InterruptedIOException("deadline passed");
+			// rounded up, so the socket does not give up before the deadline
+			long left = TimeUnit.NANOSECONDS.toMillis(leftNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+			request.setConnectTimeout(atMost(request.getConnectTimeout(), left));
+			request.setReadTimeout(atMost(request.getReadTimeout(), left));
+		}
+	}
+}
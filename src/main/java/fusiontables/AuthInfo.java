@@ -15,4 +15,20 @@ public class AuthInfo {
 		return !(StringUtil.emptyOrNull(clientId) || StringUtil.emptyOrNull(clientSecret));
 	}
 
+	@Override
+	public int hashCode() {
+		return (clientId == null ? 0 : clientId.hashCode()) * 31 + (clientSecret == null ? 0 : clientSecret.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof AuthInfo))
+			return false;
+		AuthInfo other = (AuthInfo) obj;
+		return equal(clientId, other.clientId) && equal(clientSecret, other.clientSecret);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
 }
@@ -0,0 +1,438 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.Logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Buffers rows per table and writes them in bulk. Small batches go out as
+ * semicolon joined INSERT statements, at most maxStatements per request and
+ * maxRequestChars of URL encoded SQL per request, the SQL is a URL parameter
+ * and has to fit into the request line. Batches of at least csvThreshold rows
+ * that cover all columns of the table in table order go out as a CSV
+ * importRows upload.
+ *
+ * Buffers are flushed when flushRows rows are pending, every flushInterval
+ * milliseconds and on close(). Rows of a failed request are logged and
+ * handed to the FailureListener, e.g. to add them again, without one they are
+ * dropped.
+ */
+public class BatchWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_MAX_STATEMENTS = 500;
+	// Google front ends reject request lines beyond 8KB, this leaves room for
+	// the rest of the URL
+	public static final int DEFAULT_MAX_REQUEST_CHARS = 7000;
+	public static final int DEFAULT_CSV_THRESHOLD = 2000;
+	public static final int DEFAULT_FLUSH_ROWS = 5000;
+
+	private final FusionTablesConnector connector;
+	private final Logging logger;
+	private final ScheduledExecutorService timer;
+
+	private volatile int maxStatements = DEFAULT_MAX_STATEMENTS;
+	private volatile int maxRequestChars = DEFAULT_MAX_REQUEST_CHARS;
+	private volatile int csvThreshold = DEFAULT_CSV_THRESHOLD;
+	private volatile int flushRows = DEFAULT_FLUSH_ROWS;
+
+	/**
+	 * Gets the rows of failed requests of a flush, also of the timed ones.
+	 * Called after the flush on its thread, without the writer locked.
+	 */
+	public interface FailureListener {
+		void rowsFailed(String tableId, String[] columns, List<Object[]> rows, IOException cause);
+	}
+
+	private volatile FailureListener failureListener;
+
+	// add() only locks the writer to buffer a row, flushes take the pending
+	// rows and write them under flushLock, one flush at a time
+	private Map<Target, List<Object[]>> pending = new LinkedHashMap<Target, List<Object[]>>();
+	private int pendingRows = 0;
+	private final Object flushLock = new Object();
+
+	private final Object stats = new Object();
+	private long rowsWritten = 0;
+	private long rowsFailed = 0;
+	private long requests = 0;
+	private long writeNanos = 0;
+
+	private static class Failure {
+		final Target target;
+		final List<Object[]> rows;
+		final IOException cause;
+
+		Failure(Target target, List<Object[]> rows, IOException cause) {
+			this.target = target;
+			this.rows = rows;
+			this.cause = cause;
+		}
+	}
+
+	/**
+	 * rows with the same table and column list are batched together
+	 */
+	private static class Target {
+		final String tableId;
+		final String[] columns;
+
+		Target(String tableId, String[] columns) {
+			this.tableId = tableId;
+			this.columns = columns;
+		}
+
+		@Override
+		public int hashCode() {
+			return tableId.hashCode() * 31 + Arrays.hashCode(columns);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Target))
+				return false;
+			Target other = (Target) obj;
+			return tableId.equals(other.tableId) && Arrays.equals(columns, other.columns);
+		}
+	}
+
+	BatchWriter(FusionTablesConnector connector, Logging logger, long flushIntervalMillis) {
+		this.connector = connector;
+		this.logger = logger;
+
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-batch-writer-%d").build());
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public BatchWriter setMaxStatements(int value) {
+		maxStatements = value;
+		return this;
+	}
+
+	/**
+	 * limit of the URL encoded SQL of one request
+	 */
+	public BatchWriter setMaxRequestChars(int value) {
+		maxRequestChars = value;
+		return this;
+	}
+
+	public BatchWriter setCsvThreshold(int value) {
+		csvThreshold = value;
+		return this;
+	}
+
+	public BatchWriter setFlushRows(int value) {
+		flushRows = value;
+		return this;
+	}
+
+	public BatchWriter setFailureListener(FailureListener listener) {
+		failureListener = listener;
+		return this;
+	}
+
+	/**
+	 * @param values
+	 *            Numbers are written as plain decimal digits, Dates as
+	 *            yyyy-MM-dd HH:mm:ss in UTC, anything else as quoted string,
+	 *            null as empty string
+	 * @throws IllegalArgumentException
+	 *             for NaN and infinite numbers
+	 */
+	public void add(String tableId, String[] columns, Object[] values) throws IOException {
+		if (columns.length != values.length)
+			throw new IllegalArgumentException("number of columns and values differ");
+		for (Object value : values)
+			if (value instanceof Number)
+				SqlStatements.formatNumber((Number) value);
+
+		boolean full;
+		synchronized (this) {
+			Target target = new Target(tableId, columns.clone());
+			List<Object[]> rows = pending.get(target);
+			if (rows == null) {
+				rows = new ArrayList<Object[]>();
+				pending.put(target, rows);
+			}
+			rows.add(values.clone());
+			pendingRows++;
+			full = pendingRows >= flushRows;
+		}
+
+		if (full)
+			flush();
+	}
+
+	/**
+	 * @throws IOException
+	 *             the last failure, after the rows of all failed requests went
+	 *             to the FailureListener
+	 */
+	public void flush() throws IOException {
+		List<Failure> failures = writePending();
+		if (failures.isEmpty())
+			return;
+
+		FailureListener listener = failureListener;
+		for (Failure f : failures) {
+			logger.Error(String.format("batch write to %s failed, %d rows %s: %s", f.target.tableId, f.rows.size(),
+					listener == null ? "dropped" : "reported", f.cause.getMessage()));
+			if (listener != null)
+				listener.rowsFailed(f.target.tableId, f.target.columns.clone(), f.rows, f.cause);
+		}
+		throw failures.get(failures.size() - 1).cause;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// already logged and reported in flush
+		}
+	}
+
+	private List<Failure> writePending() {
+		List<Failure> failures = new ArrayList<Failure>();
+
+		synchronized (flushLock) {
+			Map<Target, List<Object[]>> batch;
+			synchronized (this) {
+				if (pendingRows == 0)
+					return failures;
+				batch = pending;
+				pending = new LinkedHashMap<Target, List<Object[]>>();
+				pendingRows = 0;
+			}
+
+			for (Map.Entry<Target, List<Object[]>> e : batch.entrySet()) {
+				List<Object[]> failed = new ArrayList<Object[]>();
+				IOException cause = write(e.getKey(), e.getValue(), failed);
+				if (cause != null) {
+					synchronized (stats) {
+						rowsFailed += failed.size();
+					}
+					failures.add(new Failure(e.getKey(), failed, cause));
+				}
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * flushes pending rows and stops the flush timer
+	 */
+	public void close() throws IOException {
+		timer.shutdown();
+		flush();
+		logger.Info(throughput());
+	}
+
+	/**
+	 * @param failed
+	 *            gets the rows of failed requests
+	 * @return the last failure, null if all requests succeeded
+	 */
+	private IOException write(Target target, List<Object[]> rows, List<Object[]> failed) {
+		try {
+			if (rows.size() >= csvThreshold && connector.isTableColumnOrder(target.tableId, target.columns)) {
+				importCsv(target, rows);
+				return null;
+			}
+		} catch (IOException e) {
+			failed.addAll(rows);
+			return e;
+		}
+		return insert(target, rows, failed);
+	}
+
+	private IOException insert(Target target, List<Object[]> rows, List<Object[]> failed) {
+		StringBuilder prefix = new StringBuilder("INSERT INTO ").append(target.tableId).append(" (");
+		for (int i = 0; i < target.columns.length; i++) {
+			if (i > 0)
+				prefix.append(',');
+			SqlStatements.appendQuoted(prefix, target.columns[i]);
+		}
+		prefix.append(") VALUES (");
+
+		int maxStatements = this.maxStatements;
+		int maxRequestChars = this.maxRequestChars;
+		IOException failure = null;
+		StringBuilder batch = new StringBuilder();
+		int batchChars = 0;
+		int first = 0;
+
+		for (int i = 0; i < rows.size(); i++) {
+			String statement = insertStatement(prefix, rows.get(i));
+			int statementChars = encodedLength(statement);
+			int statements = i - first;
+
+			// the separator is escaped to three chars
+			if (statements > 0
+					&& (statements == maxStatements || batchChars + 3 + statementChars > maxRequestChars)) {
+				failure = execute(batch.toString(), rows.subList(first, i), failed, failure);
+				batch.setLength(0);
+				batchChars = 0;
+				first = i;
+			}
+
+			if (i > first) {
+				batch.append(';');
+				batchChars += 3;
+			}
+			batch.append(statement);
+			batchChars += statementChars;
+		}
+
+		if (first < rows.size())
+			failure = execute(batch.toString(), rows.subList(first, rows.size()), failed, failure);
+		return failure;
+	}
+
+	private static String insertStatement(CharSequence prefix, Object[] row) {
+		StringBuilder sb = new StringBuilder(prefix);
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(SqlStatements.literal(row[i]));
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * length of s as URL query parameter, errs on the long side: only letters,
+	 * digits and -_.* are counted as unescaped
+	 */
+	static int encodedLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+					|| c == '.' || c == '*')
+				length++;
+			else if (c < 0x80)
+				length += 3;
+			else if (c < 0x800)
+				length += 6;
+			else
+				// a surrogate pair is four UTF-8 bytes, counted as 9 + 9
+				length += 9;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the failure of this request, else the one before
+	 */
+	private IOException execute(String sql, List<Object[]> rows, List<Object[]> failed, IOException failure) {
+		long start = System.nanoTime();
+		try {
+			connector.executeSql(sql);
+		} catch (IOException e) {
+			failed.addAll(rows);
+			return e;
+		}
+		account(start, rows.size());
+		return failure;
+	}
+
+	private void importCsv(Target target, List<Object[]> rows) throws IOException {
+		StringBuilder csv = new StringBuilder();
+		for (Object[] row : rows) {
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0)
+					csv.append(',');
+				appendCsv(csv, row[i]);
+			}
+			csv.append('\n');
+		}
+
+		long start = System.nanoTime();
+		connector.importRows(target.tableId, csv.toString().getBytes(UTF8));
+		account(start, rows.size());
+	}
+
+	private static void appendCsv(StringBuilder csv, Object value) {
+		if (value == null)
+			return;
+
+		String s = value instanceof Date ? SqlStatements.formatDate((Date) value)
+				: value instanceof Number ? SqlStatements.formatNumber((Number) value) : value.toString();
+		boolean quote = s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
+		if (!quote) {
+			csv.append(s);
+			return;
+		}
+
+		csv.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"')
+				csv.append('"');
+			csv.append(c);
+		}
+		csv.append('"');
+	}
+
+	private void account(long start, int rows) {
+		long nanos = System.nanoTime() - start;
+		synchronized (stats) {
+			writeNanos += nanos;
+			rowsWritten += rows;
+			requests++;
+		}
+	}
+
+	public long getRowsWritten() {
+		synchronized (stats) {
+			return rowsWritten;
+		}
+	}
+
+	public long getRowsFailed() {
+		synchronized (stats) {
+			return rowsFailed;
+		}
+	}
+
+	public long getRequests() {
+		synchronized (stats) {
+			return requests;
+		}
+	}
+
+	/**
+	 * rows per second of time spent in write requests
+	 */
+	public double getRowsPerSecond() {
+		synchronized (stats) {
+			return writeNanos == 0 ? 0 : rowsWritten / (writeNanos / 1e9);
+		}
+	}
+
+	public String throughput() {
+		synchronized (stats) {
+			return String.format("batch writer: %d rows in %d requests, %.1f rows/s, %d rows failed", rowsWritten,
+					requests, getRowsPerSecond(), rowsFailed);
+		}
+	}
+}
@@ -1,14 +1,14 @@
 package main.java.fusiontables;
 
 /*
- * a duplicate of AbstractMemoryDataStore, which is not public
+ * started as a duplicate of AbstractMemoryDataStore, which is not public
  */
 
 
 
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Lists;
-import com.google.api.client.util.Maps;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.store.AbstractDataStore;
 import com.google.api.client.util.store.DataStore;
@@ -20,26 +20,71 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Abstract, thread-safe, in-memory implementation of a data store factory.
  *
+ * <p>
+ * Reads do not lock. Writes lock one of a fixed number of stripes by key, {@link #clear()} locks
+ * all of them. Values are held serialized, {@link #get} returns a copy callers may change without
+ * changing the store. Values of immutable classes such as String and StoredCredentials are cached
+ * deserialized, the former are shared, the latter copied field by field. {@link #containsValue}
+ * looks up an index of the serialized values.
+ * </p>
+ *
  * @param <V> serializable type of the mapped value
  *
  * @author Yaniv Inbar
  */
 class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
 
-  /** Lock on access to the store. */
-  private final Lock lock = new ReentrantLock();
+  private static final int STRIPES = 16;
+
+  /** Classes whose instances can't change, safe to share between callers. */
+  private static final Set<Class<?>> IMMUTABLE = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+      String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+      Long.class, Float.class, Double.class));
+
+  /** Locks on writes to the store, by key hash. */
+  private final Lock[] stripes = new Lock[STRIPES];
+
+  /** Data store map from the key to the serialized value. */
+  final ConcurrentHashMap<String, byte[]> keyValueMap = new ConcurrentHashMap<String, byte[]>();
+
+  /** Deserialized cacheable values, filled on set and on the first get of a loaded key. */
+  private final ConcurrentHashMap<String, V> valueCache = new ConcurrentHashMap<String, V>();
+
+  /** Number of keys by serialized value. */
+  private final ConcurrentHashMap<SerializedValue, Integer> valueIndex =
+      new ConcurrentHashMap<SerializedValue, Integer>();
 
-  /** Data store map from the key to the value. */
-  HashMap<String, byte[]> keyValueMap = Maps.newHashMap();
+  /** byte[] with value semantics for equals and hashCode. */
+  private static final class SerializedValue {
+    final byte[] bytes;
+    final int hash;
+
+    SerializedValue(byte[] bytes) {
+      this.bytes = bytes;
+      this.hash = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof SerializedValue && Arrays.equals(bytes, ((SerializedValue) obj).bytes);
+    }
+  }
 
   /**
    * @param dataStoreFactory data store factory
@@ -47,37 +92,105 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
    */
   protected CustomDataStore(DataStoreFactory dataStoreFactory, String id) {
     super(dataStoreFactory, id);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
   }
 
-  public final Set<String> keySet() throws IOException {
-    lock.lock();
-    try {
-      return Collections.unmodifiableSet(keyValueMap.keySet());
-    } finally {
-      lock.unlock();
+  /**
+   * Replaces the content of the store with loaded serialized values, to be called by subclasses
+   * on construction.
+   */
+  void load(Map<String, byte[]> serialized) {
+    keyValueMap.clear();
+    keyValueMap.putAll(serialized);
+    valueCache.clear();
+    valueIndex.clear();
+    for (byte[] bytes : keyValueMap.values()) {
+      index(bytes, 1);
     }
   }
 
+  private Lock stripe(String key) {
+    return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  private void index(byte[] bytes, int delta) {
+    if (bytes == null) {
+      return;
+    }
+    SerializedValue v = new SerializedValue(bytes);
+    synchronized (valueIndex) {
+      Integer count = valueIndex.get(v);
+      int updated = (count == null ? 0 : count) + delta;
+      if (updated > 0) {
+        valueIndex.put(v, updated);
+      } else {
+        valueIndex.remove(v);
+      }
+    }
+  }
+
+  /**
+   * A value callers may keep and change without changing the cached one: the value itself for
+   * immutable classes, a copy for StoredCredential, null for classes that aren't cached.
+   */
+  @SuppressWarnings("unchecked")
+  private static <V> V shareable(V value) {
+    if (IMMUTABLE.contains(value.getClass())) {
+      return value;
+    }
+    if (value instanceof StoredCredential) {
+      StoredCredential c = (StoredCredential) value;
+      return (V) new StoredCredential().setAccessToken(c.getAccessToken())
+          .setRefreshToken(c.getRefreshToken())
+          .setExpirationTimeMilliseconds(c.getExpirationTimeMilliseconds());
+    }
+    return null;
+  }
+
+  public final Set<String> keySet() throws IOException {
+    return Collections.unmodifiableSet(new HashSet<String>(keyValueMap.keySet()));
+  }
+
   public final Collection<V> values() throws IOException {
-    lock.lock();
-    try {
-      List<V> result = Lists.newArrayList();
-      for (byte[] bytes : keyValueMap.values()) {
-        result.add(IOUtils.<V>deserialize(bytes));
+    List<V> result = Lists.newArrayList();
+    for (String key : keyValueMap.keySet()) {
+      V value = get(key);
+      if (value != null) {
+        result.add(value);
       }
-      return Collections.unmodifiableList(result);
-    } finally {
-      lock.unlock();
     }
+    return Collections.unmodifiableList(result);
   }
 
   public final V get(String key) throws IOException {
     if (key == null) {
       return null;
     }
+    V value = valueCache.get(key);
+    if (value != null) {
+      return shareable(value);
+    }
+    byte[] bytes = keyValueMap.get(key);
+    if (bytes == null) {
+      return null;
+    }
+
+    value = IOUtils.<V>deserialize(bytes);
+    V copy = shareable(value);
+    if (copy == null) {
+      return value;
+    }
+
+    // under the lock to not cache a value that got replaced or deleted meanwhile
+    Lock lock = stripe(key);
     lock.lock();
     try {
-      return IOUtils.deserialize(keyValueMap.get(key));
+      if (keyValueMap.get(key) == bytes) {
+        valueCache.put(key, value);
+      }
+      return copy;
     } finally {
       lock.unlock();
     }
@@ -86,10 +199,20 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
   public final DataStore<V> set(String key, V value) throws IOException {
     Preconditions.checkNotNull(key);
     Preconditions.checkNotNull(value);
+    byte[] bytes = IOUtils.serialize(value);
+    Lock lock = stripe(key);
     lock.lock();
     try {
-      keyValueMap.put(key, IOUtils.serialize(value));
-      save();
+      index(keyValueMap.put(key, bytes), -1);
+      index(bytes, 1);
+      // the caller keeps its instance, later changes to it must not show
+      V cached = shareable(value);
+      if (cached != null) {
+        valueCache.put(key, cached);
+      } else {
+        valueCache.remove(key);
+      }
+      saveKey(key);
     } finally {
       lock.unlock();
     }
@@ -100,10 +223,12 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
     if (key == null) {
       return this;
     }
+    Lock lock = stripe(key);
     lock.lock();
     try {
-      keyValueMap.remove(key);
-      save();
+      index(keyValueMap.remove(key), -1);
+      valueCache.remove(key);
+      saveKey(key);
     } finally {
       lock.unlock();
     }
@@ -111,12 +236,20 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
   }
 
   public final DataStore<V> clear() throws IOException {
-    lock.lock();
+    for (Lock lock : stripes) {
+      lock.lock();
+    }
     try {
       keyValueMap.clear();
+      valueCache.clear();
+      synchronized (valueIndex) {
+        valueIndex.clear();
+      }
       save();
     } finally {
-      lock.unlock();
+      for (Lock lock : stripes) {
+        lock.unlock();
+      }
     }
     return this;
   }
@@ -126,12 +259,7 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
     if (key == null) {
       return false;
     }
-    lock.lock();
-    try {
-      return keyValueMap.containsKey(key);
-    } finally {
-      lock.unlock();
-    }
+    return keyValueMap.containsKey(key);
   }
 
   @Override
@@ -139,51 +267,38 @@ class CustomDataStore<V extends Serializable> extends AbstractDataStore<V> {
     if (value == null) {
       return false;
     }
-    lock.lock();
-    try {
-      byte[] serialized = IOUtils.serialize(value);
-      for (byte[] bytes : keyValueMap.values()) {
-        if (Arrays.equals(serialized, bytes)) {
-          return true;
-        }
-      }
-      return false;
-    } finally {
-      lock.unlock();
-    }
+    return valueIndex.containsKey(new SerializedValue(IOUtils.serialize(value)));
   }
 
   @Override
   public boolean isEmpty() throws IOException {
-    lock.lock();
-    try {
-      return keyValueMap.isEmpty();
-    } finally {
-      lock.unlock();
-    }
+    return keyValueMap.isEmpty();
   }
 
   @Override
   public int size() throws IOException {
-    lock.lock();
-    try {
-      return keyValueMap.size();
-    } finally {
-      lock.unlock();
-    }
+    return keyValueMap.size();
   }
 
   /**
-   * Persist the key-value map into storage at the end of {@link #set}, {@link #delete(String)}, and
-   * {@link #clear()}.
+   * Persist the key-value map into storage at the end of {@link #clear()}, and by default of
+   * {@link #set} and {@link #delete(String)}. Called with all stripes locked on clear, with one
+   * stripe locked otherwise.
    */
   @SuppressWarnings("unused")
   void save() throws IOException {
   }
 
+  /**
+   * Persist the change of a single key at the end of {@link #set} and {@link #delete(String)}. Called
+   * with the key's stripe locked, defaults to {@link #save()}.
+   */
+  void saveKey(String key) throws IOException {
+    save();
+  }
+
   @Override
   public String toString() {
     return DataStoreUtils.toString(this);
   }
 }
-
@@ -1,9 +1,16 @@
 package main.java.fusiontables;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -11,60 +18,163 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.swing.table.DefaultTableModel;
+import javax.management.JMException;
 
 import org.cg.common.check.Check;
 import org.cg.common.core.Logging;
 import org.cg.common.http.HttpStatus;
 import org.cg.ftc.shared.interfaces.*;
 import org.cg.ftc.shared.structures.*;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.HttpContext;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.fusiontables.Fusiontables;
 import com.google.api.services.fusiontables.Fusiontables.Query.Sql;
 import com.google.api.services.fusiontables.Fusiontables.Table.Delete;
+import com.google.api.services.fusiontables.FusiontablesRequest;
 import com.google.api.services.fusiontables.FusiontablesScopes;
 import com.google.api.services.fusiontables.model.Column;
+import com.google.api.services.fusiontables.model.ColumnList;
+import com.google.api.services.fusiontables.model.FusiontablesImport;
 import com.google.api.services.fusiontables.model.Sqlresponse;
 import com.google.api.services.fusiontables.model.Table;
+import com.google.api.services.fusiontables.model.TableList;
 import com.google.common.base.Optional;
-
-import main.java.fusiontables.deserialize.GftResponseJson;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.CharStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import main.java.fusiontables.RequestScheduler.Priority;
+import main.java.fusiontables.RequestScheduler.Request;
+import main.java.fusiontables.deserialize.GftErrorResult;
+import main.java.fusiontables.deserialize.GftResponseStreamReader;
+import main.java.fusiontables.export.ExportFormat;
+import main.java.fusiontables.export.ResultExporter;
+import main.java.fusiontables.metrics.ConnectorListener;
+import main.java.fusiontables.metrics.ConnectorMetrics;
+import main.java.fusiontables.metrics.Operation;
+import main.java.fusiontables.metrics.OperationTimer;
 
 public class FusionTablesConnector implements Connector {
 
-	private final Map<String, String> tableNamesToIds = new HashMap<String, String>();
+	private final TableInfoIndex tableIndex = new TableInfoIndex();
+	private final List<TableInfoListener> tableInfoListeners = new CopyOnWriteArrayList<TableInfoListener>();
+	// changes not yet reported to the listeners, in the order they were applied
+	private final Queue<TableInfoChanges> pendingChanges = new ArrayDeque<TableInfoChanges>();
+	private boolean notifying;
 
 	private final String APPLICATION_NAME = "fusion tables console";
 	private final String NOT_CONNECTED = "not connected";
+	private static final String TABLE_LIST = "table list";
+
+	/**
+	 * partial response selectors, just what TableInfo and QueryResult use
+	 */
+	static final String TABLE_LIST_FIELDS = "items(tableId,name,description,columns(name,type,kind)),nextPageToken";
+	static final String COLUMN_LIST_FIELDS = "items(name,type,kind),nextPageToken";
+	static final String SQL_FIELDS = "columns,rows";
 
 	private PreferencesDataStoreFactory dataStoreFactory = null;
 	private final Class<?> dataStoreCarrierNode;
 	private HttpTransport httpTransport;
 	private final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 	private Optional<Fusiontables> fusiontables;
+	private boolean streamingFetch = true;
+	private volatile boolean compactResponses = true;
+	private ExecutorService backgroundExecutor = null;
+	private volatile Optional<ResultCache> resultCache = Optional.absent();
+	private volatile Optional<Replica> replica = Optional.absent();
+	private final SingleFlight<String, QueryResult> queryFlights = new SingleFlight<String, QueryResult>();
+	/**
+	 * bumped after every write, a read does not share a fetch that started
+	 * before a write it may have to see
+	 */
+	private final AtomicLong writeGeneration = new AtomicLong();
+	private final SingleFlight<String, Void> tableListFlights = new SingleFlight<String, Void>();
+	private final ListeningExecutorService queryExecutor;
+	private final ExecutorService metadataExecutor;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+	private volatile boolean tableInfoLoaded = false;
+	private volatile long tableInfoLoadedAt;
+	private volatile long tableInfoTtlMillis = 5 * 60 * 1000;
+
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+	private final List<ConnectorListener> listeners = new CopyOnWriteArrayList<ConnectorListener>(
+			Collections.<ConnectorListener> singletonList(metrics));
+
+	/**
+	 * authorized clients by AuthInfo, reused by reset()
+	 */
+	private final Map<AuthInfo, Fusiontables> clients = new HashMap<AuthInfo, Fusiontables>();
+	private final TokenRefresher tokenRefresher;
+	private final RequestScheduler scheduler = new RequestScheduler(RequestScheduler.DEFAULT_REQUESTS_PER_SECOND);
 
 	private final Logging logger;
 
 	public FusionTablesConnector(Logging logger, Optional<AuthInfo> authInfo, Class<?> dataStoreCarrierNode) {
+		this(logger, authInfo, dataStoreCarrierNode, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            upper bound for concurrently running requests issued by
+	 *            fetchAll, also the size of the http connection pool
+	 */
+	public FusionTablesConnector(Logging logger, Optional<AuthInfo> authInfo, Class<?> dataStoreCarrierNode,
+			int maxInFlight) {
 		Check.notNull(authInfo);
 		Check.notNull(logger);
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("maxInFlight must be positive");
 		this.logger = logger;
+		tokenRefresher = new TokenRefresher(logger);
 		this.dataStoreCarrierNode = dataStoreCarrierNode;
+		queryExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(maxInFlight,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-query-%d").build()));
+		metadataExecutor = Executors.newFixedThreadPool(maxInFlight,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-metadata-%d").build());
 		try {
 
-			httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+			httpTransport = newPooledTransport(maxInFlight);
 			reset(authInfo);
 
 		} catch (Exception e) {
@@ -74,6 +184,28 @@ public class FusionTablesConnector implements Connector {
 
 	}
 
+	/**
+	 * apache http client with a thread safe, keep-alive connection pool
+	 * instead of HttpURLConnection
+	 */
+	private static HttpTransport newPooledTransport(int maxConnections) throws GeneralSecurityException, IOException {
+		ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+				.trustCertificates(GoogleUtils.getCertificateTrustStore());
+		ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(), new ConnPerRouteBean(maxConnections));
+		ApacheHttpTransport transport = builder.build();
+
+		((AbstractHttpClient) transport.getHttpClient()).addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(org.apache.http.HttpRequest request, HttpContext context) {
+				AsyncCall<?> call = AsyncCall.current();
+				if (call != null)
+					call.register(request);
+			}
+		});
+		return transport;
+	}
+
 	public ConnectionStatus reset(Dictionary<String, String> connectionInfo) {
 		return reset(Optional.of(new AuthInfo(connectionInfo.get(ClientSettings.keyClientId),
 				connectionInfo.get(ClientSettings.keyClientSecret))));
@@ -83,13 +215,23 @@ public class FusionTablesConnector implements Connector {
 		String authInfoJSon = "{\"installed\":{\"client_id\":\"%s\",\"auth_uri\":\"https://accounts.google.com/o/oauth2/auth\",\"token_uri\":\"https://accounts.google.com/o/oauth2/token\",\"auth_provider_x509_cert_url\":\"https://www.googleapis.com/oauth2/v1/certs\",\"client_secret\":\"%s\",\"redirect_uris\":[\"urn:ietf:wg:oauth:2.0:oob\",\"http://localhost\"]}}";
 
 		if (dataStoreFactory == null)
-			dataStoreFactory = new PreferencesDataStoreFactory(dataStoreCarrierNode);
+			dataStoreFactory = new PreferencesDataStoreFactory(dataStoreCarrierNode, true);
+
+		connectionChanged();
 
 		if (!authInfo.isPresent() || authInfo.isPresent() && !authInfo.get().credentialsPlausible()) {
 			fusiontables = Optional.absent();
 			return new ConnectionStatus(HttpStatus.SC_BAD_REQUEST, "incomplete credentials");
 		}
 
+		synchronized (clients) {
+			Fusiontables cached = clients.get(authInfo.get());
+			if (cached != null) {
+				fusiontables = Optional.of(cached);
+				return new ConnectionStatus(HttpStatus.SC_OK);
+			}
+		}
+
 		Reader authStream;
 
 		authStream = new StringReader(
@@ -97,6 +239,7 @@ public class FusionTablesConnector implements Connector {
 
 		Credential credential = null;
 		ConnectionStatus result;
+		OperationTimer timer = timer(Operation.AUTHORIZE);
 		try {
 			credential = authorize(authStream);
 			result = new ConnectionStatus(HttpStatus.SC_OK);
@@ -104,14 +247,119 @@ public class FusionTablesConnector implements Connector {
 			logger.Error("Failed to authorize: " + e.getMessage());
 			fusiontables = Optional.absent();
 			result = new ConnectionStatus(e);
+			timer.status(statusOf(e));
+		} finally {
+			timer.stop();
 		}
 
-		fusiontables = Optional.of(new Fusiontables.Builder(httpTransport, JSON_FACTORY, credential)
-				.setApplicationName(APPLICATION_NAME).build());
+		Fusiontables client = new Fusiontables.Builder(httpTransport, JSON_FACTORY, cancellable(credential))
+				.setApplicationName(APPLICATION_NAME).build();
+		fusiontables = Optional.of(client);
+
+		if (credential != null)
+			synchronized (clients) {
+				clients.put(authInfo.get(), client);
+				tokenRefresher.track(credential);
+			}
 
 		return result;
 	}
 
+	/**
+	 * drops the authorized clients kept for reuse by reset() and stops
+	 * refreshing their tokens
+	 */
+	public void forgetCredentials() {
+		synchronized (clients) {
+			clients.clear();
+			tokenRefresher.untrackAll();
+		}
+	}
+
+	/**
+	 * connects to another endpoint than Google's, e.g. a FusionTablesStandIn,
+	 * with a given credential instead of the authorization flow
+	 */
+	public ConnectionStatus connectTo(String rootUrl, HttpRequestInitializer credential) {
+		connectionChanged();
+		fusiontables = Optional.of(new Fusiontables.Builder(httpTransport, JSON_FACTORY, cancellable(credential))
+				.setRootUrl(rootUrl).setApplicationName(APPLICATION_NAME).build());
+		return new ConnectionStatus(HttpStatus.SC_OK);
+	}
+
+	/**
+	 * another account or endpoint: nothing fetched for the previous one may
+	 * answer queries, cached results and running fetches are dropped and the
+	 * mirrors wait for a full sync
+	 */
+	private void connectionChanged() {
+		invalidateTableInfo();
+		invalidateResultCache();
+		writeGeneration.incrementAndGet();
+		Optional<Replica> r = replica;
+		if (r.isPresent())
+			r.get().connectionChanged();
+	}
+
+	/**
+	 * a credential that just sends a fixed access token
+	 */
+	public static Credential accessToken(String token) {
+		return new GoogleCredential().setAccessToken(token);
+	}
+
+	/**
+	 * listeners get told about every completed operation, the built in
+	 * ConnectorMetrics is always registered
+	 */
+	public void addListener(ConnectorListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ConnectorListener listener) {
+		listeners.remove(listener);
+	}
+
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * exposes the metrics of each operation as MBean, see ConnectorMetrics
+	 */
+	public void registerMBeans(String name) throws JMException {
+		metrics.registerMBeans(name);
+	}
+
+	/**
+	 * paces, prioritizes and retries the requests, see RequestScheduler
+	 */
+	public RequestScheduler getRequestScheduler() {
+		return scheduler;
+	}
+
+	private static Priority priority(String query) {
+		return SqlStatements.isRead(query) ? Priority.INTERACTIVE : Priority.BULK;
+	}
+
+	private OperationTimer timer(Operation operation) {
+		return new OperationTimer(operation, listeners, logger);
+	}
+
+	private static HttpStatus statusOf(Exception e) {
+		if (e instanceof HttpResponseException)
+			return decodeStatus(((HttpResponseException) e).getStatusCode());
+		return HttpStatus.SC_METHOD_FAILURE;
+	}
+
+	private static long utf8Length(String s) {
+		try {
+			return s.getBytes("UTF-8").length;
+		} catch (UnsupportedEncodingException e) {
+			return s.length();
+		}
+	}
+
 	private void log(String msg) {
 		if (logger != null)
 			logger.Info(msg);
@@ -135,47 +383,260 @@ public class FusionTablesConnector implements Connector {
 		return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
 	}
 
+	public void setTableInfoTtl(long millis) {
+		tableInfoTtlMillis = millis;
+	}
+
+	/**
+	 * drops the cached table metadata, the next getTableInfo() reloads it and
+	 * reports the differences to the TableInfoListeners
+	 */
+	public synchronized void invalidateTableInfo() {
+		tableInfoLoaded = false;
+	}
+
+	public void addTableInfoListener(TableInfoListener listener) {
+		tableInfoListeners.add(listener);
+	}
+
+	public void removeTableInfoListener(TableInfoListener listener) {
+		tableInfoListeners.remove(listener);
+	}
+
 	@Override
 	public List<TableInfo> getTableInfo() {
-		ArrayList<TableInfo> result = new ArrayList<TableInfo>();
+		if (!tableInfoLoaded || System.currentTimeMillis() - tableInfoLoadedAt > tableInfoTtlMillis)
+			loadTableInfo(false);
 
-		if (!fusiontables.isPresent())
-			return result;
+		return tables();
+	}
+
+	private synchronized List<TableInfo> tables() {
+		return new ArrayList<TableInfo>(tableIndex.tables());
+	}
+
+	/**
+	 * one table list request for concurrent loads
+	 * 
+	 * @param fresh
+	 *            don't share a request that started before, it may miss
+	 *            changes the caller made
+	 */
+	private void loadTableInfo(boolean fresh) {
+		Request<Void> load = new Request<Void>() {
+			@Override
+			public Void execute() {
+				requestTableInfo();
+				return null;
+			}
+		};
 
 		try {
-			for (Table t : fusiontables.get().table().list().execute().getItems())
-				result.add(new TableInfo(t.getName(), t.getTableId(), t.getDescription(), getColumns(t)));
-		} catch (IOException ex) {
-			log("IOException: " + ex.getMessage());
-		} catch (NullPointerException ex) {
-			// there is no obvious way to determine if this succeeded
-			// execute() returns a TableList t where t.isEmpty() == false
-			// and getItems() still throws a NullPointerException
-			// behaves the same, if the network connection is gone
-			// or network is ok, but there are no tables at all
-			log("no network connection or there are no tables at all");
-		}
-
-		reportDuplicates(result);
+			if (fresh)
+				tableListFlights.executeFresh(TABLE_LIST, load);
+			else
+				tableListFlights.execute(TABLE_LIST, load);
+		} catch (IOException e) {
+			log("IOException: " + e.getMessage());
+		}
+		notifyTableInfoListeners();
+	}
+
+	/**
+	 * reports the pending changes outside the lock and the table list request,
+	 * listeners may call back into the connector. Only one thread notifies at a
+	 * time, others leave their changes to it instead of waiting. The notifier
+	 * only stops in the same lock that finds the queue empty, so no change is
+	 * left behind.
+	 */
+	private void notifyTableInfoListeners() {
+		synchronized (this) {
+			if (notifying)
+				return;
+			notifying = true;
+		}
+		boolean drained = false;
+		try {
+			while (true) {
+				TableInfoChanges changes;
+				synchronized (this) {
+					changes = pendingChanges.poll();
+					if (changes == null) {
+						notifying = false;
+						drained = true;
+						return;
+					}
+				}
+				for (TableInfoListener l : tableInfoListeners)
+					try {
+						l.tablesChanged(changes);
+					} catch (RuntimeException e) {
+						logger.Error("table info listener failed: " + e);
+					}
+			}
+		} finally {
+			if (!drained)
+				synchronized (this) {
+					notifying = false;
+				}
+		}
+	}
+
+	private void requestTableInfo() {
+		List<Table> items = null;
+		boolean complete = false;
+
+		if (fusiontables.isPresent()) {
+			OperationTimer timer = timer(Operation.GET_TABLE_INFO);
+			try {
+				items = listTables(fusiontables.get());
+				if (items == null) {
+					// there is no obvious way to determine if this succeeded,
+					// getItems() is null if the network connection is gone
+					// or network is ok, but there are no tables at all
+					log("no network connection or there are no tables at all");
+					items = Collections.emptyList();
+				} else
+					complete = true;
+			} catch (IOException ex) {
+				log("IOException: " + ex.getMessage());
+				timer.status(statusOf(ex));
+			} finally {
+				timer.rows(items == null ? 0 : items.size()).stop();
+			}
+		} else
+			items = Collections.emptyList();
+
+		synchronized (this) {
+			// failed loads are not kept, the next call tries again
+			tableInfoLoaded = true;
+			tableInfoLoadedAt = complete ? System.currentTimeMillis() : 0;
+
+			// a failed request keeps the last known tables
+			if (items == null)
+				return;
+
+			TableInfoChanges changes = tableIndex.apply(items);
+			if (changes.isEmpty())
+				return;
+
+			List<TableInfo> named = new ArrayList<TableInfo>(changes.added);
+			named.addAll(changes.modified);
+			reportAmbiguous(tableIndex.ambiguousNames(named));
+			pendingChanges.add(changes);
+		}
+	}
+
+	/**
+	 * all pages of the table list, null if none had items. The next page is
+	 * requested while the current one is processed, columns missing in the
+	 * list get loaded per table on the metadata pool.
+	 */
+	private List<Table> listTables(final Fusiontables client) throws IOException {
+		List<Table> result = null;
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		try {
+			TableList page = requestTablePage(client, null);
+			while (page != null) {
+				Future<TableList> next = null;
+				final String token = page.getNextPageToken();
+				if (token != null) {
+					next = backgroundExecutor().submit(AsyncCall.propagate(new Callable<TableList>() {
+						@Override
+						public TableList call() throws IOException {
+							return requestTablePage(client, token);
+						}
+					}));
+					pending.add(next);
+				}
+
+				if (page.getItems() != null) {
+					if (result == null)
+						result = new ArrayList<Table>();
+					for (final Table t : page.getItems()) {
+						result.add(t);
+						if (t.getColumns() == null)
+							pending.add(metadataExecutor.submit(AsyncCall.propagate(new Callable<Void>() {
+								@Override
+								public Void call() throws IOException {
+									t.setColumns(requestColumns(client, t.getTableId()));
+									return null;
+								}
+							})));
+					}
+				}
+
+				page = next == null ? null : await(next);
+			}
+
+			for (Future<?> f : pending)
+				await(f);
+			return result;
+		} finally {
+			// left over after a failure
+			for (Future<?> f : pending)
+				f.cancel(true);
+		}
+	}
+
+	private TableList requestTablePage(final Fusiontables client, final String pageToken) throws IOException {
+		return scheduler.execute(Priority.INTERACTIVE, true, new Request<TableList>() {
+			@Override
+			public TableList execute() throws IOException {
+				return compact(client.table().list(), TABLE_LIST_FIELDS).setPageToken(pageToken).execute();
+			}
+		});
+	}
+
+	private List<Column> requestColumns(final Fusiontables client, final String tableId) throws IOException {
+		List<Column> result = new ArrayList<Column>();
+		String token = null;
+		do {
+			final String pageToken = token;
+			ColumnList page = scheduler.execute(Priority.INTERACTIVE, true, new Request<ColumnList>() {
+				@Override
+				public ColumnList execute() throws IOException {
+					return compact(client.column().list(tableId), COLUMN_LIST_FIELDS).setPageToken(pageToken)
+							.execute();
+				}
+			});
+			if (page.getItems() != null)
+				result.addAll(page.getItems());
+			token = page.getNextPageToken();
+		} while (token != null);
 		return result;
 	}
 
-	private List<ColumnInfo> getColumns(Table t) {
-		List<ColumnInfo> columns = new ArrayList<ColumnInfo>();
-		for (Column c : t.getColumns())
-			columns.add(new ColumnInfo(c.getName(), c.getType(), c.getKind()));
-		return columns;
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while loading table metadata");
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	private void refreshTableInfo() {
+		invalidateTableInfo();
+		loadTableInfo(true);
 	}
 
-	private void reportDuplicates(ArrayList<TableInfo> result) {
+	/**
+	 * replaces the table metadata and the name to ID index without diffing
+	 */
+	synchronized void reportDuplicates(ArrayList<TableInfo> result) {
+		tableIndex.reset(result);
+		reportAmbiguous(tableIndex.ambiguousNames(result));
+	}
+
+	private void reportAmbiguous(Set<String> names) {
 		String fuckedUp = "";
-		tableNamesToIds.clear();
-		for (TableInfo i : result) {
-			if (tableNamesToIds.containsKey(i.name))
-				fuckedUp = fuckedUp + "ambiguous table name '" + i.name + "'\r\n";
-			tableNamesToIds.put(i.name, i.id);
+		for (String name : names)
+			fuckedUp = fuckedUp + "ambiguous table name '" + name + "'\r\n";
 
-		}
 		if (fuckedUp.length() > 0) {
 			log("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!\r\n"
 					+ " ambiguous table names found - one name for more than one table ID."
@@ -192,21 +653,131 @@ public class FusionTablesConnector implements Connector {
 		if (!fusiontables.isPresent())
 			return NOT_CONNECTED;
 
-		Sql sql = fusiontables.get().query().sql(query);
-		Sqlresponse response = null;
+		String result;
+
+		OperationTimer timer = timer(Operation.EXECUTE_SQL).requestBytes(utf8Length(query));
+		try {
+			HttpResponse response = sendSql(query, priority(query));
+			timer.wireDone();
+			CountingInputStream content = new CountingInputStream(response.getContent());
+			Sqlresponse parsed;
+			try {
+				parsed = JSON_FACTORY.createJsonParser(content, response.getContentCharset())
+						.parseAndClose(Sqlresponse.class);
+			} finally {
+				timer.responseBytes(content.getCount());
+				response.ignore();
+			}
+			result = parsed.toPrettyString();
+			timer.rows(parsed.getRows() == null ? 0 : parsed.getRows().size());
+		} catch (IOException e) {
+			timer.status(statusOf(e));
+			throw e;
+		} finally {
+			timer.stop();
+		}
+
+		afterStatement(query);
+		return result;
+	}
+
+	/**
+	 * sends query().sql through the scheduler, the caller reads the content
+	 * and releases the response
+	 */
+	private HttpResponse sendSql(String query, Priority priority) throws IOException {
+		final Sql sql = compact(fusiontables.get().query().sql(query), SQL_FIELDS);
+		return scheduler.execute(priority, SqlStatements.isRead(query), new Request<HttpResponse>() {
+			@Override
+			public HttpResponse execute() throws IOException {
+				return sql.executeUnparsed();
+			}
+		});
+	}
+
+	/**
+	 * keeps cached results and metadata in line with what a successfully
+	 * executed statement changed
+	 */
+	private void afterStatement(String query) {
+		if (SqlStatements.isRead(query))
+			return;
+
+		writeGeneration.incrementAndGet();
+		if (replica.isPresent()) {
+			boolean inserted = SqlStatements.onlyInserts(query);
+			for (String id : resolveTableIds(SqlStatements.referencedTables(query)))
+				replicaWritten(id, inserted);
+		}
+
+		if (resultCache.isPresent()) {
+			Set<String> tableIds = resolveTableIds(SqlStatements.referencedTables(query));
+			if (tableIds.isEmpty())
+				resultCache.get().invalidateAll();
+			else
+				for (String id : tableIds)
+					resultCache.get().invalidateTable(id);
+		}
+
+		if (SqlStatements.isDdl(query))
+			refreshTableInfo();
+	}
+
+	private void replicaWritten(String tableId, boolean inserted) {
+		Optional<Replica> r = replica;
+		if (r.isPresent())
+			r.get().written(tableId, inserted);
+	}
+
+	private void invalidateResults(String tableId) {
+		writeGeneration.incrementAndGet();
+		if (resultCache.isPresent())
+			resultCache.get().invalidateTable(tableId);
+	}
+
+	private Set<String> resolveTableIds(Set<String> namesOrIds) {
+		return tableIndex.resolver.resolveAll(namesOrIds);
+	}
+
+	/**
+	 * lock free table name to ID resolution, based on the last loaded table
+	 * list
+	 */
+	public TableNameResolver getTableNameResolver() {
+		return tableIndex.resolver;
+	}
+
+	/**
+	 * parses a statement with ? placeholders once, table names get replaced
+	 * by IDs right away
+	 * 
+	 * @throws IllegalArgumentException
+	 *             for unterminated quotes
+	 */
+	public SqlTemplate prepare(String template) {
+		return new SqlTemplate(this, rewriteTableNames(template));
+	}
 
-		response = sql.execute();
+	/**
+	 * @return the query with table names replaced by table IDs, see
+	 *         TableNameResolver.rewrite()
+	 */
+	public String rewriteTableNames(String query) {
+		if (!tableInfoLoaded)
+			getTableInfo();
+		return tableIndex.resolver.rewrite(query);
+	}
 
-		getTableInfo();
-		return response.toPrettyString();
+	String resolveTableId(String nameOrId) {
+		if (!tableInfoLoaded)
+			getTableInfo();
+		return tableIndex.resolver.resolve(nameOrId);
 	}
 
 	@Override
 	public String execSql(String query) {
 		try {
-			String result = executeSql(query);
-			getTableInfo();
-			return result;
+			return executeSql(query);
 		} catch (IOException e) {
 			return e.getMessage();
 		}
@@ -219,9 +790,24 @@ public class FusionTablesConnector implements Connector {
 			return;
 		}
 
-		Delete delete = fusiontables.get().table().delete(tableId);
-		delete.execute();
-		getTableInfo();
+		final Delete delete = fusiontables.get().table().delete(tableId);
+		OperationTimer timer = timer(Operation.DELETE_TABLE);
+		try {
+			scheduler.execute(Priority.INTERACTIVE, true, new Request<Void>() {
+				@Override
+				public Void execute() throws IOException {
+					return delete.execute();
+				}
+			});
+		} catch (IOException e) {
+			timer.status(statusOf(e));
+			throw e;
+		} finally {
+			timer.stop();
+		}
+		invalidateResults(tableId);
+		replicaWritten(tableId, false);
+		refreshTableInfo();
 	}
 
 	public String createSampleTable() throws IOException {
@@ -239,8 +825,23 @@ public class FusionTablesConnector implements Connector {
 				new Column().setName("Number").setType("NUMBER"), new Column().setName("Location").setType("LOCATION"),
 				new Column().setName("Date").setType("DATETIME")));
 
-		Fusiontables.Table.Insert t = fusiontables.get().table().insert(table);
-		Table r = t.execute();
+		final Fusiontables.Table.Insert t = fusiontables.get().table().insert(table);
+		Table r;
+		OperationTimer timer = timer(Operation.CREATE_SAMPLE_TABLE);
+		try {
+			r = scheduler.execute(Priority.INTERACTIVE, false, new Request<Table>() {
+				@Override
+				public Table execute() throws IOException {
+					return t.execute();
+				}
+			});
+		} catch (IOException e) {
+			timer.status(statusOf(e));
+			throw e;
+		} finally {
+			timer.stop();
+		}
+		invalidateTableInfo();
 
 		return r.getTableId();
 	}
@@ -253,44 +854,510 @@ public class FusionTablesConnector implements Connector {
 		Table table = new Table();
 		table.setTableId(tableId);
 		table.setName(newName);
+		OperationTimer timer = timer(Operation.RENAME_TABLE);
 		try {
-			fusiontables.get().table().patch(tableId, table).execute();
+			final Fusiontables.Table.Patch patch = fusiontables.get().table().patch(tableId, table);
+			scheduler.execute(Priority.INTERACTIVE, true, new Request<Table>() {
+				@Override
+				public Table execute() throws IOException {
+					return patch.execute();
+				}
+			});
 		} catch (IOException e) {
+			timer.status(statusOf(e));
 			return e.getMessage();
+		} finally {
+			timer.stop();
 		}
 
-		getTableInfo();
+		invalidateResults(tableId);
+		refreshTableInfo();
 
 		return "renamed " + tableId + " to " + newName;
 	}
 
+	public void setStreamingFetch(boolean value) {
+		streamingFetch = value;
+	}
+
+	/**
+	 * @param value
+	 *            ask for gzip compressed responses limited to the fields used,
+	 *            on by default
+	 */
+	public void setCompactResponses(boolean value) {
+		compactResponses = value;
+	}
+
+	/**
+	 * Google only compresses responses if the user agent contains "gzip" along
+	 * with Accept-Encoding gzip, google-http-client sends both by default. Without
+	 * compact responses identity encoding is asked for, to compare against.
+	 */
+	private <T extends FusiontablesRequest<?>> T compact(T request, String fields) {
+		if (compactResponses)
+			request.setFields(fields);
+		else
+			request.getRequestHeaders().setAcceptEncoding("identity");
+		return request;
+	}
+
+	public static final long DEFAULT_RESULT_TTL_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * caches successful read results of fetch() for at most
+	 * DEFAULT_RESULT_TTL_MILLIS, see ResultCache
+	 * 
+	 * @param maxBytes
+	 *            bound for the estimated size of all cached results
+	 */
+	public void enableResultCache(long maxBytes) {
+		enableResultCache(maxBytes, DEFAULT_RESULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param ttl
+	 *            time after which a result gets fetched again, bounds how long
+	 *            writes of other clients go unnoticed
+	 */
+	public void enableResultCache(long maxBytes, long ttl, TimeUnit unit) {
+		resultCache = Optional.of(new ResultCache(maxBytes, unit.toMillis(ttl)));
+	}
+
+	public void disableResultCache() {
+		resultCache = Optional.absent();
+	}
+
+	public void invalidateResultCache() {
+		if (resultCache.isPresent())
+			resultCache.get().invalidateAll();
+	}
+
+	/**
+	 * answers simple queries on mirrored tables locally, see Replica. Replaces
+	 * a replica enabled before.
+	 * 
+	 * @param directory
+	 *            where the mirrored tables are kept, created if missing
+	 */
+	public Replica enableReplica(File directory) throws IOException {
+		Replica r = new Replica(this, logger, directory);
+		disableReplica();
+		addTableInfoListener(r.tableInfoListener);
+		replica = Optional.of(r);
+		return r;
+	}
+
+	/**
+	 * stops syncing, the files of the mirrored tables stay
+	 */
+	public void disableReplica() {
+		Optional<Replica> r = replica;
+		replica = Optional.absent();
+		if (r.isPresent()) {
+			r.get().stopSync();
+			removeTableInfoListener(r.get().tableInfoListener);
+		}
+	}
+
+	public Optional<Replica> getReplica() {
+		return replica;
+	}
+
+	/**
+	 * hit, miss and eviction counts, all zero if the cache is disabled
+	 */
+	public CacheStats getResultCacheStats() {
+		if (resultCache.isPresent())
+			return resultCache.get().stats();
+		return new CacheStats(0, 0, 0, 0, 0, 0);
+	}
+
 	@Override
 	public QueryResult fetch(String query) {
+		Optional<Replica> r = replica;
+		if (r.isPresent()) {
+			Optional<QueryResult> local = r.get().query(query);
+			if (local.isPresent())
+				return local.get();
+		}
 
+		if (!SqlStatements.isRead(query))
+			return fetchUncached(query);
+
+		String key = SqlStatements.normalize(query);
+		Optional<ResultCache> cache = resultCache;
+		if (cache.isPresent()) {
+			Optional<QueryResult> cached = cache.get().get(key);
+			if (cached.isPresent())
+				return cached.get();
+		}
+
+		Set<String> tableIds = Collections.emptySet();
+		long generation = 0;
+		if (cache.isPresent()) {
+			tableIds = resolveTableIds(SqlStatements.referencedTables(query));
+			generation = cache.get().generation(tableIds);
+		}
+
+		QueryResult result = fetchShared(key, query);
+		if (cache.isPresent())
+			cache.get().put(key, tableIds, generation, result);
+		return result;
+	}
+
+	/**
+	 * one fetchUncached() for concurrent fetches of the same read, started
+	 * after the last write
+	 */
+	private QueryResult fetchShared(String normalizedQuery, final String query) {
 		try {
-			return deserializeGftJson(executeSql(query));
+			return queryFlights.execute(normalizedQuery, writeGeneration.get(), new Request<QueryResult>() {
+				@Override
+				public QueryResult execute() {
+					return fetchUncached(query);
+				}
+			});
+		} catch (IOException e) {
+			return createErrorResult(HttpStatus.SC_METHOD_FAILURE, e.getMessage());
+		}
+	}
+
+	/**
+	 * fetches and table list loads that got the result of a request made
+	 * for a concurrent caller
+	 */
+	public long getCoalescedRequests() {
+		return queryFlights.getShared() + tableListFlights.getShared();
+	}
+
+	private QueryResult fetchUncached(String query) {
+		if (streamingFetch)
+			return fetchStreamed(query);
+		if (!fusiontables.isPresent())
+			return createErrorResult(HttpStatus.SC_NO_CONTENT, NOT_CONNECTED);
+
+		Map<String, String> columnTypes = columnTypes(query);
+		QueryResult result;
+		OperationTimer timer = timer(Operation.FETCH).requestBytes(utf8Length(query));
+		try {
+			HttpResponse response = sendSql(query, priority(query));
+			timer.wireDone();
+			CountingInputStream content = new CountingInputStream(response.getContent());
+			String json;
+			try {
+				json = CharStreams.toString(new InputStreamReader(content, response.getContentCharset()));
+			} finally {
+				timer.responseBytes(content.getCount());
+				response.ignore();
+			}
+			result = measured(timer, deserializeGftJson(json, columnTypes));
+		} catch (HttpResponseException e) {
+			timer.status(statusOf(e));
+			return createErrorResult(e);
+		} catch (Exception e) {
+			timer.status(statusOf(e));
+			return createErrorResult(HttpStatus.SC_METHOD_FAILURE, e.getMessage());
+		} finally {
+			timer.stop();
+		}
+
+		afterStatement(query);
+		return result;
+	}
+
+	private static QueryResult measured(OperationTimer timer, QueryResult result) {
+		timer.status(result.status);
+		if (result.data.isPresent())
+			timer.rows(result.data.get().getRowCount());
+		return result;
+	}
+
+	/**
+	 * reads the response stream of query().sql directly into the result,
+	 * skipping Sqlresponse, toPrettyString() and the re-parse of the string
+	 */
+	public QueryResult fetchStreamed(String query) {
+		if (!fusiontables.isPresent())
+			return createErrorResult(HttpStatus.SC_NO_CONTENT, NOT_CONNECTED);
+
+		try {
+			// before the request, a metadata load must not wait for a pooled
+			// connection while this one is held
+			Map<String, String> columnTypes = columnTypes(query);
+			QueryResult result;
+
+			// wire time lasts until the headers arrived, the body is read
+			// while deserializing
+			OperationTimer timer = timer(Operation.FETCH).requestBytes(utf8Length(query));
+			try {
+				HttpResponse response = sendSql(query, priority(query));
+				timer.wireDone();
+				CountingInputStream content = new CountingInputStream(response.getContent());
+				try {
+					result = measured(timer, deserializeGftJsonStream(content, columnTypes));
+				} finally {
+					timer.responseBytes(content.getCount());
+					// disconnect() aborts the apache request and loses the
+					// pooled connection, closing the content releases it
+					response.ignore();
+				}
+			} catch (IOException e) {
+				timer.status(statusOf(e));
+				throw e;
+			} finally {
+				timer.stop();
+			}
+
+			afterStatement(query);
+			return result;
+		} catch (HttpResponseException e) {
+			return createErrorResult(e);
 		} catch (Exception e) {
 			return createErrorResult(HttpStatus.SC_METHOD_FAILURE, e.getMessage());
 		}
 	}
 
-	private static HttpStatus getHttpStatus(String json) {
+	/**
+	 * Streams the rows of a SELECT from the response to the channel, without
+	 * building a TableModel. The channel is not closed.
+	 * 
+	 * @return the number of rows written
+	 * @throws IllegalArgumentException
+	 *             for statements other than SELECT
+	 */
+	public long export(String query, ExportFormat format, WritableByteChannel channel) throws IOException {
+		if (!SqlStatements.isRead(query))
+			throw new IllegalArgumentException("not a SELECT: " + query);
+		if (!fusiontables.isPresent())
+			throw new IOException(NOT_CONNECTED);
+
+		ResultExporter exporter = ResultExporter.create(format, channel, columnTypes(query));
+
+		OperationTimer timer = timer(Operation.EXPORT).requestBytes(utf8Length(query));
+		try {
+			HttpResponse response = sendSql(query, Priority.BULK);
+			timer.wireDone();
+			CountingInputStream content = new CountingInputStream(response.getContent());
+			try {
+				GftResponseStreamReader.stream(content, exporter);
+				exporter.finish();
+			} finally {
+				timer.responseBytes(content.getCount()).rows(exporter.getRowCount());
+				response.ignore();
+			}
+		} catch (IOException e) {
+			timer.status(statusOf(e));
+			throw e;
+		} finally {
+			timer.stop();
+		}
+
+		return exporter.getRowCount();
+	}
+
+	/**
+	 * Fusion Tables column types of the table a query selects from, by column
+	 * name. Empty if the table is unknown.
+	 */
+	private Map<String, String> columnTypes(String query) {
+		Map<String, String> result = new HashMap<String, String>();
+		Optional<String> table = SqlStatements.fromTable(query);
+		if (!table.isPresent())
+			return result;
+
+		for (TableInfo t : getTableInfo())
+			if (table.get().equals(t.id) || table.get().equals(t.name)) {
+				for (ColumnInfo c : t.columns)
+					result.put(c.name, c.type);
+				break;
+			}
+
+		return result;
+	}
+
+	/**
+	 * @param flushIntervalMillis
+	 *            pending rows get written at least that often
+	 */
+	public BatchWriter createBatchWriter(long flushIntervalMillis) {
+		return new BatchWriter(this, logger, flushIntervalMillis);
+	}
+
+	void importRows(final String tableId, final byte[] csv) throws IOException {
+		if (!fusiontables.isPresent())
+			throw new IOException(NOT_CONNECTED);
+
+		final Fusiontables client = fusiontables.get();
+		// a fresh request per attempt, the media upload keeps state
+		scheduler.execute(Priority.BULK, false, new Request<FusiontablesImport>() {
+			@Override
+			public FusiontablesImport execute() throws IOException {
+				return client.table().importRows(tableId, new ByteArrayContent("application/octet-stream", csv))
+						.setEncoding("UTF-8").execute();
+			}
+		});
+		invalidateResults(tableId);
+		replicaWritten(tableId, true);
+	}
+
+	/**
+	 * true if columns are all columns of the table in table order, as needed
+	 * for importRows
+	 */
+	boolean isTableColumnOrder(String tableId, String[] columns) {
+		for (TableInfo t : getTableInfo())
+			if (t.id.equals(tableId)) {
+				if (t.columns.size() != columns.length)
+					return false;
+				for (int i = 0; i < columns.length; i++)
+					if (!t.columns.get(i).name.equals(columns[i]))
+						return false;
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * runs the queries concurrently, at most maxInFlight at a time
+	 * 
+	 * @return the results in the order of the queries
+	 */
+	public List<ListenableFuture<QueryResult>> fetchAll(List<String> queries) {
+		List<ListenableFuture<QueryResult>> result = new ArrayList<ListenableFuture<QueryResult>>(queries.size());
+		for (String query : queries)
+			result.add(fetchAsync(query));
+		return result;
+	}
+
+	/**
+	 * fetch() on one of maxInFlight pool threads. Cancelling the future aborts
+	 * the request in flight.
+	 */
+	public ListenableFuture<QueryResult> fetchAsync(String query) {
+		return fetchAsync(query, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param timeout
+	 *            the future fails with a TimeoutException and the request in
+	 *            flight gets aborted if there is no result by then, 0 for no
+	 *            deadline
+	 */
+	public ListenableFuture<QueryResult> fetchAsync(final String query, long timeout, TimeUnit unit) {
+		return submit(new Callable<QueryResult>() {
+			@Override
+			public QueryResult call() {
+				return fetch(query);
+			}
+		}, unit.toMillis(timeout));
+	}
+
+	public ListenableFuture<String> executeSqlAsync(String query) {
+		return executeSqlAsync(query, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * see fetchAsync(), a statement that already reached the server may
+	 * still take effect when the future gets cancelled or times out
+	 */
+	public ListenableFuture<String> executeSqlAsync(final String query, long timeout, TimeUnit unit) {
+		return submit(new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return executeSql(query);
+			}
+		}, unit.toMillis(timeout));
+	}
+
+	public ListenableFuture<List<TableInfo>> getTableInfoAsync() {
+		return getTableInfoAsync(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * see fetchAsync()
+	 */
+	public ListenableFuture<List<TableInfo>> getTableInfoAsync(long timeout, TimeUnit unit) {
+		return submit(new Callable<List<TableInfo>>() {
+			@Override
+			public List<TableInfo> call() {
+				return getTableInfo();
+			}
+		}, unit.toMillis(timeout));
+	}
+
+	private <T> ListenableFuture<T> submit(Callable<T> work, long timeoutMillis) {
+		AsyncCall<T> call = new AsyncCall<T>(work, timeoutMillis);
+		queryExecutor.execute(call);
+		return call.watch();
+	}
+
+	/**
+	 * lets the AsyncCall a request belongs to limit its timeouts and abort it
+	 */
+	private static HttpRequestInitializer cancellable(final HttpRequestInitializer credential) {
+		return new HttpRequestInitializer() {
+			@Override
+			public void initialize(HttpRequest request) throws IOException {
+				if (credential != null)
+					credential.initialize(request);
+				AsyncCall<?> call = AsyncCall.current();
+				if (call != null)
+					call.prepare(request);
+			}
+		};
+	}
+
+	/**
+	 * fetches a SELECT in windows of pageSize rows, see PagedFetch
+	 */
+	public PagedFetch fetchPaged(String query, int pageSize) {
+		return new PagedFetch(this, backgroundExecutor(), query, pageSize);
+	}
+
+	private synchronized ExecutorService backgroundExecutor() {
+		if (backgroundExecutor == null)
+			backgroundExecutor = Executors.newCachedThreadPool(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-background-%d").build());
+		return backgroundExecutor;
+	}
+
+	private static HttpStatus decodeStatus(int code) {
+		Optional<HttpStatus> status = HttpStatus.decode(code);
+		return status.isPresent() ? status.get() : HttpStatus.SC_METHOD_FAILURE;
+	}
+
+	/**
+	 * looks at the leading characters of a response in place, a successful
+	 * one of many megabytes does not get copied to find its status
+	 */
+	static HttpStatus getHttpStatus(String json) {
 		HttpStatus errorStatus = HttpStatus.SC_NO_CONTENT;
 
 		if (json == null)
 			return errorStatus;
 
-		json = json.trim();
+		// the bounds trim() would copy
+		int start = 0;
+		int end = json.length();
+		while (start < end && json.charAt(start) <= ' ')
+			start++;
+		while (end > start && json.charAt(end - 1) <= ' ')
+			end--;
 
-		if (json.length() < 3)
+		if (end - start < 3)
 			return errorStatus;
 
-		if (json.charAt(0) == '{')
+		if (json.charAt(start) == '{')
 			return HttpStatus.SC_OK;
 
-		int code = strToInt(json.substring(0, 3));
-		if (code < 0)
-			return errorStatus;
+		int code = 0;
+		for (int i = start; i < start + 3; i++) {
+			char c = json.charAt(i);
+			if (c < '0' || c > '9')
+				return errorStatus;
+			code = code * 10 + c - '0';
+		}
 
 		Optional<HttpStatus> status = HttpStatus.decode(code);
 		if (!status.isPresent())
@@ -299,30 +1366,59 @@ public class FusionTablesConnector implements Connector {
 		return status.get();
 	}
 
-	private static int strToInt(String s) {
-		int result = -1;
-		try {
-			result = Integer.valueOf(s);
-		} catch (NumberFormatException e) {
-		}
-		return result;
-	}
-
 	private static QueryResult createErrorResult(HttpStatus status, String errorMsg) {
 		return new QueryResult(status, null, errorMsg);
 	}
 
+	/**
+	 * the error in the response body, the exception message if there is none
+	 */
+	private static QueryResult createErrorResult(HttpResponseException e) {
+		HttpStatus status = decodeStatus(e.getStatusCode());
+		if (e instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) e).getDetails() != null)
+			return GftErrorResult.of(status, ((GoogleJsonResponseException) e).getDetails());
+
+		Optional<GftErrorResult> error = GftErrorResult.parse(status, e.getContent());
+		return error.isPresent() ? error.get() : createErrorResult(status, e.getMessage());
+	}
+
 	public static QueryResult deserializeGftJson(String json) {
+		return deserializeGftJson(json, new HashMap<String, String>());
+	}
+
+	/**
+	 * @param columnTypes
+	 *            Fusion Tables column types by column name, NUMBER and DATETIME
+	 *            columns get stored as primitives
+	 */
+	public static QueryResult deserializeGftJson(String json, Map<String, String> columnTypes) {
 
 		HttpStatus status = getHttpStatus(json);
 
-		if (status != HttpStatus.SC_OK)
-			return createErrorResult(status, json);
+		if (status != HttpStatus.SC_OK) {
+			Optional<GftErrorResult> error = GftErrorResult.parse(status, json);
+			return error.isPresent() ? error.get() : createErrorResult(status, json);
+		}
+
+		try {
+			return new QueryResult(HttpStatus.SC_OK, GftResponseStreamReader.readTable(json, columnTypes), null);
+		} catch (IOException e) {
+			return createErrorResult(HttpStatus.SC_METHOD_FAILURE, e.getMessage());
+		}
+	}
+
+	public static QueryResult deserializeGftJsonStream(InputStream json) {
+		return deserializeGftJsonStream(json, new HashMap<String, String>());
+	}
 
-		ObjectMapper jsonmapper = new ObjectMapper();
+	/**
+	 * @param columnTypes
+	 *            Fusion Tables column types by column name, NUMBER and DATETIME
+	 *            columns get stored as primitives
+	 */
+	public static QueryResult deserializeGftJsonStream(InputStream json, Map<String, String> columnTypes) {
 		try {
-			GftResponseJson data = jsonmapper.readValue(json, GftResponseJson.class);
-			return new QueryResult(HttpStatus.SC_OK, new DefaultTableModel(data.rows, data.columns), null);
+			return new QueryResult(HttpStatus.SC_OK, GftResponseStreamReader.readTable(json, columnTypes), null);
 		} catch (IOException e) {
 			return createErrorResult(HttpStatus.SC_METHOD_FAILURE, e.getMessage());
 		}
@@ -330,10 +1426,12 @@ public class FusionTablesConnector implements Connector {
 
 	@Override
 	public void clearStoredLoginData() {
+		forgetCredentials();
 		try {
 			// that's a hack. As a matter of fact the google machinerey will use
 			// "StoredCredential" as key
 			dataStoreFactory.createDataStore("StoredCredential").clear();
+			dataStoreFactory.close();
 			dataStoreFactory = null;
 		} catch (IOException e) {
 			logger.Error(e.getMessage());
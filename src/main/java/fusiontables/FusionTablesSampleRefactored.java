@@ -75,13 +75,14 @@ public class FusionTablesSampleRefactored {
   
 
   private static void insertData(String tableId) throws IOException {
-    String sql =
-        "INSERT INTO " + tableId + " (Text,Number,Location,Date) " + "VALUES (" + "'Google Inc', "
-            + "1, " + "'1600 Amphitheatre Parkway Mountain View, " + "CA 94043, USA','"
-            + new DateTime(new Date()) + "')";
+    SqlTemplate insert =
+        connector.prepare("INSERT INTO " + tableId + " (Text,Number,Location,Date) VALUES (?, ?, ?, ?)");
 
     try {
-      String response = connector.executeSql(sql);
+      String response = insert.newBinding()
+          .setAll("Google Inc", 1, "1600 Amphitheatre Parkway Mountain View, CA 94043, USA",
+              new DateTime(new Date()).toString())
+          .execute();
       System.out.println(response);
 
     } catch (IllegalArgumentException e) {
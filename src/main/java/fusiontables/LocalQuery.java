@@ -0,0 +1,507 @@
+package main.java.fusiontables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+
+import com.google.common.base.Optional;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+
+/**
+ * The part of Fusion Tables SQL a Replica answers itself:
+ * 
+ * <pre>
+ * SELECT * | column, ... | COUNT() | COUNT|SUM|AVG|MIN|MAX(column), ...
+ * FROM table [WHERE column =|&lt;|&lt;=|&gt;|&gt;= literal [AND ...]]
+ * [GROUP BY column, ...] [OFFSET n] [LIMIT n]
+ * </pre>
+ * 
+ * parse() returns absent for anything else, those queries go to the server.
+ * NUMBER columns compare as numbers, DATETIME columns as points in time, a
+ * DATETIME literal that does not parse sends the query to the server.
+ */
+final class LocalQuery {
+
+	private static final List<String> functions = Arrays.asList("COUNT", "SUM", "AVG", "MIN", "MAX");
+	private static final List<String> operators = Arrays.asList("=", "<", "<=", ">", ">=");
+	private static final String symbols = "(),*;<>=!'\"";
+
+	final String table;
+	private final boolean star;
+	private final List<Item> items;
+	private final List<Condition> conditions;
+	private final List<String> groupBy;
+	private final long offset;
+	private final long limit;
+
+	private static class Item {
+		/** null for plain columns */
+		final String function;
+		/** null for COUNT() */
+		final String column;
+
+		Item(String function, String column) {
+			this.function = function;
+			this.column = column;
+		}
+
+		String label() {
+			if (function == null)
+				return column;
+			return function + "(" + (column == null ? "" : column) + ")";
+		}
+	}
+
+	private static class Condition {
+		final String column;
+		final int operator;
+		final String literal;
+
+		Condition(String column, int operator, String literal) {
+			this.column = column;
+			this.operator = operator;
+			this.literal = literal;
+		}
+	}
+
+	private static class Token {
+		final String text;
+		final boolean quoted;
+
+		Token(String text, boolean quoted) {
+			this.text = text;
+			this.quoted = quoted;
+		}
+
+		boolean is(String keyword) {
+			return !quoted && text.equalsIgnoreCase(keyword);
+		}
+
+		boolean isName() {
+			return quoted || symbols.indexOf(text.charAt(0)) < 0;
+		}
+	}
+
+	private static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private LocalQuery(String table, boolean star, List<Item> items, List<Condition> conditions,
+			List<String> groupBy, long offset, long limit) {
+		this.table = table;
+		this.star = star;
+		this.items = items;
+		this.conditions = conditions;
+		this.groupBy = groupBy;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	static Optional<LocalQuery> parse(String sql) {
+		try {
+			return Optional.of(new Parser(tokenize(sql)).query());
+		} catch (Unsupported e) {
+			return Optional.absent();
+		}
+	}
+
+	private static List<Token> tokenize(String sql) throws Unsupported {
+		List<Token> result = new ArrayList<Token>();
+		int i = 0;
+		while (i < sql.length()) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c))
+				i++;
+			else if (c == '\'' || c == '"') {
+				StringBuilder sb = new StringBuilder();
+				int j = i + 1;
+				for (; j < sql.length() && sql.charAt(j) != c; j++) {
+					if (sql.charAt(j) == '\\' && j + 1 < sql.length())
+						j++;
+					sb.append(sql.charAt(j));
+				}
+				if (j == sql.length())
+					throw new Unsupported();
+				result.add(new Token(sb.toString(), true));
+				i = j + 1;
+			} else if (c == '<' || c == '>' || c == '=' || c == '!') {
+				int end = i + 1 < sql.length() && sql.charAt(i + 1) == '=' ? i + 2 : i + 1;
+				result.add(new Token(sql.substring(i, end), false));
+				i = end;
+			} else if (symbols.indexOf(c) >= 0) {
+				result.add(new Token(String.valueOf(c), false));
+				i++;
+			} else {
+				int j = i;
+				while (j < sql.length() && !Character.isWhitespace(sql.charAt(j)) && symbols.indexOf(sql.charAt(j)) < 0)
+					j++;
+				result.add(new Token(sql.substring(i, j), false));
+				i = j;
+			}
+		}
+		return result;
+	}
+
+	private static class Parser {
+		private final List<Token> tokens;
+		private int pos = 0;
+
+		Parser(List<Token> tokens) {
+			this.tokens = tokens;
+		}
+
+		private Token next() throws Unsupported {
+			if (pos == tokens.size())
+				throw new Unsupported();
+			return tokens.get(pos++);
+		}
+
+		private boolean accept(String keyword) {
+			if (pos < tokens.size() && tokens.get(pos).is(keyword)) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String keyword) throws Unsupported {
+			if (!accept(keyword))
+				throw new Unsupported();
+		}
+
+		private String name() throws Unsupported {
+			Token t = next();
+			if (!t.isName())
+				throw new Unsupported();
+			return t.text;
+		}
+
+		private long number() throws Unsupported {
+			try {
+				return Long.parseLong(next().text);
+			} catch (NumberFormatException e) {
+				throw new Unsupported();
+			}
+		}
+
+		LocalQuery query() throws Unsupported {
+			expect("SELECT");
+
+			boolean star = accept("*");
+			List<Item> items = new ArrayList<Item>();
+			if (!star)
+				do
+					items.add(item());
+				while (accept(","));
+
+			expect("FROM");
+			String table = name();
+
+			List<Condition> conditions = new ArrayList<Condition>();
+			if (accept("WHERE"))
+				do {
+					String column = name();
+					int operator = operators.indexOf(next().text);
+					Token literal = next();
+					if (operator < 0 || !literal.isName())
+						throw new Unsupported();
+					conditions.add(new Condition(column, operator, literal.text));
+				} while (accept("AND"));
+
+			List<String> groupBy = new ArrayList<String>();
+			if (accept("GROUP")) {
+				expect("BY");
+				do
+					groupBy.add(name());
+				while (accept(","));
+			}
+
+			long offset = accept("OFFSET") ? number() : 0;
+			long limit = accept("LIMIT") ? number() : Long.MAX_VALUE;
+
+			while (accept(";"))
+				;
+			if (pos < tokens.size())
+				throw new Unsupported();
+
+			return new LocalQuery(table, star, items, conditions, groupBy, offset, limit);
+		}
+
+		private Item item() throws Unsupported {
+			Token t = next();
+			if (!t.quoted && functions.contains(t.text.toUpperCase()) && accept("(")) {
+				String function = t.text.toUpperCase();
+				String column = accept(")") ? null : name();
+				if (column != null)
+					expect(")");
+				else if (!function.equals("COUNT"))
+					throw new Unsupported();
+				return new Item(function, column);
+			}
+			if (!t.isName())
+				throw new Unsupported();
+			return new Item(null, t.text);
+		}
+	}
+
+	/**
+	 * the conditions resolved against a table, literals parsed for the typed
+	 * columns
+	 */
+	private static class Filter {
+		final int[] columns;
+		final double[] numbers;
+		final long[] times;
+
+		Filter(int conditions) {
+			columns = new int[conditions];
+			numbers = new double[conditions];
+			times = new long[conditions];
+		}
+	}
+
+	/**
+	 * @return absent if the table lacks a column the query refers to
+	 */
+	Optional<QueryResult> evaluate(ReplicaTable t) {
+		Filter filter = new Filter(conditions.size());
+		for (int i = 0; i < conditions.size(); i++) {
+			Condition c = conditions.get(i);
+			int column = t.columnIndex(c.column);
+			if (column < 0)
+				return Optional.absent();
+			filter.columns[i] = column;
+			filter.numbers[i] = t.isNumber(column) ? parseNumber(c.literal) : Double.NaN;
+			if (t.isDateTime(column)) {
+				Date d = ColumnarTableModel.parseDateTime(ColumnarTableModel.dateTimeFormats(), c.literal);
+				if (d == null)
+					return Optional.absent();
+				filter.times[i] = d.getTime();
+			}
+		}
+
+		List<String> labels = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		List<List<String>> rows = new ArrayList<List<String>>();
+
+		boolean aggregate = false;
+		for (Item item : items)
+			aggregate |= item.function != null;
+
+		if (aggregate || !groupBy.isEmpty()) {
+			if (!group(t, filter, labels, types, rows))
+				return Optional.absent();
+		} else {
+			int[] columns = new int[star ? t.names.length : items.size()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = star ? i : t.columnIndex(items.get(i).column);
+				if (columns[i] < 0)
+					return Optional.absent();
+				labels.add(t.names[columns[i]]);
+				types.add(t.types[columns[i]]);
+			}
+
+			long matched = 0;
+			for (int r = 0; r < t.rowCount && rows.size() < limit; r++) {
+				if (!matches(t, r, filter) || matched++ < offset)
+					continue;
+				String[] row = new String[columns.length];
+				for (int i = 0; i < columns.length; i++)
+					row[i] = t.values[columns[i]][r];
+				rows.add(Arrays.asList(row));
+			}
+		}
+
+		return Optional.of(new QueryResult(HttpStatus.SC_OK, ColumnarTableModel.of(labels, rows, types), null));
+	}
+
+	private boolean matches(ReplicaTable t, int row, Filter filter) {
+		for (int i = 0; i < filter.columns.length; i++) {
+			int column = filter.columns[i];
+			int cmp;
+			if (t.isDateTime(column)) {
+				long value = t.times[column][row];
+				if (value == ReplicaTable.NULL_TIME)
+					return false;
+				cmp = value < filter.times[i] ? -1 : value == filter.times[i] ? 0 : 1;
+			} else if (!Double.isNaN(filter.numbers[i])) {
+				double value = t.numbers[column][row];
+				if (Double.isNaN(value))
+					return false;
+				cmp = Double.compare(value, filter.numbers[i]);
+			} else {
+				String value = t.values[column][row];
+				if (value == null)
+					return false;
+				cmp = value.compareTo(conditions.get(i).literal);
+			}
+
+			boolean match;
+			switch (conditions.get(i).operator) {
+			case 0:
+				match = cmp == 0;
+				break;
+			case 1:
+				match = cmp < 0;
+				break;
+			case 2:
+				match = cmp <= 0;
+				break;
+			case 3:
+				match = cmp > 0;
+				break;
+			default:
+				match = cmp >= 0;
+			}
+			if (!match)
+				return false;
+		}
+		return true;
+	}
+
+	private static class Accumulator {
+		long count = 0;
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		String minString = null;
+		String maxString = null;
+
+		void add(double value) {
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		void add(String value) {
+			count++;
+			if (minString == null || value.compareTo(minString) < 0)
+				minString = value;
+			if (maxString == null || value.compareTo(maxString) > 0)
+				maxString = value;
+		}
+	}
+
+	private boolean group(ReplicaTable t, Filter filter, List<String> labels, List<String> types,
+			List<List<String>> rows) {
+		if (star)
+			return false;
+
+		int[] keyColumns = new int[groupBy.size()];
+		for (int i = 0; i < keyColumns.length; i++)
+			if ((keyColumns[i] = t.columnIndex(groupBy.get(i))) < 0)
+				return false;
+
+		// per item the column it reads, for plain items its place in the key
+		int[] columns = new int[items.size()];
+		for (int i = 0; i < columns.length; i++) {
+			Item item = items.get(i);
+			if (item.function == null) {
+				columns[i] = groupBy.indexOf(item.column);
+				if (columns[i] < 0)
+					return false;
+				types.add(t.types[keyColumns[columns[i]]]);
+			} else if (item.column == null) {
+				columns[i] = -1;
+				types.add(ColumnarTableModel.NUMBER);
+			} else {
+				columns[i] = t.columnIndex(item.column);
+				if (columns[i] < 0)
+					return false;
+				boolean numeric = item.function.equals("SUM") || item.function.equals("AVG");
+				if (numeric && !t.isNumber(columns[i]))
+					return false;
+				types.add(numeric || item.function.equals("COUNT") ? ColumnarTableModel.NUMBER : t.types[columns[i]]);
+			}
+			labels.add(item.label());
+		}
+
+		Map<List<String>, Accumulator[]> groups = new LinkedHashMap<List<String>, Accumulator[]>();
+		if (keyColumns.length == 0)
+			groups.put(Collections.<String> emptyList(), accumulators());
+
+		for (int r = 0; r < t.rowCount; r++) {
+			if (!matches(t, r, filter))
+				continue;
+
+			String[] key = new String[keyColumns.length];
+			for (int i = 0; i < key.length; i++)
+				key[i] = t.values[keyColumns[i]][r];
+			Accumulator[] acc = groups.get(Arrays.asList(key));
+			if (acc == null)
+				groups.put(Arrays.asList(key), acc = accumulators());
+
+			for (int i = 0; i < columns.length; i++) {
+				Item item = items.get(i);
+				if (item.function == null)
+					continue;
+				if (item.column == null)
+					acc[i].count++;
+				else if (t.isNumber(columns[i])) {
+					double value = t.numbers[columns[i]][r];
+					if (!Double.isNaN(value))
+						acc[i].add(value);
+				} else {
+					String value = t.values[columns[i]][r];
+					if (value != null && value.length() > 0)
+						acc[i].add(value);
+				}
+			}
+		}
+
+		long skipped = 0;
+		for (Map.Entry<List<String>, Accumulator[]> g : groups.entrySet()) {
+			if (rows.size() >= limit)
+				break;
+			if (skipped++ < offset)
+				continue;
+
+			String[] row = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				Item item = items.get(i);
+				row[i] = item.function == null ? g.getKey().get(columns[i])
+						: result(item.function, item.column != null && t.isNumber(columns[i]), g.getValue()[i]);
+			}
+			rows.add(Arrays.asList(row));
+		}
+		return true;
+	}
+
+	private Accumulator[] accumulators() {
+		Accumulator[] result = new Accumulator[items.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new Accumulator();
+		return result;
+	}
+
+	private static String result(String function, boolean numeric, Accumulator a) {
+		if (function.equals("COUNT"))
+			return Long.toString(a.count);
+		if (a.count == 0)
+			return null;
+		if (function.equals("SUM"))
+			return ColumnarTableModel.formatNumber(a.sum);
+		if (function.equals("AVG"))
+			return ColumnarTableModel.formatNumber(a.sum / a.count);
+		if (function.equals("MIN"))
+			return numeric ? ColumnarTableModel.formatNumber(a.min) : a.minString;
+		return numeric ? ColumnarTableModel.formatNumber(a.max) : a.maxString;
+	}
+
+	private static double parseNumber(String literal) {
+		try {
+			return Double.parseDouble(literal);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package main.java.fusiontables;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+
+/**
+ * Runs a SELECT in OFFSET/LIMIT windows of pageSize rows and returns one
+ * QueryResult per window. The next window is fetched in the background while
+ * the current one is consumed, so at most two pages are held in memory.
+ *
+ * Queries that are no SELECT or already contain OFFSET or LIMIT are fetched in
+ * one piece. Without ORDER BY, pages follow Fusion Tables' natural row order.
+ */
+public class PagedFetch implements Iterator<QueryResult> {
+
+	private static final Pattern offsetOrLimit = Pattern.compile("\\b(OFFSET|LIMIT)\\s+\\d+",
+			Pattern.CASE_INSENSITIVE);
+
+	private final FusionTablesConnector connector;
+	private final ExecutorService executor;
+	private final String query;
+	private final int pageSize;
+	private final boolean pageable;
+
+	private Future<QueryResult> pending;
+	private QueryResult ready;
+	private long offset = 0;
+
+	PagedFetch(FusionTablesConnector connector, ExecutorService executor, String query, int pageSize) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("page size must be positive");
+
+		this.connector = connector;
+		this.executor = executor;
+		this.query = stripTerminator(query);
+		this.pageSize = pageSize;
+		this.pageable = SqlStatements.startsWithAny(query, new String[] { "SELECT" })
+				&& !offsetOrLimit.matcher(query).find();
+
+		pending = submit(pageable ? page(0) : query);
+	}
+
+	private static String stripTerminator(String query) {
+		String result = query.trim();
+		while (result.endsWith(";"))
+			result = result.substring(0, result.length() - 1).trim();
+		return result;
+	}
+
+	private String page(long offset) {
+		return query + " OFFSET " + offset + " LIMIT " + pageSize;
+	}
+
+	private Future<QueryResult> submit(final String pageQuery) {
+		return executor.submit(new Callable<QueryResult>() {
+			@Override
+			public QueryResult call() throws Exception {
+				return connector.fetchStreamed(pageQuery);
+			}
+		});
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (ready != null)
+			return true;
+		if (pending == null)
+			return false;
+
+		ready = await(pending);
+		pending = null;
+
+		boolean fullPage = ready.status == HttpStatus.SC_OK && ready.data.isPresent()
+				&& ready.data.get().getRowCount() == pageSize;
+
+		if (pageable && fullPage) {
+			offset += pageSize;
+			pending = submit(page(offset));
+		}
+
+		// the page after an exactly full last page comes back empty
+		if (offset > 0 && !fullPage && ready.status == HttpStatus.SC_OK && ready.data.isPresent()
+				&& ready.data.get().getRowCount() == 0) {
+			ready = null;
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public QueryResult next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		QueryResult result = ready;
+		ready = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * stops prefetching, to be called if the iteration ends early
+	 */
+	public void close() {
+		if (pending != null)
+			pending.cancel(true);
+		pending = null;
+		ready = null;
+	}
+
+	private static QueryResult await(Future<QueryResult> page) {
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new QueryResult(HttpStatus.SC_METHOD_FAILURE, null, "interrupted");
+		} catch (ExecutionException e) {
+			return new QueryResult(HttpStatus.SC_METHOD_FAILURE, null, e.getCause().getMessage());
+		}
+	}
+}
@@ -4,54 +4,244 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Maps;
 import com.google.api.client.util.store.DataStoreFactory;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Keeps the key value map in java.util.prefs.Preferences.
+ *
+ * The legacy mode serializes the whole map into one entry on every change.
+ * The incremental mode keeps one entry per key in a child node named like the
+ * store and writes changed keys behind, coalescing the changes of
+ * flushDelayMillis. clear() is written immediately, pending writes are flushed
+ * by close() and on JVM shutdown. Legacy data is migrated on first use.
+ */
 public class PreferencesDataStore<V extends Serializable> extends CustomDataStore<V> {
 
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-preferences-flusher").build());
+
+	/**
+	 * stores with pending writes, flushed on shutdown
+	 */
+	private static final Set<PreferencesDataStore<?>> pendingStores = Collections
+			.synchronizedSet(new HashSet<PreferencesDataStore<?>>());
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("ftc-preferences-shutdown-flush") {
+			@Override
+			public void run() {
+				List<PreferencesDataStore<?>> stores;
+				synchronized (pendingStores) {
+					stores = new ArrayList<PreferencesDataStore<?>>(pendingStores);
+				}
+				for (PreferencesDataStore<?> s : stores)
+					try {
+						s.close();
+					} catch (IOException e) {
+						// nowhere left to report to
+					}
+			}
+		});
+	}
+
 	private final Preferences prefs;
+	private final Optional<Preferences> entries;
+	private final long flushDelayMillis;
+
+	private final Object flushLock = new Object();
+	private final Set<String> dirtyKeys = new HashSet<String>();
+	private ScheduledFuture<?> scheduledFlush = null;
 
 	protected PreferencesDataStore(DataStoreFactory dataStoreFactory, String id,
 			@SuppressWarnings("rawtypes") Class carrier) {
+		this(dataStoreFactory, id, carrier, false, 0);
+	}
+
+	protected PreferencesDataStore(DataStoreFactory dataStoreFactory, String id,
+			@SuppressWarnings("rawtypes") Class carrier, boolean incremental, long flushDelayMillis) {
 		super(dataStoreFactory, id);
 
 		prefs = Preferences.userNodeForPackage(carrier);
+		this.flushDelayMillis = flushDelayMillis;
+
+		try {
+			if (incremental) {
+				entries = Optional.of(prefs.node(getId()));
+				load(loadEntries());
+			} else {
+				entries = Optional.absent();
+				load(loadLegacy());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (BackingStoreException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
+	private HashMap<String, byte[]> loadLegacy() throws IOException {
 		ByteArrayInputStream s = new ByteArrayInputStream(prefs.getByteArray(getId(), new byte[0]));
 
 		if (s.available() <= 0)
-			keyValueMap = Maps.newHashMap();
+			return Maps.newHashMap();
 		else
-			try {
-				keyValueMap = IOUtils.deserialize(s);
-				try {
-					save();
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+			return IOUtils.deserialize(s);
+	}
+
+	private HashMap<String, byte[]> loadEntries() throws IOException, BackingStoreException {
+		HashMap<String, byte[]> result = Maps.newHashMap();
+		Preferences node = entries.get();
+
+		for (String key : node.keys()) {
+			byte[] value = node.getByteArray(key, null);
+			if (value != null)
+				result.put(key, value);
+		}
+
+		HashMap<String, byte[]> legacy = loadLegacy();
+		if (!legacy.isEmpty()) {
+			for (Map.Entry<String, byte[]> e : legacy.entrySet())
+				if (!result.containsKey(e.getKey())) {
+					result.put(e.getKey(), e.getValue());
+					node.putByteArray(e.getKey(), e.getValue());
 				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			node.flush();
+			prefs.remove(getId());
+		}
+
+		return result;
 	}
 
 	@Override
 	void save() throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		IOUtils.serialize(keyValueMap, buffer);
-		prefs.putByteArray(getId(), buffer.toByteArray());
+		synchronized (flushLock) {
+			if (entries.isPresent()) {
+				saveEntries();
+				return;
+			}
+
+			// snapshot taken inside the lock, so the last write has all changes
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			IOUtils.serialize(new HashMap<String, byte[]>(keyValueMap), buffer);
+			prefs.putByteArray(getId(), buffer.toByteArray());
+		}
+	}
+
+	/**
+	 * rewrites all entries, called on clear() with all stripes locked
+	 */
+	private void saveEntries() throws IOException {
+		Preferences node = entries.get();
+		try {
+			node.clear();
+			for (Map.Entry<String, byte[]> e : keyValueMap.entrySet())
+				node.putByteArray(e.getKey(), e.getValue());
+			node.flush();
+		} catch (BackingStoreException e) {
+			throw new IOException(e.getMessage());
+		}
+		synchronized (dirtyKeys) {
+			dirtyKeys.clear();
+		}
+	}
+
+	@Override
+	void saveKey(String key) throws IOException {
+		if (!entries.isPresent()) {
+			save();
+			return;
+		}
+
+		synchronized (dirtyKeys) {
+			dirtyKeys.add(key);
+			if (scheduledFlush == null) {
+				pendingStores.add(this);
+				scheduledFlush = flusher.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				}, flushDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * writes the keys changed since the last flush
+	 */
+	public void flush() {
+		// one flush at a time, a value read here can't overtake a newer one
+		synchronized (flushLock) {
+			List<String> keys;
+			synchronized (dirtyKeys) {
+				if (scheduledFlush != null)
+					scheduledFlush.cancel(false);
+				scheduledFlush = null;
+				pendingStores.remove(this);
+
+				keys = new ArrayList<String>(dirtyKeys);
+				dirtyKeys.clear();
+			}
+
+			if (!entries.isPresent())
+				return;
+
+			for (String key : keys) {
+				byte[] value = keyValueMap.get(key);
+				if (value == null)
+					entries.get().remove(key);
+				else
+					entries.get().putByteArray(key, value);
+			}
+		}
+	}
+
+	/**
+	 * flushes pending writes and forces them to the backing store
+	 */
+	public void close() throws IOException {
+		flush();
+		try {
+			if (entries.isPresent())
+				entries.get().flush();
+			else
+				prefs.flush();
+		} catch (BackingStoreException e) {
+			throw new IOException(e.getMessage());
+		}
 	}
 
 	@Override
 	public PreferencesDataStoreFactory getDataStoreFactory() {
 		return (PreferencesDataStoreFactory) super.getDataStoreFactory();
 	}
-	
-	public void Clear()
-	{
+
+	public void Clear() {
 		prefs.remove(getId());
+		if (entries.isPresent())
+			try {
+				entries.get().clear();
+			} catch (BackingStoreException e) {
+				throw new RuntimeException(e);
+			}
 	}
 
 }
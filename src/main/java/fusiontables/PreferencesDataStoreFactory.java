@@ -2,22 +2,54 @@ package main.java.fusiontables;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.api.client.util.store.AbstractDataStoreFactory;
 import com.google.api.client.util.store.DataStore;
 
 public class PreferencesDataStoreFactory extends AbstractDataStoreFactory {
 
+	public static final long DEFAULT_FLUSH_DELAY_MILLIS = 200;
+
 	private final Class<?> carrierNode;
-	
+	private final boolean incremental;
+	private final List<PreferencesDataStore<?>> stores = new ArrayList<PreferencesDataStore<?>>();
+
 	public PreferencesDataStoreFactory(Class<?> carrierNode)
+	{
+		this(carrierNode, false);
+	}
+
+	/**
+	 * @param incremental
+	 *            one preferences entry per key, written behind. See
+	 *            PreferencesDataStore.
+	 */
+	public PreferencesDataStoreFactory(Class<?> carrierNode, boolean incremental)
 	{
 		this.carrierNode = carrierNode;
+		this.incremental = incremental;
 	}
-	
+
 	@Override
 	protected <V extends Serializable> DataStore<V> createDataStore(String id) throws IOException {
-		return new PreferencesDataStore<V>(this, id, carrierNode);
+		PreferencesDataStore<V> result = new PreferencesDataStore<V>(this, id, carrierNode, incremental,
+				DEFAULT_FLUSH_DELAY_MILLIS);
+		synchronized (stores) {
+			stores.add(result);
+		}
+		return result;
+	}
+
+	/**
+	 * flushes pending writes of all stores created
+	 */
+	public void close() throws IOException {
+		synchronized (stores) {
+			for (PreferencesDataStore<?> s : stores)
+				s.close();
+		}
 	}
 
 }
@@ -0,0 +1,419 @@
+package main.java.fusiontables;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cg.common.core.Logging;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.cg.ftc.shared.structures.TableInfo;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+import main.java.fusiontables.export.ColumnarExporter;
+import main.java.fusiontables.export.ColumnarReader;
+import main.java.fusiontables.export.ExportFormat;
+
+/**
+ * Local copies of chosen tables that fetch() answers simple queries from, see
+ * LocalQuery, without a round trip. Each table is kept in a file of columnar
+ * exports and survives restarts.
+ * 
+ * Fusion Tables has no change feed. A sync therefore fetches only the rows
+ * past the ones mirrored (ORDER BY ROWID OFFSET), which catches inserts, and
+ * every fullSyncInterval-th sync reloads the table to catch updates and
+ * deletes by other clients. Writes through the own connector make queries on
+ * the table go to the server until the next sync, a full one unless they only
+ * inserted.
+ */
+public class Replica {
+
+	public static final int DEFAULT_FULL_SYNC_INTERVAL = 10;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-replica-sync").build());
+
+	private final FusionTablesConnector connector;
+	private final Logging logger;
+	private final File directory;
+	private final ConcurrentHashMap<String, Mirror> mirrors = new ConcurrentHashMap<String, Mirror>();
+	private final AtomicLong localQueries = new AtomicLong();
+	private final AtomicLong remoteQueries = new AtomicLong();
+	private volatile int fullSyncInterval = DEFAULT_FULL_SYNC_INTERVAL;
+	private ScheduledFuture<?> periodicSync = null;
+
+	final TableInfoListener tableInfoListener = new TableInfoListener() {
+		@Override
+		public void tablesChanged(TableInfoChanges changes) {
+			for (TableInfo t : changes.modified)
+				written(t.id, false);
+			for (TableInfo t : changes.removed)
+				remove(t.id);
+		}
+	};
+
+	private static class Mirror {
+		final String tableId;
+		final File file;
+		volatile ReplicaTable table = null;
+		final AtomicLong writes = new AtomicLong();
+		volatile long syncedWrites = -1;
+		volatile boolean fullSyncNeeded = true;
+		int syncsSinceFull = 0;
+
+		Mirror(String tableId, File file) {
+			this.tableId = tableId;
+			this.file = file;
+		}
+
+		boolean isCurrent() {
+			return table != null && syncedWrites == writes.get();
+		}
+	}
+
+	Replica(FusionTablesConnector connector, Logging logger, File directory) throws IOException {
+		this.connector = connector;
+		this.logger = logger;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("can't create " + directory);
+	}
+
+	/**
+	 * mirrors the table, starting from what an earlier mirror of it left on
+	 * disk, and syncs it
+	 */
+	public void mirror(String tableNameOrId) throws IOException {
+		String id = connector.resolveTableId(tableNameOrId);
+		Mirror m = new Mirror(id, new File(directory, id + ".ftc"));
+		Mirror existing = mirrors.putIfAbsent(id, m);
+		if (existing != null)
+			m = existing;
+		else if (m.file.exists())
+			synchronized (m) {
+				try {
+					m.table = load(m.file);
+					m.fullSyncNeeded = false;
+				} catch (IOException e) {
+					logger.Info("replica of " + id + " unreadable, reloading: " + e.getMessage());
+				}
+			}
+
+		sync(m);
+	}
+
+	/**
+	 * stops mirroring the table and deletes its file
+	 */
+	public void unmirror(String tableNameOrId) {
+		remove(connector.resolveTableId(tableNameOrId));
+	}
+
+	private void remove(String tableId) {
+		Mirror m = mirrors.remove(tableId);
+		if (m != null)
+			synchronized (m) {
+				m.table = null;
+				m.file.delete();
+			}
+	}
+
+	/**
+	 * IDs of the mirrored tables
+	 */
+	public Set<String> getMirroredTables() {
+		return Collections.unmodifiableSet(new HashSet<String>(mirrors.keySet()));
+	}
+
+	/**
+	 * @return the number of rows mirrored, -1 for tables not mirrored
+	 */
+	public int getRowCount(String tableNameOrId) {
+		Mirror m = mirrors.get(connector.resolveTableId(tableNameOrId));
+		ReplicaTable t = m == null ? null : m.table;
+		return t == null ? -1 : t.rowCount;
+	}
+
+	/**
+	 * @param syncs
+	 *            every that many syncs of a table reload it as a whole, 1 for
+	 *            full syncs only
+	 */
+	public Replica setFullSyncInterval(int syncs) {
+		fullSyncInterval = Math.max(1, syncs);
+		return this;
+	}
+
+	/**
+	 * syncs all mirrored tables every periodMillis, failures get logged
+	 */
+	public synchronized void startSync(long periodMillis) {
+		stopSync();
+		periodicSync = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					logger.Info("replica sync failed: " + e.getMessage());
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopSync() {
+		if (periodicSync != null)
+			periodicSync.cancel(false);
+		periodicSync = null;
+	}
+
+	/**
+	 * syncs all mirrored tables
+	 * 
+	 * @throws IOException
+	 *             the first failure, after all tables were tried
+	 */
+	public void sync() throws IOException {
+		IOException failure = null;
+		for (Mirror m : mirrors.values())
+			try {
+				sync(m);
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		if (failure != null)
+			throw failure;
+	}
+
+	public void sync(String tableNameOrId) throws IOException {
+		Mirror m = mirrors.get(connector.resolveTableId(tableNameOrId));
+		if (m == null)
+			throw new IllegalArgumentException(tableNameOrId + " is not mirrored");
+		sync(m);
+	}
+
+	private void sync(Mirror m) throws IOException {
+		synchronized (m) {
+			if (mirrors.get(m.tableId) != m)
+				return;
+
+			// writes during the sync can set the flag again
+			long writes = m.writes.get();
+			boolean full = m.table == null || m.fullSyncNeeded || ++m.syncsSinceFull >= fullSyncInterval;
+			m.fullSyncNeeded = false;
+
+			try {
+				if (full)
+					fullSync(m);
+				else
+					try {
+						deltaSync(m);
+					} catch (ColumnsChanged e) {
+						fullSync(m);
+					}
+			} catch (IOException e) {
+				m.fullSyncNeeded = true;
+				throw e;
+			}
+			m.syncedWrites = writes;
+		}
+	}
+
+	private static class ColumnsChanged extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ColumnsChanged(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * in ROWID order, so a delta sync's OFFSET skips exactly the rows it has
+	 */
+	private String select(Mirror m) {
+		return "SELECT * FROM " + m.tableId + " ORDER BY ROWID";
+	}
+
+	private void fullSync(Mirror m) throws IOException {
+		File tmp = new File(directory, m.tableId + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			connector.export(select(m), ExportFormat.COLUMNAR, out.getChannel());
+		} catch (IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+		out.close();
+
+		if (m.file.exists() && !m.file.delete() || !tmp.renameTo(m.file))
+			throw new IOException("can't replace " + m.file);
+
+		m.table = load(m.file);
+		m.syncsSinceFull = 0;
+	}
+
+	/**
+	 * appends the rows past the mirrored ones to the file and the table
+	 */
+	private void deltaSync(Mirror m) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(m.file, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			long start = channel.size();
+			channel.position(start);
+
+			long rows;
+			try {
+				rows = connector.export(select(m) + " OFFSET " + m.table.rowCount, ExportFormat.COLUMNAR, channel);
+			} catch (IOException e) {
+				channel.truncate(start);
+				throw e;
+			}
+
+			if (rows == 0)
+				channel.truncate(start);
+			else
+				try {
+					m.table = read(channel, start, m.table);
+				} catch (IOException e) {
+					throw new ColumnsChanged(e);
+				}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static ReplicaTable load(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			return read(f.getChannel(), 0, null);
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * reads the exports from position start on, appending to base if not null.
+	 * Read, not mapped: a mapping lasts until it is garbage collected and
+	 * keeps the file from being deleted or replaced on Windows.
+	 */
+	private static ReplicaTable read(FileChannel channel, long start, ReplicaTable base) throws IOException {
+		long size = channel.size() - start;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("replica file too large");
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, start + buffer.position()) < 0)
+				throw new EOFException("replica file truncated");
+		buffer.flip();
+
+		ReplicaTable.Builder builder = base == null ? null : base.append();
+
+		while (buffer.hasRemaining()) {
+			ColumnarReader reader = new ColumnarReader(buffer);
+			if (builder == null)
+				builder = new ReplicaTable.Builder(reader.getColumnNames(), fusionTablesTypes(reader.getColumnTypes()));
+			reader.read(builder);
+		}
+
+		if (builder == null)
+			throw new IOException("empty replica file");
+		return builder.build();
+	}
+
+	private static List<String> fusionTablesTypes(byte[] types) {
+		List<String> result = new ArrayList<String>(types.length);
+		for (byte t : types)
+			result.add(t == ColumnarExporter.FLOAT64 ? ColumnarTableModel.NUMBER
+					: t == ColumnarExporter.TIMESTAMP_MILLIS ? ColumnarTableModel.DATETIME : "STRING");
+		return result;
+	}
+
+	/**
+	 * answers the query from the mirror of the table it reads, if that is
+	 * current and the query simple enough
+	 */
+	Optional<QueryResult> query(String sql) {
+		if (mirrors.isEmpty() || !SqlStatements.isRead(sql))
+			return Optional.absent();
+
+		Optional<String> from = SqlStatements.fromTable(sql);
+		Mirror m = from.isPresent() ? mirrors.get(connector.getTableNameResolver().resolve(from.get())) : null;
+		if (m == null)
+			return Optional.absent();
+
+		ReplicaTable t = m.table;
+		Optional<QueryResult> result = Optional.absent();
+		if (t != null && m.isCurrent()) {
+			Optional<LocalQuery> q = LocalQuery.parse(sql);
+			if (q.isPresent())
+				result = q.get().evaluate(t);
+		}
+
+		(result.isPresent() ? localQueries : remoteQueries).incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * a statement of the own connector changed the table
+	 * 
+	 * @param inserted
+	 *            true if it only inserted rows
+	 */
+	void written(String tableId, boolean inserted) {
+		Mirror m = mirrors.get(tableId);
+		if (m == null)
+			return;
+		if (!inserted)
+			m.fullSyncNeeded = true;
+		m.writes.incrementAndGet();
+	}
+
+	/**
+	 * the connector talks to another account or endpoint, queries go to the
+	 * server until a full sync reloaded the mirrors from there
+	 */
+	void connectionChanged() {
+		for (Mirror m : mirrors.values())
+			written(m.tableId, false);
+	}
+
+	/**
+	 * queries on mirrored tables answered locally
+	 */
+	public long getLocalQueries() {
+		return localQueries.get();
+	}
+
+	/**
+	 * queries on mirrored tables that went to the server
+	 */
+	public long getRemoteQueries() {
+		return remoteQueries.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d tables mirrored, %d local and %d remote queries", mirrors.size(), localQueries.get(),
+				remoteQueries.get());
+	}
+}
@@ -0,0 +1,173 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+import main.java.fusiontables.deserialize.RowSink;
+
+/**
+ * Immutable snapshot of a mirrored table, column by column. NUMBER columns
+ * are kept parsed as well, NaN for nulls and values that do not parse,
+ * DATETIME columns as epoch millis, NULL_TIME for those.
+ * 
+ * A Builder appends behind the rows of the snapshot it started from into the
+ * same arrays as long as they have room, the snapshot never reads that far.
+ */
+final class ReplicaTable {
+
+	static final long NULL_TIME = Long.MIN_VALUE;
+
+	final String[] names;
+	final String[] types;
+	final String[][] values;
+	final double[][] numbers;
+	final long[][] times;
+	final int rowCount;
+
+	private ReplicaTable(String[] names, String[] types, String[][] values, double[][] numbers, long[][] times,
+			int rowCount) {
+		this.names = names;
+		this.types = types;
+		this.values = values;
+		this.numbers = numbers;
+		this.times = times;
+		this.rowCount = rowCount;
+	}
+
+	/**
+	 * @return -1 for unknown columns
+	 */
+	int columnIndex(String name) {
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	boolean isNumber(int column) {
+		return numbers[column] != null;
+	}
+
+	boolean isDateTime(int column) {
+		return times[column] != null;
+	}
+
+	Builder append() {
+		return new Builder(this);
+	}
+
+	static class Builder implements RowSink {
+		private final String[] names;
+		private final String[] types;
+		private String[][] values;
+		private double[][] numbers;
+		private long[][] times;
+		private int rowCount;
+		private boolean rowStarted = false;
+		private SimpleDateFormat[] dateTimeFormats = null;
+
+		Builder(List<String> columnNames, List<String> columnTypes) {
+			names = columnNames.toArray(new String[columnNames.size()]);
+			types = columnTypes.toArray(new String[columnTypes.size()]);
+			values = new String[names.length][16];
+			numbers = new double[names.length][];
+			times = new long[names.length][];
+			for (int i = 0; i < names.length; i++)
+				if (ColumnarTableModel.NUMBER.equalsIgnoreCase(types[i]))
+					numbers[i] = new double[16];
+				else if (ColumnarTableModel.DATETIME.equalsIgnoreCase(types[i]))
+					times[i] = new long[16];
+		}
+
+		private Builder(ReplicaTable base) {
+			names = base.names;
+			types = base.types;
+			values = base.values.clone();
+			numbers = base.numbers.clone();
+			times = base.times.clone();
+			rowCount = base.rowCount;
+		}
+
+		@Override
+		public void columns(List<String> columns) throws IOException {
+			if (!columns.equals(Arrays.asList(names)))
+				throw new IOException("columns changed from " + Arrays.asList(names) + " to " + columns);
+		}
+
+		@Override
+		public void cell(int column, String value) {
+			if (!rowStarted)
+				startRow();
+			if (column >= names.length)
+				return;
+
+			values[column][rowCount] = value;
+			if (numbers[column] != null)
+				numbers[column][rowCount] = parseNumber(value);
+			else if (times[column] != null)
+				times[column][rowCount] = parseTime(value);
+		}
+
+		@Override
+		public void endRow() {
+			if (!rowStarted)
+				startRow();
+			rowCount++;
+			rowStarted = false;
+		}
+
+		/**
+		 * cells missing in the row stay null, whatever a failed append left
+		 */
+		private void startRow() {
+			if (names.length > 0 && rowCount == values[0].length)
+				grow();
+			for (int c = 0; c < names.length; c++) {
+				values[c][rowCount] = null;
+				if (numbers[c] != null)
+					numbers[c][rowCount] = Double.NaN;
+				else if (times[c] != null)
+					times[c][rowCount] = NULL_TIME;
+			}
+			rowStarted = true;
+		}
+
+		private void grow() {
+			int capacity = Math.max(16, rowCount * 2);
+			for (int c = 0; c < names.length; c++) {
+				values[c] = Arrays.copyOf(values[c], capacity);
+				if (numbers[c] != null)
+					numbers[c] = Arrays.copyOf(numbers[c], capacity);
+				else if (times[c] != null)
+					times[c] = Arrays.copyOf(times[c], capacity);
+			}
+		}
+
+		private static double parseNumber(String value) {
+			if (value == null || value.length() == 0)
+				return Double.NaN;
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+
+		private long parseTime(String value) {
+			if (value == null || value.length() == 0)
+				return NULL_TIME;
+			if (dateTimeFormats == null)
+				dateTimeFormats = ColumnarTableModel.dateTimeFormats();
+			Date d = ColumnarTableModel.parseDateTime(dateTimeFormats, value);
+			return d == null ? NULL_TIME : d.getTime();
+		}
+
+		ReplicaTable build() {
+			return new ReplicaTable(names, types, values, numbers, times, rowCount);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Paces the requests of a connector. Requests wait in a queue ordered by
+ * priority lane, then arrival, and the head of the queue takes a permit from a
+ * token bucket before it runs, so interactive requests overtake queued bulk
+ * requests.
+ *
+ * Without a configured rate there is no token bucket until the service
+ * answers with a rate limit response (403 rateLimitExceeded /
+ * userRateLimitExceeded, 429). Those are retried with exponential backoff and
+ * full jitter and halve the rate, starting at ADAPTIVE_REQUESTS_PER_SECOND if
+ * there was no limit. The rate then recovers additively with every success, up
+ * to the configured rate or back to no limit. 5xx responses are retried the
+ * same way, but only for requests that are safe to repeat.
+ */
+public class RequestScheduler {
+
+	public enum Priority {
+		INTERACTIVE, BULK
+	}
+
+	interface Request<T> {
+		T execute() throws IOException;
+	}
+
+	/**
+	 * no limit until the service asks to slow down
+	 */
+	public static final double DEFAULT_REQUESTS_PER_SECOND = 0;
+
+	/**
+	 * rate after the first rate limit response without a configured rate,
+	 * the default per user quota of Google APIs
+	 */
+	public static final double ADAPTIVE_REQUESTS_PER_SECOND = 10;
+
+	/**
+	 * recovered to this, an adaptive limit is lifted again
+	 */
+	private static final double ADAPTIVE_CEILING = 10 * ADAPTIVE_REQUESTS_PER_SECOND;
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final long DEFAULT_BASE_BACKOFF_MILLIS = 500;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 32000;
+
+	private static final double MIN_REQUESTS_PER_SECOND = 0.5;
+	// how often a wait for a permit checks for cancellation
+	private static final long PERMIT_SLICE_MILLIS = 10;
+
+	private static class Ticket implements Comparable<Ticket> {
+		final Priority priority;
+		final long sequence;
+
+		Ticket(Priority priority, long sequence) {
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Ticket other) {
+			if (priority != other.priority)
+				return priority.compareTo(other.priority);
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+	private final int[] depth = new int[Priority.values().length];
+	private Ticket acquiring = null;
+	private long sequence = 0;
+
+	private final RateLimiter limiter;
+	private volatile double configuredRate;
+	/**
+	 * whether requests take permits from the limiter
+	 */
+	private volatile boolean limited;
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long baseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+	private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+	private final Random random = new Random();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong serverErrors = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+	private final AtomicLong permitWaitMicros = new AtomicLong();
+
+	/**
+	 * @param requestsPerSecond
+	 *            0 for no limit until a rate limit response
+	 */
+	RequestScheduler(double requestsPerSecond) {
+		limiter = RateLimiter.create(ADAPTIVE_REQUESTS_PER_SECOND);
+		setRate(requestsPerSecond);
+	}
+
+	/**
+	 * @param requestsPerSecond
+	 *            0 for no limit until a rate limit response
+	 */
+	public RequestScheduler setRate(double requestsPerSecond) {
+		if (requestsPerSecond < 0)
+			throw new IllegalArgumentException("negative rate");
+		synchronized (limiter) {
+			configuredRate = requestsPerSecond;
+			limited = requestsPerSecond > 0;
+			if (limited)
+				limiter.setRate(requestsPerSecond);
+		}
+		return this;
+	}
+
+	public RequestScheduler setMaxRetries(int value) {
+		maxRetries = value;
+		return this;
+	}
+
+	public RequestScheduler setBackoff(long baseMillis, long maxMillis) {
+		baseBackoffMillis = baseMillis;
+		maxBackoffMillis = maxMillis;
+		return this;
+	}
+
+	/**
+	 * runs the request in its lane, retrying as described above
+	 * 
+	 * @param idempotent
+	 *            if the request may be repeated after a 5xx response
+	 */
+	<T> T execute(Priority priority, boolean idempotent, Request<T> request) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			awaitTurn(priority);
+			requests.incrementAndGet();
+			try {
+				T result = request.execute();
+				recover();
+				return result;
+			} catch (HttpResponseException e) {
+				boolean rateLimit = isRateLimit(e);
+				boolean serverError = e.getStatusCode() >= 500;
+				if (rateLimit) {
+					rateLimited.incrementAndGet();
+					slowDown();
+				} else if (serverError)
+					serverErrors.incrementAndGet();
+
+				if (attempt >= maxRetries || !(rateLimit || serverError && idempotent))
+					throw e;
+
+				retries.incrementAndGet();
+				backoff(attempt, e.getHeaders() == null ? null : e.getHeaders().getRetryAfter());
+			}
+		}
+	}
+
+	private void awaitTurn(Priority priority) throws InterruptedIOException {
+		Ticket ticket;
+		synchronized (lock) {
+			ticket = new Ticket(priority, sequence++);
+			waiting.add(ticket);
+			depth[priority.ordinal()]++;
+			try {
+				// a ticket that overtook the one waiting for a permit still
+				// waits for it, the limiter keeps no order between pollers
+				while (waiting.peek() != ticket || acquiring != null)
+					lock.wait();
+			} catch (InterruptedException e) {
+				leave(ticket);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while queued");
+			}
+			acquiring = ticket;
+		}
+
+		// at the head, later arrivals wait for this permit
+		try {
+			if (limited)
+				acquirePermit();
+		} finally {
+			synchronized (lock) {
+				acquiring = null;
+				leave(ticket);
+			}
+		}
+	}
+
+	/**
+	 * RateLimiter.acquire() ignores interrupts, so this waits in slices and
+	 * gives up once the thread is interrupted or its AsyncCall is cancelled or
+	 * past its deadline
+	 */
+	private void acquirePermit() throws InterruptedIOException {
+		AsyncCall<?> call = AsyncCall.current();
+		long start = System.nanoTime();
+		while (!limiter.tryAcquire(1, PERMIT_SLICE_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (call != null && call.isDone())
+				throw new InterruptedIOException("call cancelled or timed out while waiting for a permit");
+			try {
+				Thread.sleep(PERMIT_SLICE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for a permit");
+			}
+		}
+		permitWaitMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	private void leave(Ticket ticket) {
+		waiting.remove(ticket);
+		depth[ticket.priority.ordinal()]--;
+		lock.notifyAll();
+	}
+
+	private void slowDown() {
+		synchronized (limiter) {
+			if (limited)
+				limiter.setRate(Math.max(MIN_REQUESTS_PER_SECOND, limiter.getRate() / 2));
+			else {
+				limiter.setRate(ADAPTIVE_REQUESTS_PER_SECOND);
+				limited = true;
+			}
+		}
+	}
+
+	private void recover() {
+		if (!limited)
+			return;
+		double configured = configuredRate;
+		double ceiling = configured > 0 ? configured : ADAPTIVE_CEILING;
+		if (limiter.getRate() >= ceiling)
+			return;
+		synchronized (limiter) {
+			if (!limited)
+				return;
+			double rate = Math.min(ceiling, limiter.getRate() + ceiling / 20);
+			// within half a step, getRate() is not exact
+			if (configured == 0 && rate > ceiling - ceiling / 40)
+				limited = false;
+			else
+				limiter.setRate(rate);
+		}
+	}
+
+	private void backoff(int attempt, String retryAfter) throws InterruptedIOException {
+		long millis = Math.max(backoffMillis(attempt), retryAfterMillis(retryAfter));
+		backoffMillis.addAndGet(millis);
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted during backoff");
+		}
+	}
+
+	/**
+	 * full jitter: uniform between 0 and the exponentially growing cap
+	 */
+	long backoffMillis(int attempt) {
+		long cap = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 30));
+		synchronized (random) {
+			return (long) (random.nextDouble() * cap);
+		}
+	}
+
+	/**
+	 * Retry-After in seconds, the HTTP date form is ignored
+	 */
+	static long retryAfterMillis(String retryAfter) {
+		if (retryAfter == null)
+			return 0;
+		try {
+			return Long.parseLong(retryAfter.trim()) * 1000;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	static boolean isRateLimit(HttpResponseException e) {
+		if (e.getStatusCode() == 429)
+			return true;
+		if (e.getStatusCode() != 403)
+			return false;
+
+		if (e instanceof GoogleJsonResponseException) {
+			GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+			if (details != null && details.getErrors() != null)
+				for (GoogleJsonError.ErrorInfo info : details.getErrors())
+					if (isRateLimitReason(info.getReason()))
+						return true;
+		}
+
+		String content = e.getContent();
+		return content != null && (content.contains("rateLimitExceeded") || content.contains("RateLimitExceeded"));
+	}
+
+	private static boolean isRateLimitReason(String reason) {
+		return "rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason);
+	}
+
+	public int getQueueDepth(Priority priority) {
+		synchronized (lock) {
+			return depth[priority.ordinal()];
+		}
+	}
+
+	public int getQueueDepth() {
+		synchronized (lock) {
+			return waiting.size();
+		}
+	}
+
+	/**
+	 * the rate currently in effect, below the configured one after rate limit
+	 * responses, 0 without limit
+	 */
+	public double getCurrentRate() {
+		return limited ? limiter.getRate() : 0;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getRateLimitedResponses() {
+		return rateLimited.get();
+	}
+
+	public long getServerErrors() {
+		return serverErrors.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getBackoffMillis() {
+		return backoffMillis.get();
+	}
+
+	/**
+	 * time spent waiting for token bucket permits
+	 */
+	public long getPermitWaitMillis() {
+		return permitWaitMicros.get() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"scheduler: %d requests, queue %d, rate %.1f/s, %d rate limited, %d server errors, %d retries, %d ms backoff, %d ms permit wait",
+				getRequests(), getQueueDepth(), getCurrentRate(), getRateLimitedResponses(), getServerErrors(),
+				getRetries(), getBackoffMillis(), getPermitWaitMillis());
+	}
+}
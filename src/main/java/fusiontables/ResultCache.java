@@ -0,0 +1,134 @@
+package main.java.fusiontables;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.table.TableModel;
+
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+
+/**
+ * Successful query results by normalized SQL, bounded by the estimated size
+ * of the results and evicted least recently used first. Each entry knows the
+ * IDs of the tables its query reads, writes to one of them drop the entry.
+ * A result fetched while one of its tables got invalidated is not put, and
+ * entries expire after a time to live, for writes made elsewhere.
+ *
+ * Results are shared between callers, which is fine as long as the models
+ * are read only, as ColumnarTableModel is.
+ */
+class ResultCache {
+
+	private static class Entry {
+		final QueryResult result;
+		final Set<String> tableIds;
+
+		Entry(QueryResult result, Set<String> tableIds) {
+			this.result = result;
+			this.tableIds = tableIds;
+		}
+	}
+
+	private final Cache<String, Entry> cache;
+
+	/**
+	 * invalidations by table ID and of all tables, only ever incremented
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> tableGenerations = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong allGeneration = new AtomicLong();
+
+	ResultCache(long maxBytes, long ttlMillis) {
+		cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<String, Entry>() {
+			@Override
+			public int weigh(String key, Entry value) {
+				return (int) Math.min(Integer.MAX_VALUE, 2L * key.length() + estimatedBytes(value.result));
+			}
+		}).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS).recordStats().build();
+	}
+
+	private static long estimatedBytes(QueryResult result) {
+		if (!result.data.isPresent())
+			return 0;
+
+		TableModel data = result.data.get();
+		if (data instanceof ColumnarTableModel)
+			return ((ColumnarTableModel) data).estimatedBytes();
+
+		return 32L * data.getRowCount() * data.getColumnCount();
+	}
+
+	Optional<QueryResult> get(String normalizedQuery) {
+		Entry e = cache.getIfPresent(normalizedQuery);
+		return e == null ? Optional.<QueryResult> absent() : Optional.of(e.result);
+	}
+
+	/**
+	 * changes with every invalidation of one of the tables, to be taken
+	 * before the fetch of a result to put
+	 */
+	long generation(Set<String> tableIds) {
+		// a sum of counters that only grow changes whenever one of them does
+		long result = allGeneration.get();
+		for (String id : tableIds) {
+			AtomicLong g = tableGenerations.get(id);
+			if (g != null)
+				result += g.get();
+		}
+		return result;
+	}
+
+	/**
+	 * @param generation
+	 *            of the tables before the result got fetched, the result is
+	 *            dropped if they got invalidated since
+	 */
+	void put(String normalizedQuery, Set<String> tableIds, long generation, QueryResult result) {
+		if (result.status != HttpStatus.SC_OK || generation(tableIds) != generation)
+			return;
+
+		Entry entry = new Entry(result, tableIds);
+		cache.put(normalizedQuery, entry);
+		// an invalidation that was done with its scan before the put
+		if (generation(tableIds) != generation)
+			cache.asMap().remove(normalizedQuery, entry);
+	}
+
+	void invalidateTable(String tableId) {
+		AtomicLong g = tableGenerations.get(tableId);
+		if (g == null) {
+			AtomicLong created = new AtomicLong();
+			g = tableGenerations.putIfAbsent(tableId, created);
+			if (g == null)
+				g = created;
+		}
+		// before the scan, a put racing with it sees the change
+		g.incrementAndGet();
+
+		Iterator<Map.Entry<String, Entry>> i = cache.asMap().entrySet().iterator();
+		while (i.hasNext())
+			if (i.next().getValue().tableIds.contains(tableId))
+				i.remove();
+	}
+
+	void invalidateAll() {
+		allGeneration.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	CacheStats stats() {
+		return cache.stats();
+	}
+}
@@ -0,0 +1,193 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+import main.java.fusiontables.RequestScheduler.Request;
+
+/**
+ * Runs concurrent requests for the same key once. The first caller runs the
+ * request on its own thread, callers arriving while it is in flight wait for
+ * it and get the same result or exception.
+ * 
+ * A generation keeps callers that need to see a change apart from requests
+ * that started before it, they only share requests of the same generation.
+ *
+ * A result that is shared must not be changed by its receivers. If the first
+ * caller gets cancelled or misses its deadline, see AsyncCall, the waiting
+ * callers don't take its failure but try again themselves.
+ */
+class SingleFlight<K, V> {
+
+	private static class Flight<V> extends AbstractFuture<V> {
+		final long started = System.nanoTime();
+
+		@Override
+		protected boolean set(V value) {
+			return super.set(value);
+		}
+
+		@Override
+		protected boolean setException(Throwable t) {
+			return super.setException(t);
+		}
+	}
+
+	private static final class Key<K> {
+		final K key;
+		final long generation;
+
+		Key(K key, long generation) {
+			this.key = key;
+			this.generation = generation;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * key.hashCode() + (int) (generation ^ (generation >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key<?> other = (Key<?>) obj;
+			return generation == other.generation && key.equals(other.key);
+		}
+	}
+
+	private static class Abandoned extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final ConcurrentHashMap<Key<K>, Flight<V>> inFlight = new ConcurrentHashMap<Key<K>, Flight<V>>();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	V execute(K key, Request<V> request) throws IOException {
+		return execute(new Key<K>(key, 0), request, false);
+	}
+
+	/**
+	 * like execute, but only shares a request of the same generation. A
+	 * caller that bumps the generation after a change gets requests that
+	 * started after it.
+	 */
+	V execute(K key, long generation, Request<V> request) throws IOException {
+		return execute(new Key<K>(key, generation), request, false);
+	}
+
+	/**
+	 * like execute, but only shares a request that started after the call,
+	 * for callers that need to see changes made before
+	 */
+	V executeFresh(K key, Request<V> request) throws IOException {
+		return execute(new Key<K>(key, 0), request, true);
+	}
+
+	private V execute(Key<K> key, Request<V> request, boolean fresh) throws IOException {
+		long requested = System.nanoTime();
+		while (true) {
+			Flight<V> mine = new Flight<V>();
+			Flight<V> other = inFlight.putIfAbsent(key, mine);
+			if (other == null)
+				return lead(key, mine, request);
+
+			if (fresh && other.started - requested < 0) {
+				// started before the call, wait for it to end and try again
+				awaitEnd(other);
+				continue;
+			}
+
+			try {
+				V result = await(other);
+				shared.incrementAndGet();
+				return result;
+			} catch (Abandoned e) {
+			}
+		}
+	}
+
+	private V lead(Key<K> key, Flight<V> flight, Request<V> request) throws IOException {
+		executed.incrementAndGet();
+		try {
+			V result = request.execute();
+			if (abandoned())
+				flight.setException(new Abandoned());
+			else
+				flight.set(result);
+			return result;
+		} catch (IOException e) {
+			flight.setException(abandoned() ? new Abandoned() : e);
+			throw e;
+		} catch (RuntimeException e) {
+			flight.setException(abandoned() ? new Abandoned() : e);
+			throw e;
+		} catch (Error e) {
+			flight.setException(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	private static boolean abandoned() {
+		AsyncCall<?> call = AsyncCall.current();
+		return call != null && call.isDone();
+	}
+
+	private static void awaitEnd(Flight<?> flight) throws InterruptedIOException {
+		try {
+			flight.get();
+		} catch (InterruptedException e) {
+			throw interrupted();
+		} catch (ExecutionException e) {
+		}
+	}
+
+	private static InterruptedIOException interrupted() {
+		Thread.currentThread().interrupt();
+		return new InterruptedIOException("interrupted while waiting for a shared request");
+	}
+
+	/**
+	 * the result of the flight, its failure rethrown
+	 */
+	private V await(Flight<V> flight) throws IOException, Abandoned {
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			throw interrupted();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Abandoned)
+				throw (Abandoned) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * requests run
+	 */
+	long getExecuted() {
+		return executed.get();
+	}
+
+	/**
+	 * calls that got the result of a request run for another caller
+	 */
+	long getShared() {
+		return shared.get();
+	}
+}
@@ -0,0 +1,296 @@
+package main.java.fusiontables;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Optional;
+
+/**
+ * Cheap classification of Fusion Tables SQL by its leading keyword.
+ */
+class SqlStatements {
+
+	private static final String[] ddlKeywords = { "CREATE", "ALTER", "DROP" };
+
+	private static final String[] readKeywords = { "SELECT", "SHOW", "DESCRIBE" };
+
+	private static final String[] insertKeywords = { "INSERT" };
+
+	private static final Pattern tableReference = Pattern.compile(
+			"\\b(?:FROM|JOIN|INTO|UPDATE|TABLE|DESCRIBE)\\s+(?:'([^']*)'|\"([^\"]*)\"|([^\\s;(),]+))",
+			Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern fromClause = Pattern
+			.compile("\\bFROM\\s+(?:'([^']*)'|\"([^\"]*)\"|([^\\s;]+))", Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern createTable = Pattern.compile("\\bCREATE\\s+$", Pattern.CASE_INSENSITIVE);
+
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return format;
+		}
+	};
+
+	/**
+	 * true for statements that change the table list or a table's columns
+	 */
+	static boolean isDdl(String query) {
+		return startsWithAny(query, ddlKeywords);
+	}
+
+	/**
+	 * true for statements that do not change any data
+	 */
+	static boolean isRead(String query) {
+		return startsWithAny(query, readKeywords);
+	}
+
+	/**
+	 * true if all of the semicolon separated statements are INSERTs
+	 */
+	static boolean onlyInserts(String query) {
+		if (query == null)
+			return false;
+
+		int start = 0;
+		for (int i = 0; i <= query.length(); i++)
+			if (i == query.length() || query.charAt(i) == ';' && outsideQuotes(query, i)) {
+				String statement = query.substring(start, i);
+				if (statement.trim().length() > 0 && !startsWithAny(statement, insertKeywords))
+					return false;
+				start = i + 1;
+			}
+		return true;
+	}
+
+	/**
+	 * names or IDs of all tables the statement reads or writes, quotes
+	 * removed
+	 */
+	static Set<String> referencedTables(String query) {
+		Set<String> result = new HashSet<String>();
+		if (query == null)
+			return result;
+
+		Matcher m = tableReference.matcher(query);
+		while (m.find())
+			result.add(firstGroup(m));
+
+		return result;
+	}
+
+	/**
+	 * the query with the table names in replacements replaced, see
+	 * TableNameResolver.rewrite()
+	 */
+	static String replaceTables(String query, Map<String, String> replacements) {
+		if (query == null || replacements.isEmpty())
+			return query;
+
+		StringBuilder sb = null;
+		int last = 0;
+		Matcher m = tableReference.matcher(query);
+		while (m.find()) {
+			int group = 1;
+			while (m.group(group) == null)
+				group++;
+
+			String id = replacements.get(m.group(group));
+			if (id == null || !outsideQuotes(query, m.start()) || createsTable(query, m))
+				continue;
+
+			// drop the quotes along with a quoted name
+			int start = group == 3 ? m.start(group) : m.start(group) - 1;
+			int end = group == 3 ? m.end(group) : m.end(group) + 1;
+
+			if (sb == null)
+				sb = new StringBuilder(query.length());
+			sb.append(query, last, start).append(id);
+			last = end;
+		}
+
+		if (sb == null)
+			return query;
+		return sb.append(query, last, query.length()).toString();
+	}
+
+	private static boolean createsTable(String query, Matcher m) {
+		return query.regionMatches(true, m.start(), "TABLE", 0, 5)
+				&& createTable.matcher(query.substring(Math.max(0, m.start() - 20), m.start())).find();
+	}
+
+	/**
+	 * true if pos is not inside a quoted string
+	 */
+	static boolean outsideQuotes(String query, int pos) {
+		char quote = 0;
+		for (int i = 0; i < pos; i++) {
+			char c = query.charAt(i);
+			if (quote != 0 && c == '\\')
+				i++;
+			else if (quote == 0 && (c == '\'' || c == '"'))
+				quote = c;
+			else if (c == quote)
+				quote = 0;
+		}
+		return quote == 0;
+	}
+
+	/**
+	 * whitespace outside of quotes collapsed to single blanks, trailing
+	 * semicolons removed
+	 */
+	static String normalize(String query) {
+		StringBuilder sb = new StringBuilder(query.length());
+		char quote = 0;
+		boolean blank = false;
+
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (quote == 0 && Character.isWhitespace(c)) {
+				blank = sb.length() > 0;
+				continue;
+			}
+			if (blank) {
+				sb.append(' ');
+				blank = false;
+			}
+			sb.append(c);
+
+			if (quote == 0 && (c == '\'' || c == '"'))
+				quote = c;
+			else if (c == quote && query.charAt(i - 1) != '\\')
+				quote = 0;
+		}
+
+		int end = sb.length();
+		while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+			end--;
+		sb.setLength(end);
+
+		return sb.toString();
+	}
+
+	/**
+	 * the table name or ID following the first FROM, quotes removed
+	 */
+	static Optional<String> fromTable(String query) {
+		if (query == null)
+			return Optional.absent();
+
+		Matcher m = fromClause.matcher(query);
+		if (!m.find())
+			return Optional.absent();
+
+		return Optional.of(firstGroup(m));
+	}
+
+	private static String firstGroup(Matcher m) {
+		for (int i = 1; i <= m.groupCount(); i++)
+			if (m.group(i) != null)
+				return m.group(i);
+		return m.group();
+	}
+
+	/**
+	 * Fusion Tables SQL literal for a value, numbers as formatNumber(), Dates
+	 * as formatDate(), anything else single quoted with quotes and backslashes
+	 * escaped
+	 */
+	static String literal(Object value) {
+		if (value instanceof Number)
+			return formatNumber((Number) value);
+
+		StringBuilder sb = new StringBuilder();
+		appendQuoted(sb, value == null ? "" : value instanceof Date ? formatDate((Date) value) : value.toString());
+		return sb.toString();
+	}
+
+	/**
+	 * plain decimal digits without exponent, exact for integral types and
+	 * BigDecimal, the shortest text that reads back the same for Double and
+	 * Float
+	 * 
+	 * @throws IllegalArgumentException
+	 *             for NaN, infinity and Numbers that aren't decimal
+	 */
+	static String formatNumber(Number value) {
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicInteger || value instanceof AtomicLong)
+			return Long.toString(value.longValue());
+		if (value instanceof BigInteger)
+			return value.toString();
+		if (value instanceof BigDecimal)
+			return ((BigDecimal) value).toPlainString();
+
+		double d = value.doubleValue();
+		if (Double.isNaN(d) || Double.isInfinite(d))
+			throw new IllegalArgumentException("not a finite number: " + value);
+		if (value instanceof Double)
+			return formatDouble(d);
+		try {
+			// Float and others by their own text, doubleValue() of a Float
+			// adds digits
+			return new BigDecimal(value.toString()).toPlainString();
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a decimal number: " + value);
+		}
+	}
+
+	static String formatDouble(double value) {
+		if (value == 0)
+			return "0";
+		return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * yyyy-MM-dd HH:mm:ss in UTC
+	 */
+	static String formatDate(Date value) {
+		return dateFormat.get().format(value);
+	}
+
+	static void appendQuoted(StringBuilder sb, String value) {
+		sb.append('\'');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\'' || c == '\\')
+				sb.append('\\');
+			sb.append(c);
+		}
+		sb.append('\'');
+	}
+
+	static boolean startsWithAny(String query, String[] keywords) {
+		if (query == null)
+			return false;
+
+		int start = 0;
+		while (start < query.length() && Character.isWhitespace(query.charAt(start)))
+			start++;
+
+		for (String keyword : keywords)
+			if (query.regionMatches(true, start, keyword, 0, keyword.length())
+					&& endsWord(query, start + keyword.length()))
+				return true;
+
+		return false;
+	}
+
+	private static boolean endsWord(String query, int pos) {
+		return pos == query.length() || !Character.isLetterOrDigit(query.charAt(pos));
+	}
+}
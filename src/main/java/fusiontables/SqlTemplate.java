@@ -0,0 +1,256 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.cg.ftc.shared.structures.QueryResult;
+
+/**
+ * A statement with ? placeholders, parsed once. Table names are replaced by
+ * IDs when the template is prepared, values are escaped when bound, so bound
+ * values can't change the statement.
+ *
+ * A template may be shared by threads, a Binding belongs to one thread and is
+ * meant to be reused: it renders into the same buffer every time.
+ */
+public class SqlTemplate {
+
+	private final FusionTablesConnector connector;
+	private final String template;
+	private final String[] fragments;
+	private final boolean read;
+	private final int length;
+
+	SqlTemplate(FusionTablesConnector connector, String template) {
+		this.connector = connector;
+		this.template = template;
+		this.fragments = parse(template);
+		this.read = SqlStatements.isRead(template);
+
+		int chars = 0;
+		for (String f : fragments)
+			chars += f.length();
+		length = chars;
+	}
+
+	/**
+	 * splits at ? outside of quotes, n placeholders give n + 1 fragments
+	 */
+	static String[] parse(String template) {
+		List<String> result = new ArrayList<String>();
+		char quote = 0;
+		int start = 0;
+
+		for (int i = 0; i < template.length(); i++) {
+			char c = template.charAt(i);
+			if (quote != 0 && c == '\\')
+				i++;
+			else if (quote == 0 && (c == '\'' || c == '"'))
+				quote = c;
+			else if (c == quote)
+				quote = 0;
+			else if (quote == 0 && c == '?') {
+				result.add(template.substring(start, i));
+				start = i + 1;
+			}
+		}
+
+		if (quote != 0)
+			throw new IllegalArgumentException("unterminated quote in " + template);
+
+		result.add(template.substring(start));
+		return result.toArray(new String[result.size()]);
+	}
+
+	public int getParameterCount() {
+		return fragments.length - 1;
+	}
+
+	/**
+	 * the statement as prepared, table names replaced
+	 */
+	public String getTemplate() {
+		return template;
+	}
+
+	public boolean isRead() {
+		return read;
+	}
+
+	public Binding newBinding() {
+		return new Binding();
+	}
+
+	public class Binding {
+
+		private static final byte UNBOUND = 0;
+		private static final byte STRING = 1;
+		private static final byte LONG = 2;
+		private static final byte DOUBLE = 3;
+		// formatted number in strings
+		private static final byte NUMBER = 4;
+
+		private final byte[] kinds = new byte[getParameterCount()];
+		private final String[] strings = new String[kinds.length];
+		private final long[] longs = new long[kinds.length];
+		private final double[] doubles = new double[kinds.length];
+
+		private final StringBuilder buffer = new StringBuilder(length + 16 * kinds.length);
+
+		private Binding() {
+		}
+
+		private int index(int parameter) {
+			if (parameter < 0 || parameter >= kinds.length)
+				throw new IndexOutOfBoundsException(
+						"parameter " + parameter + " of " + kinds.length + " in " + template);
+			return parameter;
+		}
+
+		/**
+		 * @param parameter
+		 *            0 based
+		 * @param value
+		 *            quoted and escaped, "" for an empty string
+		 * @throws IllegalArgumentException
+		 *             for null, Fusion Tables SQL has no NULL literal
+		 */
+		public Binding setString(int parameter, String value) {
+			notNull(parameter, value);
+			kinds[index(parameter)] = STRING;
+			strings[parameter] = value;
+			return this;
+		}
+
+		private <T> T notNull(int parameter, T value) {
+			if (value == null)
+				throw new IllegalArgumentException("null for parameter " + parameter + " in " + template);
+			return value;
+		}
+
+		public Binding setLong(int parameter, long value) {
+			kinds[index(parameter)] = LONG;
+			longs[parameter] = value;
+			return this;
+		}
+
+		public Binding setDouble(int parameter, double value) {
+			if (Double.isNaN(value) || Double.isInfinite(value))
+				throw new IllegalArgumentException("not a finite number: " + value);
+			kinds[index(parameter)] = DOUBLE;
+			doubles[parameter] = value;
+			return this;
+		}
+
+		/**
+		 * as plain decimal digits, exact for BigDecimal and BigInteger
+		 * 
+		 * @throws IllegalArgumentException
+		 *             for null, NaN and infinity
+		 */
+		public Binding setNumber(int parameter, Number value) {
+			if (notNull(parameter, value) instanceof Double)
+				return setDouble(parameter, value.doubleValue());
+			String text = SqlStatements.formatNumber(value);
+			kinds[index(parameter)] = NUMBER;
+			strings[parameter] = text;
+			return this;
+		}
+
+		/**
+		 * as quoted yyyy-MM-dd HH:mm:ss in UTC
+		 */
+		public Binding setDate(int parameter, Date value) {
+			return setString(parameter, SqlStatements.formatDate(notNull(parameter, value)));
+		}
+
+		/**
+		 * Numbers as numbers, Dates as dates, anything else as string
+		 * 
+		 * @throws IllegalArgumentException
+		 *             for null
+		 */
+		public Binding set(int parameter, Object value) {
+			if (value instanceof Integer || value instanceof Long || value instanceof Short
+					|| value instanceof Byte)
+				return setLong(parameter, ((Number) value).longValue());
+			if (value instanceof Number)
+				return setNumber(parameter, (Number) value);
+			if (value instanceof Date)
+				return setDate(parameter, (Date) value);
+			return setString(parameter, notNull(parameter, value).toString());
+		}
+
+		public Binding setAll(Object... values) {
+			if (values.length != kinds.length)
+				throw new IllegalArgumentException(
+						values.length + " values for " + kinds.length + " parameters in " + template);
+			for (int i = 0; i < values.length; i++)
+				set(i, values[i]);
+			return this;
+		}
+
+		/**
+		 * the statement with the bound values, all parameters must be bound
+		 */
+		public String sql() {
+			StringBuilder sb = buffer;
+			sb.setLength(0);
+			sb.append(fragments[0]);
+
+			for (int i = 0; i < kinds.length; i++) {
+				switch (kinds[i]) {
+				case STRING:
+					appendQuoted(sb, strings[i]);
+					break;
+				case LONG:
+					sb.append(longs[i]);
+					break;
+				case DOUBLE:
+					sb.append(SqlStatements.formatDouble(doubles[i]));
+					break;
+				case NUMBER:
+					sb.append(strings[i]);
+					break;
+				default:
+					throw new IllegalStateException("parameter " + i + " not bound in " + template);
+				}
+				sb.append(fragments[i + 1]);
+			}
+
+			return sb.toString();
+		}
+
+		/**
+		 * copies the value unless it needs escaping
+		 */
+		private void appendQuoted(StringBuilder sb, String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\'' || c == '\\') {
+					SqlStatements.appendQuoted(sb, value);
+					return;
+				}
+			}
+			sb.append('\'').append(value).append('\'');
+		}
+
+		public String execute() throws IOException {
+			return connector.executeSql(sql());
+		}
+
+		public QueryResult fetch() {
+			return connector.fetch(sql());
+		}
+
+		public Binding clear() {
+			for (int i = 0; i < kinds.length; i++) {
+				kinds[i] = UNBOUND;
+				strings[i] = null;
+			}
+			return this;
+		}
+	}
+}
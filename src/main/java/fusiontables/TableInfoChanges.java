@@ -0,0 +1,31 @@
+package main.java.fusiontables;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.cg.ftc.shared.structures.TableInfo;
+
+/**
+ * What a metadata refresh changed. Modified holds the new TableInfo of tables
+ * whose name, description or columns changed, removed the last known one.
+ */
+public class TableInfoChanges {
+	public final List<TableInfo> added;
+	public final List<TableInfo> removed;
+	public final List<TableInfo> modified;
+
+	public TableInfoChanges(List<TableInfo> added, List<TableInfo> removed, List<TableInfo> modified) {
+		this.added = Collections.unmodifiableList(added);
+		this.removed = Collections.unmodifiableList(removed);
+		this.modified = Collections.unmodifiableList(modified);
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d added, %d removed, %d modified", added.size(), removed.size(), modified.size());
+	}
+}
@@ -0,0 +1,210 @@
+package main.java.fusiontables;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cg.ftc.shared.structures.ColumnInfo;
+import org.cg.ftc.shared.structures.TableInfo;
+
+import com.google.api.services.fusiontables.model.Column;
+import com.google.api.services.fusiontables.model.Table;
+
+/**
+ * Table metadata keyed by table ID plus the table name to ID index. apply()
+ * diffs a fresh table list against the known tables, keeps the TableInfo of
+ * unchanged tables and only touches the index for changed ones. Not thread
+ * safe, the connector guards it, the resolver may be read by any thread.
+ */
+class TableInfoIndex {
+
+	private Map<String, TableInfo> tablesById = new LinkedHashMap<String, TableInfo>();
+	private List<TableInfo> tables = Collections.emptyList();
+
+	/**
+	 * IDs by table name, more than one for ambiguous names, last one wins
+	 */
+	private final Map<String, List<String>> idsByName = new HashMap<String, List<String>>();
+
+	/**
+	 * gets a new snapshot of idsByName after each change
+	 */
+	final TableNameResolver resolver = new TableNameResolver();
+
+	/**
+	 * @return the known tables in the order of the last list applied
+	 */
+	List<TableInfo> tables() {
+		return tables;
+	}
+
+	/**
+	 * the ID for a table name, absent for unknown names
+	 */
+	String idOf(String name) {
+		List<String> ids = idsByName.get(name);
+		return ids == null ? null : ids.get(ids.size() - 1);
+	}
+
+	boolean isAmbiguous(String name) {
+		List<String> ids = idsByName.get(name);
+		return ids != null && ids.size() > 1;
+	}
+
+	/**
+	 * replaces the known tables by the list without diffing
+	 */
+	void reset(List<TableInfo> list) {
+		tablesById = new LinkedHashMap<String, TableInfo>();
+		idsByName.clear();
+		for (TableInfo t : list) {
+			tablesById.put(t.id, t);
+			addName(t);
+		}
+		tables = Collections.unmodifiableList(new ArrayList<TableInfo>(tablesById.values()));
+		publish();
+	}
+
+	private void publish() {
+		Map<String, String> snapshot = new HashMap<String, String>(idsByName.size() * 4 / 3 + 1);
+		for (Map.Entry<String, List<String>> e : idsByName.entrySet())
+			snapshot.put(e.getKey(), e.getValue().get(e.getValue().size() - 1));
+		resolver.publish(snapshot);
+	}
+
+	private static final TableInfoChanges NO_CHANGES = new TableInfoChanges(Collections.<TableInfo> emptyList(),
+			Collections.<TableInfo> emptyList(), Collections.<TableInfo> emptyList());
+
+	TableInfoChanges apply(List<Table> list) {
+		if (unchanged(list))
+			return NO_CHANGES;
+
+		List<TableInfo> added = new ArrayList<TableInfo>();
+		List<TableInfo> removed = new ArrayList<TableInfo>();
+		List<TableInfo> modified = new ArrayList<TableInfo>();
+
+		Map<String, TableInfo> next = new LinkedHashMap<String, TableInfo>();
+		boolean reordered = list.size() != tablesById.size();
+		Collection<TableInfo> previous = tablesById.values();
+		Iterator<TableInfo> order = previous.iterator();
+
+		for (Table t : list) {
+			TableInfo known = tablesById.get(t.getTableId());
+			TableInfo info;
+			if (known == null) {
+				info = toTableInfo(t);
+				added.add(info);
+				addName(info);
+			} else if (!sameAs(known, t)) {
+				info = toTableInfo(t);
+				modified.add(info);
+				removeName(known);
+				addName(info);
+			} else
+				info = known;
+
+			if (!reordered && (!order.hasNext() || order.next() != known))
+				reordered = true;
+			next.put(info.id, info);
+		}
+
+		for (TableInfo t : previous)
+			if (!next.containsKey(t.id)) {
+				removed.add(t);
+				removeName(t);
+			}
+
+		tablesById = next;
+		if (reordered || !modified.isEmpty())
+			tables = Collections.unmodifiableList(new ArrayList<TableInfo>(next.values()));
+		if (!added.isEmpty() || !removed.isEmpty() || !modified.isEmpty())
+			publish();
+
+		return new TableInfoChanges(added, removed, modified);
+	}
+
+	/**
+	 * the common case, checked without allocating
+	 */
+	private boolean unchanged(List<Table> list) {
+		if (list.size() != tablesById.size())
+			return false;
+
+		Iterator<TableInfo> order = tablesById.values().iterator();
+		for (Table t : list) {
+			TableInfo known = order.next();
+			if (!known.id.equals(t.getTableId()) || !sameAs(known, t))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * names with more than one table among the given tables
+	 */
+	Set<String> ambiguousNames(Collection<TableInfo> among) {
+		Set<String> result = new HashSet<String>();
+		for (TableInfo t : among)
+			if (isAmbiguous(t.name))
+				result.add(t.name);
+		return result;
+	}
+
+	private void addName(TableInfo t) {
+		List<String> ids = idsByName.get(t.name);
+		if (ids == null) {
+			ids = new ArrayList<String>(1);
+			idsByName.put(t.name, ids);
+		}
+		ids.add(t.id);
+	}
+
+	private void removeName(TableInfo t) {
+		List<String> ids = idsByName.get(t.name);
+		if (ids == null)
+			return;
+		ids.remove(t.id);
+		if (ids.isEmpty())
+			idsByName.remove(t.name);
+	}
+
+	static TableInfo toTableInfo(Table t) {
+		List<ColumnInfo> columns = new ArrayList<ColumnInfo>();
+		if (t.getColumns() != null)
+			for (Column c : t.getColumns())
+				columns.add(new ColumnInfo(c.getName(), c.getType(), c.getKind()));
+		return new TableInfo(t.getName(), t.getTableId(), t.getDescription(), columns);
+	}
+
+	/**
+	 * compares without building a TableInfo
+	 */
+	static boolean sameAs(TableInfo known, Table t) {
+		if (!equal(known.name, t.getName()) || !equal(known.description, t.getDescription()))
+			return false;
+
+		List<Column> columns = t.getColumns();
+		int count = columns == null ? 0 : columns.size();
+		if (known.columns.size() != count)
+			return false;
+
+		for (int i = 0; i < count; i++) {
+			ColumnInfo k = known.columns.get(i);
+			Column c = columns.get(i);
+			if (!equal(k.name, c.getName()) || !equal(k.type, c.getType()) || !equal(k.kind, c.getKind()))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
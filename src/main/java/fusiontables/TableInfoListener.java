@@ -0,0 +1,11 @@
+package main.java.fusiontables;
+
+/**
+ * Gets told about table metadata changes found by a refresh, e.g. to update
+ * autocompletion incrementally. Called without the connector locked, on a
+ * thread that refreshed, in the order the changes were found and only if
+ * something changed.
+ */
+public interface TableInfoListener {
+	void tablesChanged(TableInfoChanges changes);
+}
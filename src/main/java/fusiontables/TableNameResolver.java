@@ -0,0 +1,60 @@
+package main.java.fusiontables;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Optional;
+
+/**
+ * Table name to ID resolution for any number of threads. The mapping is an
+ * immutable snapshot that the connector replaces as a whole when the table
+ * list changes, readers never lock and never see a half built map. For
+ * ambiguous names the last table listed wins.
+ */
+public class TableNameResolver {
+
+	private static final Map<String, String> EMPTY = Collections.emptyMap();
+
+	private final AtomicReference<Map<String, String>> snapshot = new AtomicReference<Map<String, String>>(EMPTY);
+
+	/**
+	 * publishes the mapping, which must not be changed afterwards
+	 */
+	void publish(Map<String, String> idsByName) {
+		snapshot.set(Collections.unmodifiableMap(idsByName));
+	}
+
+	public Optional<String> idOf(String name) {
+		return Optional.fromNullable(snapshot.get().get(name));
+	}
+
+	/**
+	 * @return the ID for a known table name, anything else as it is
+	 */
+	public String resolve(String nameOrId) {
+		String id = snapshot.get().get(nameOrId);
+		return id == null ? nameOrId : id;
+	}
+
+	public Set<String> resolveAll(Set<String> namesOrIds) {
+		Map<String, String> current = snapshot.get();
+		Set<String> result = new HashSet<String>();
+		for (String n : namesOrIds) {
+			String id = current.get(n);
+			result.add(id == null ? n : id);
+		}
+		return result;
+	}
+
+	/**
+	 * replaces known table names following FROM, JOIN, INTO, UPDATE and TABLE
+	 * by their IDs, quoted or not. Names in string literals and the name of a
+	 * CREATE TABLE stay as they are.
+	 */
+	public String rewrite(String query) {
+		return SqlStatements.replaceTables(query, snapshot.get());
+	}
+}
@@ -0,0 +1,113 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+
+public class TestCustomDataStore {
+
+	private CustomDataStore<String> create() {
+		return new CustomDataStore<String>(MemoryDataStoreFactory.getDefaultInstance(), "test");
+	}
+
+	@Test
+	public void testKeySetIsSnapshot() throws IOException {
+		CustomDataStore<String> store = create();
+		store.set("a", "1");
+		Set<String> keys = store.keySet();
+		store.set("b", "2");
+
+		assertEquals(1, keys.size());
+		assertEquals(2, store.keySet().size());
+	}
+
+	@Test
+	public void testContainsValue() throws IOException {
+		CustomDataStore<String> store = create();
+		store.set("a", "1");
+		store.set("b", "1");
+		assertTrue(store.containsValue("1"));
+
+		store.delete("a");
+		assertTrue(store.containsValue("1"));
+
+		store.set("b", "2");
+		assertFalse(store.containsValue("1"));
+		assertTrue(store.containsValue("2"));
+
+		store.clear();
+		assertFalse(store.containsValue("2"));
+	}
+
+	@Test
+	public void testMutableValues() throws IOException {
+		CustomDataStore<ArrayList<String>> store = new CustomDataStore<ArrayList<String>>(
+				MemoryDataStoreFactory.getDefaultInstance(), "test");
+		ArrayList<String> value = new ArrayList<String>();
+		value.add("a");
+		store.set("k", value);
+
+		// neither the instance set nor the ones returned share state with the store
+		value.add("b");
+		ArrayList<String> got = store.get("k");
+		assertEquals(1, got.size());
+		got.add("c");
+		assertEquals(1, store.get("k").size());
+		assertNotSame(store.get("k"), store.get("k"));
+
+		CustomDataStore<String> strings = create();
+		strings.set("k", "v");
+		assertSame(strings.get("k"), strings.get("k"));
+
+		// credentials are cached and handed out as copies, not deserialized
+		CustomDataStore<StoredCredential> credentials = new CustomDataStore<StoredCredential>(
+				MemoryDataStoreFactory.getDefaultInstance(), "test");
+		StoredCredential credential = new StoredCredential().setAccessToken("access").setRefreshToken("refresh")
+				.setExpirationTimeMilliseconds(1000L);
+		credentials.set("k", credential);
+		credential.setAccessToken("changed");
+		credentials.keyValueMap.put("k", new byte[] { 1 });
+		StoredCredential cached = credentials.get("k");
+		assertEquals("access", cached.getAccessToken());
+		assertEquals("refresh", cached.getRefreshToken());
+		assertEquals(Long.valueOf(1000), cached.getExpirationTimeMilliseconds());
+		cached.setAccessToken("changed");
+		assertEquals("access", credentials.get("k").getAccessToken());
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		final CustomDataStore<String> store = create();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final int offset = t * 1000;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 1000; i++)
+							store.set(String.valueOf(offset + i), "v" + i);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(8000, store.size());
+		assertEquals("v999", store.get("7999"));
+		assertEquals(8000, store.values().size());
+	}
+}
@@ -0,0 +1,114 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.swing.table.TableModel;
+
+import org.junit.Test;
+
+public class TestLocalQuery {
+
+	private final ReplicaTable table = table(new String[] { "a", "1", "x" }, new String[] { "b", "2.5", "y" },
+			new String[] { "a", "4", "z" }, new String[] { "c", null, "x" });
+
+	private static ReplicaTable table(String[]... rows) {
+		ReplicaTable.Builder b = new ReplicaTable.Builder(Arrays.asList("Text", "Number", "Other"),
+				Arrays.asList("STRING", "NUMBER", "STRING"));
+		for (String[] row : rows) {
+			for (int i = 0; i < row.length; i++)
+				b.cell(i, row[i]);
+			b.endRow();
+		}
+		return b.build();
+	}
+
+	private TableModel run(String sql) {
+		return LocalQuery.parse(sql).get().evaluate(table).get().data.get();
+	}
+
+	@Test
+	public void testSelect() {
+		TableModel m = run("SELECT * FROM t");
+		assertEquals(4, m.getRowCount());
+		assertEquals(3, m.getColumnCount());
+
+		m = run("select Other, 'Text' from t where Number >= 2 and Text = 'a'");
+		assertEquals(1, m.getRowCount());
+		assertEquals("Other", m.getColumnName(0));
+		assertEquals("z", m.getValueAt(0, 0));
+		assertEquals("a", m.getValueAt(0, 1));
+
+		m = run("SELECT Text FROM t WHERE Other < 'y' OFFSET 1 LIMIT 1;");
+		assertEquals(1, m.getRowCount());
+		assertEquals("c", m.getValueAt(0, 0));
+	}
+
+	@Test
+	public void testAggregates() {
+		TableModel m = run("SELECT COUNT(), SUM(Number), AVG(Number), MIN(Other), MAX(Number) FROM t");
+		assertEquals(1, m.getRowCount());
+		assertEquals("COUNT()", m.getColumnName(0));
+		assertEquals("4", m.getValueAt(0, 0));
+		assertEquals("7.5", m.getValueAt(0, 1));
+		assertEquals("2.5", m.getValueAt(0, 2));
+		assertEquals("x", m.getValueAt(0, 3));
+		assertEquals("4", m.getValueAt(0, 4));
+
+		m = run("SELECT Text, COUNT(Number) FROM t GROUP BY Text");
+		assertEquals(3, m.getRowCount());
+		assertEquals("a", m.getValueAt(0, 0));
+		assertEquals("2", m.getValueAt(0, 1));
+		assertEquals("0", m.getValueAt(2, 1));
+
+		assertEquals("0", run("SELECT COUNT() FROM t WHERE Number > 10").getValueAt(0, 0));
+	}
+
+	@Test
+	public void testDateTime() {
+		ReplicaTable.Builder b = new ReplicaTable.Builder(Arrays.asList("Date"), Arrays.asList("DATETIME"));
+		for (String value : Arrays.asList("2015-05-20 12:00:00", "2015-05-21 00:00:00", null)) {
+			b.cell(0, value);
+			b.endRow();
+		}
+		ReplicaTable dates = b.build();
+
+		// as strings "2015-05-21" sorts before "2015-05-21 00:00:00"
+		TableModel m = LocalQuery.parse("SELECT COUNT() FROM t WHERE Date <= '2015-05-21'").get().evaluate(dates).get()
+				.data.get();
+		assertEquals("2", m.getValueAt(0, 0));
+		m = LocalQuery.parse("SELECT Date FROM t WHERE Date < '2015-05-20T12:00:01'").get().evaluate(dates).get()
+				.data.get();
+		assertEquals(1, m.getRowCount());
+		assertEquals("2015-05-20 12:00:00", m.getValueAt(0, 0));
+
+		assertFalse(LocalQuery.parse("SELECT * FROM t WHERE Date > 'May 2015'").get().evaluate(dates).isPresent());
+	}
+
+	@Test
+	public void testUnsupported() {
+		for (String sql : Arrays.asList("SELECT * FROM t ORDER BY Text", "SELECT * FROM t WHERE Text LIKE 'a%'",
+				"SELECT * FROM t WHERE a = 1 OR b = 2", "SELECT SUM() FROM t", "SELECT * FROM 't",
+				"INSERT INTO t (a) VALUES (1)"))
+			assertFalse(sql, LocalQuery.parse(sql).isPresent());
+
+		// columns the table lacks, or no aggregate for a plain column
+		assertFalse(LocalQuery.parse("SELECT Missing FROM t").get().evaluate(table).isPresent());
+		assertFalse(LocalQuery.parse("SELECT Text, COUNT() FROM t").get().evaluate(table).isPresent());
+		assertFalse(LocalQuery.parse("SELECT SUM(Text) FROM t").get().evaluate(table).isPresent());
+	}
+
+	@Test
+	public void testAppend() {
+		ReplicaTable.Builder b = table.append();
+		b.cell(0, "d");
+		b.endRow();
+		ReplicaTable appended = b.build();
+
+		assertEquals(4, table.rowCount);
+		assertEquals(5, appended.rowCount);
+		assertNull(appended.values[2][4]);
+		assertTrue(Double.isNaN(appended.numbers[1][4]));
+	}
+}
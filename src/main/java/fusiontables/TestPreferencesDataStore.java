@@ -0,0 +1,58 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestPreferencesDataStore {
+
+	private static final String id = "TestPreferencesDataStore";
+
+	private PreferencesDataStore<String> create(boolean incremental) {
+		return new PreferencesDataStore<String>(new PreferencesDataStoreFactory(TestPreferencesDataStore.class), id,
+				TestPreferencesDataStore.class, incremental, 10000);
+	}
+
+	@After
+	public void cleanup() {
+		create(true).Clear();
+	}
+
+	@Test
+	public void testIncrementalWriteBehind() throws IOException {
+		PreferencesDataStore<String> store = create(true);
+		store.set("a", "1");
+		store.set("b", "2");
+		store.delete("b");
+
+		// not flushed yet
+		assertFalse(create(true).containsKey("a"));
+
+		store.close();
+		PreferencesDataStore<String> reloaded = create(true);
+		assertEquals("1", reloaded.get("a"));
+		assertFalse(reloaded.containsKey("b"));
+	}
+
+	@Test
+	public void testClearIsImmediate() throws IOException {
+		PreferencesDataStore<String> store = create(true);
+		store.set("a", "1");
+		store.close();
+
+		create(true).clear();
+		assertTrue(create(true).isEmpty());
+	}
+
+	@Test
+	public void testMigratesLegacyData() throws IOException {
+		PreferencesDataStore<String> legacy = create(false);
+		legacy.set("a", "1");
+
+		assertEquals("1", create(true).get("a"));
+		assertTrue(create(false).isEmpty());
+	}
+}
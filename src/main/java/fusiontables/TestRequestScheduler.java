@@ -0,0 +1,245 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import main.java.fusiontables.RequestScheduler.Priority;
+import main.java.fusiontables.RequestScheduler.Request;
+
+public class TestRequestScheduler {
+
+	private static HttpResponseException exception(int status, String content) {
+		return new HttpResponseException.Builder(status, null, new HttpHeaders()).setContent(content).build();
+	}
+
+	@Test
+	public void testRateLimitDetection() {
+		assertTrue(RequestScheduler.isRateLimit(exception(429, "")));
+		assertTrue(RequestScheduler.isRateLimit(
+				exception(403, "{\"error\":{\"errors\":[{\"reason\":\"userRateLimitExceeded\"}]}}")));
+		assertFalse(RequestScheduler.isRateLimit(exception(403, "{\"error\":{\"errors\":[{\"reason\":\"forbidden\"}]}}")));
+		assertFalse(RequestScheduler.isRateLimit(exception(503, "rateLimitExceeded")));
+	}
+
+	@Test
+	public void testBackoff() {
+		RequestScheduler scheduler = new RequestScheduler(10).setBackoff(100, 1000);
+		for (int attempt = 0; attempt < 10; attempt++)
+			for (int i = 0; i < 100; i++) {
+				long delay = scheduler.backoffMillis(attempt);
+				assertTrue(delay >= 0);
+				assertTrue(delay <= Math.min(1000, 100 << attempt));
+			}
+
+		assertEquals(3000, RequestScheduler.retryAfterMillis("3"));
+		assertEquals(0, RequestScheduler.retryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+		assertEquals(0, RequestScheduler.retryAfterMillis(null));
+	}
+
+	@Test
+	public void testRetryPolicy() throws IOException {
+		RequestScheduler scheduler = new RequestScheduler(1000).setBackoff(1, 1).setMaxRetries(3);
+		final int[] calls = new int[1];
+		Request<String> failing = new Request<String>() {
+			@Override
+			public String execute() throws IOException {
+				calls[0]++;
+				throw exception(503, "backendError");
+			}
+		};
+
+		try {
+			scheduler.execute(Priority.BULK, false, failing);
+			fail();
+		} catch (HttpResponseException e) {
+			assertEquals(1, calls[0]);
+		}
+
+		calls[0] = 0;
+		try {
+			scheduler.execute(Priority.INTERACTIVE, true, failing);
+			fail();
+		} catch (HttpResponseException e) {
+			assertEquals(4, calls[0]);
+		}
+		assertEquals(3, scheduler.getRetries());
+		assertEquals(5, scheduler.getServerErrors());
+	}
+
+	@Test
+	public void testAdaptiveRate() throws IOException {
+		RequestScheduler scheduler = new RequestScheduler(RequestScheduler.DEFAULT_REQUESTS_PER_SECOND).setBackoff(1, 1);
+		assertEquals(0, scheduler.getCurrentRate(), 0);
+
+		final int[] calls = new int[1];
+		Request<String> limitedOnce = new Request<String>() {
+			@Override
+			public String execute() throws IOException {
+				if (calls[0]++ == 0)
+					throw exception(429, "");
+				return "ok";
+			}
+		};
+
+		// the first rate limit response starts the limiter, successes raise
+		// its rate until it is lifted again
+		assertEquals("ok", scheduler.execute(Priority.BULK, true, limitedOnce));
+		assertEquals(1.5 * RequestScheduler.ADAPTIVE_REQUESTS_PER_SECOND, scheduler.getCurrentRate(), 1e-9);
+		for (int i = 0; i < 17; i++)
+			scheduler.execute(Priority.BULK, true, limitedOnce);
+		assertEquals(0, scheduler.getCurrentRate(), 0);
+
+		scheduler.setRate(5);
+		assertEquals(5, scheduler.getCurrentRate(), 1e-9);
+	}
+
+	private static final Request<Void> nothing = new Request<Void>() {
+		@Override
+		public Void execute() {
+			return null;
+		}
+	};
+
+	@Test
+	public void testInterruptedPermitWait() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(0.5);
+		scheduler.execute(Priority.BULK, true, nothing);
+
+		// the next permit is 2 s away
+		final IOException[] failure = new IOException[1];
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					scheduler.execute(Priority.BULK, true, nothing);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		long start = System.nanoTime();
+		waiting.start();
+		Thread.sleep(100);
+		waiting.interrupt();
+		waiting.join();
+		assertTrue(failure[0] instanceof InterruptedIOException);
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void testPropagatedDeadline() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(0.5);
+		scheduler.execute(Priority.BULK, true, nothing);
+
+		// work handed to another thread gives up with the call
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		final Future<?>[] handedOff = new Future<?>[1];
+		AsyncCall<Void> call = new AsyncCall<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				handedOff[0] = pool.submit(AsyncCall.propagate(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						assertNotNull(AsyncCall.current());
+						return scheduler.execute(Priority.BULK, true, nothing);
+					}
+				}));
+				return null;
+			}
+		}, 100);
+		long start = System.nanoTime();
+		try {
+			call.run();
+			call.watch();
+
+			try {
+				handedOff[0].get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof InterruptedIOException);
+			}
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInteractiveFirst() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(1000);
+		final List<Priority> order = Collections.synchronizedList(new ArrayList<Priority>());
+		final CountDownLatch blocking = new CountDownLatch(1);
+
+		// one permit per second, the first request takes it, the others queue
+		scheduler.setRate(1);
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					scheduler.execute(Priority.BULK, true, new Request<Void>() {
+						@Override
+						public Void execute() throws IOException {
+							blocking.countDown();
+							return null;
+						}
+					});
+				} catch (IOException e) {
+				}
+			}
+		};
+		first.start();
+		blocking.await();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final Priority p : new Priority[] { Priority.BULK, Priority.BULK, Priority.INTERACTIVE }) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						scheduler.execute(p, true, new Request<Void>() {
+							@Override
+							public Void execute() throws IOException {
+								order.add(p);
+								return null;
+							}
+						});
+					} catch (IOException e) {
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+			while (scheduler.getQueueDepth() < threads.size())
+				Thread.sleep(5);
+		}
+
+		assertEquals(1, scheduler.getQueueDepth(Priority.INTERACTIVE));
+		// permits 50ms apart, so each request runs before the next one's permit
+		scheduler.setRate(20);
+		for (Thread t : threads)
+			t.join();
+
+		// the head bulk request already waits for its permit, the interactive
+		// one overtakes the other queued bulk request
+		assertEquals(Priority.BULK, order.get(0));
+		assertEquals(Priority.INTERACTIVE, order.get(1));
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+}
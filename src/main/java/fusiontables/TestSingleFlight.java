@@ -0,0 +1,180 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import main.java.fusiontables.RequestScheduler.Request;
+
+public class TestSingleFlight {
+
+	private final SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+	private final AtomicInteger runs = new AtomicInteger();
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final Request<Integer> blocking = new Request<Integer>() {
+		@Override
+		public Integer execute() throws IOException {
+			int run = runs.incrementAndGet();
+			started.countDown();
+			try {
+				// later runs take a while, for the callers to meet again
+				if (run == 1)
+					release.await();
+				else
+					Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			return run;
+		}
+	};
+
+	private Thread call(final List<Object> results, final boolean fresh) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				Object result;
+				try {
+					result = fresh ? flights.executeFresh("k", blocking) : flights.execute("k", blocking);
+				} catch (IOException e) {
+					result = e;
+				}
+				synchronized (results) {
+					results.add(result);
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static void waitForWaiters() throws InterruptedException {
+		// no way to observe a waiting caller, give them time to arrive
+		Thread.sleep(100);
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		List<Object> results = new ArrayList<Object>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(call(results, false));
+		started.await();
+		for (int i = 0; i < 4; i++)
+			threads.add(call(results, false));
+		waitForWaiters();
+
+		release.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(1, runs.get());
+		assertEquals(5, results.size());
+		for (Object r : results)
+			assertEquals(1, r);
+		assertEquals(1, flights.getExecuted());
+		assertEquals(4, flights.getShared());
+
+		// nothing in flight, the next call runs again
+		assertEquals(Integer.valueOf(2), flights.execute("k", blocking));
+	}
+
+	@Test
+	public void testFresh() throws Exception {
+		List<Object> results = new ArrayList<Object>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(call(results, false));
+		started.await();
+		for (int i = 0; i < 3; i++)
+			threads.add(call(results, true));
+		waitForWaiters();
+
+		release.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		// the fresh callers share one request after the one in flight
+		assertEquals(2, runs.get());
+		assertEquals(1, results.get(0));
+		for (Object r : results.subList(1, results.size()))
+			assertEquals(2, r);
+	}
+
+	@Test
+	public void testGeneration() throws Exception {
+		final List<Object> results = new ArrayList<Object>();
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Integer result = flights.execute("k", 1, blocking);
+					synchronized (results) {
+						results.add(result);
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+		first.start();
+		started.await();
+
+		// a later generation does not wait for the request in flight
+		assertEquals(Integer.valueOf(2), flights.execute("k", 2, blocking));
+		assertTrue(first.isAlive());
+
+		release.countDown();
+		first.join();
+		assertEquals(1, results.get(0));
+		assertEquals(0, flights.getShared());
+	}
+
+	@Test
+	public void testFailureShared() throws Exception {
+		final CountDownLatch failing = new CountDownLatch(1);
+		Request<Integer> failure = new Request<Integer>() {
+			@Override
+			public Integer execute() throws IOException {
+				runs.incrementAndGet();
+				try {
+					failing.await();
+				} catch (InterruptedException e) {
+				}
+				throw new IOException("failed");
+			}
+		};
+
+		final List<Object> results = new ArrayList<Object>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			final Request<Integer> request = failure;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						flights.execute("k", request);
+					} catch (IOException e) {
+						synchronized (results) {
+							results.add(e.getMessage());
+						}
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		waitForWaiters();
+		failing.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(1, runs.get());
+		assertEquals(3, results.size());
+	}
+}
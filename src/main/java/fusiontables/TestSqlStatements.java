@@ -0,0 +1,138 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestSqlStatements {
+
+	@Test
+	public void testClassification() {
+		assertTrue(SqlStatements.isDdl("  drop table t"));
+		assertTrue(SqlStatements.isDdl("CREATE VIEW v AS (SELECT * FROM t)"));
+		assertFalse(SqlStatements.isDdl("DROPPED"));
+		assertFalse(SqlStatements.isDdl("SELECT * FROM t"));
+
+		assertTrue(SqlStatements.isRead("\nselect * from t"));
+		assertFalse(SqlStatements.isRead("INSERT INTO t (a) VALUES (1)"));
+
+		assertTrue(SqlStatements.onlyInserts("INSERT INTO t (a) VALUES ('x;DELETE');insert into t (a) VALUES (2);"));
+		assertFalse(SqlStatements.onlyInserts("INSERT INTO t (a) VALUES (1);DELETE FROM t WHERE ROWID = '1'"));
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("SELECT a, b FROM t WHERE c = '  x  '",
+				SqlStatements.normalize("  SELECT   a,\n b FROM t\tWHERE c = '  x  ' ;"));
+		assertEquals("SELECT 'it\\'s  so'", SqlStatements.normalize("SELECT  'it\\'s  so'"));
+	}
+
+	@Test
+	public void testReferencedTables() {
+		assertEquals(new HashSet<String>(Arrays.asList("1abc", "my table")), SqlStatements
+				.referencedTables("SELECT * FROM 1abc LEFT OUTER JOIN 'my table' ON a = b"));
+		assertEquals(new HashSet<String>(Arrays.asList("t")),
+				SqlStatements.referencedTables("INSERT INTO t (a) VALUES (1);INSERT INTO t (a) VALUES (2)"));
+		assertEquals(new HashSet<String>(Arrays.asList("my table")),
+				SqlStatements.referencedTables("DESCRIBE 'my table'"));
+		assertEquals("t", SqlStatements.fromTable("select a from t where b = 1").get());
+	}
+
+	@Test
+	public void testLiteral() {
+		assertEquals("1.5", SqlStatements.literal(1.5));
+		assertEquals("'O\\'Brien'", SqlStatements.literal("O'Brien"));
+		assertEquals("''", SqlStatements.literal(null));
+	}
+
+	@Test
+	public void testReplaceTables() {
+		Map<String, String> ids = new HashMap<String, String>();
+		ids.put("t", "1abc");
+		ids.put("my table", "1def");
+
+		assertEquals("SELECT * FROM 1abc LEFT OUTER JOIN 1def ON a = b",
+				SqlStatements.replaceTables("SELECT * FROM t LEFT OUTER JOIN 'my table' ON a = b", ids));
+		assertEquals("INSERT INTO 1abc (a) VALUES ('from t')",
+				SqlStatements.replaceTables("INSERT INTO t (a) VALUES ('from t')", ids));
+		assertEquals("CREATE TABLE t AS (SELECT * FROM 1abc)",
+				SqlStatements.replaceTables("CREATE TABLE t AS (SELECT * FROM t)", ids));
+		assertEquals("describe 1def", SqlStatements.replaceTables("describe 'my table'", ids));
+		assertEquals("SELECT * FROM unknown", SqlStatements.replaceTables("SELECT * FROM unknown", ids));
+	}
+
+	@Test
+	public void testTemplate() {
+		SqlTemplate template = new SqlTemplate(null, "INSERT INTO t (a, 'b?', c) VALUES (?, '?', ?, ?)");
+		assertEquals(3, template.getParameterCount());
+		assertFalse(template.isRead());
+
+		SqlTemplate.Binding binding = template.newBinding();
+		binding.setString(0, "it's").setLong(1, 42).setDouble(2, 1.5);
+		assertEquals("INSERT INTO t (a, 'b?', c) VALUES ('it\\'s', '?', 42, 1.5)", binding.sql());
+
+		binding.setAll("x' OR 'a' = 'a", 1, new java.util.Date(0));
+		assertEquals("INSERT INTO t (a, 'b?', c) VALUES ('x\\' OR \\'a\\' = \\'a', '?', 1, '1970-01-01 00:00:00')",
+				binding.sql());
+
+		binding.setDouble(0, 1e20).set(1, new java.math.BigDecimal("0.1000000000000000055511")).set(2, 1.5f);
+		assertEquals("INSERT INTO t (a, 'b?', c) VALUES (100000000000000000000, '?', 0.1000000000000000055511, 1.5)",
+				binding.sql());
+		binding.setDouble(0, 1e-7).set(1, new java.math.BigInteger("9007199254740993"));
+		assertEquals("INSERT INTO t (a, 'b?', c) VALUES (0.0000001, '?', 9007199254740993, 1.5)", binding.sql());
+
+		try {
+			binding.setDouble(0, Double.NaN);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		try {
+			binding.set(0, Double.POSITIVE_INFINITY);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		try {
+			binding.setString(0, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		try {
+			binding.set(0, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		// a rejected null leaves the parameter unbound
+		binding.clear().setLong(1, 1).setLong(2, 2);
+		try {
+			binding.setString(0, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			binding.sql();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		try {
+			binding.clear().setString(0, "a").sql();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		try {
+			new SqlTemplate(null, "SELECT * FROM t WHERE a = 'x");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cg.ftc.shared.structures.TableInfo;
+import org.junit.Test;
+
+import com.google.api.services.fusiontables.model.Column;
+import com.google.api.services.fusiontables.model.Table;
+
+public class TestTableInfoIndex {
+
+	private static Table table(String id, String name, String... columns) {
+		List<Column> cols = new ArrayList<Column>();
+		for (String c : columns)
+			cols.add(new Column().setName(c).setType("STRING").setKind("fusiontables#column"));
+		return new Table().setTableId(id).setName(name).setDescription("").setColumns(cols);
+	}
+
+	@Test
+	public void testDiff() {
+		TableInfoIndex index = new TableInfoIndex();
+
+		TableInfoChanges changes = index.apply(Arrays.asList(table("1", "a", "x"), table("2", "b", "x")));
+		assertEquals(2, changes.added.size());
+		assertTrue(changes.removed.isEmpty() && changes.modified.isEmpty());
+		assertEquals("1", index.idOf("a"));
+		TableInfo b = index.tables().get(1);
+
+		changes = index.apply(Arrays.asList(table("1", "a", "x"), table("2", "b", "x")));
+		assertTrue(changes.isEmpty());
+		assertSame(b, index.tables().get(1));
+
+		changes = index.apply(Arrays.asList(table("1", "renamed", "x"), table("2", "b", "x", "y"), table("3", "c")));
+		assertEquals(1, changes.added.size());
+		assertEquals("3", changes.added.get(0).id);
+		assertEquals(2, changes.modified.size());
+		assertNull(index.idOf("a"));
+		assertEquals("1", index.idOf("renamed"));
+		assertEquals(2, index.tables().get(1).columns.size());
+
+		changes = index.apply(Arrays.asList(table("3", "c")));
+		assertEquals(2, changes.removed.size());
+		assertEquals(1, index.tables().size());
+		assertNull(index.idOf("b"));
+	}
+
+	@Test
+	public void testAmbiguousNames() {
+		TableInfoIndex index = new TableInfoIndex();
+		index.apply(Arrays.asList(table("1", "a"), table("2", "a"), table("3", "b")));
+
+		assertTrue(index.isAmbiguous("a"));
+		assertFalse(index.isAmbiguous("b"));
+		assertEquals("2", index.idOf("a"));
+
+		index.apply(Arrays.asList(table("1", "a"), table("3", "b")));
+		assertFalse(index.isAmbiguous("a"));
+		assertEquals("1", index.idOf("a"));
+	}
+
+	@Test
+	public void testOrder() {
+		TableInfoIndex index = new TableInfoIndex();
+		index.apply(Arrays.asList(table("1", "a"), table("2", "b")));
+		TableInfoChanges changes = index.apply(Arrays.asList(table("2", "b"), table("1", "a")));
+
+		assertTrue(changes.isEmpty());
+		assertEquals("2", index.tables().get(0).id);
+	}
+
+	@Test
+	public void testResolverSnapshot() throws InterruptedException {
+		final TableInfoIndex index = new TableInfoIndex();
+		index.apply(Arrays.asList(table("1", "a"), table("2", "b")));
+		final TableNameResolver resolver = index.resolver;
+		assertEquals("2", resolver.resolve("b"));
+		assertEquals("SELECT * FROM 2", resolver.rewrite("SELECT * FROM b"));
+
+		// readers always see a complete mapping while the list changes
+		final AtomicBoolean failed = new AtomicBoolean();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (!done.get())
+					if (!resolver.idOf("a").isPresent())
+						failed.set(true);
+			}
+		};
+		reader.start();
+		for (int i = 0; i < 1000; i++)
+			index.apply(Arrays.asList(table("1", "a"), table("2", i % 2 == 0 ? "b" : "c")));
+		done.set(true);
+		reader.join();
+
+		assertFalse(failed.get());
+		assertEquals("2", resolver.resolve("c"));
+		assertEquals("b", resolver.resolve("b"));
+	}
+}
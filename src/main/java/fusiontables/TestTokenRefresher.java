@@ -0,0 +1,100 @@
+package main.java.fusiontables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cg.common.core.SystemLogger;
+import org.junit.Test;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+public class TestTokenRefresher {
+
+	private final AtomicInteger tokenRequests = new AtomicInteger();
+
+	private Credential credential(final int status, long expiresInSeconds) {
+		MockHttpTransport transport = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+				return new MockLowLevelHttpRequest() {
+					@Override
+					public LowLevelHttpResponse execute() throws IOException {
+						int n = tokenRequests.incrementAndGet();
+						return new MockLowLevelHttpResponse().setStatusCode(status)
+								.setContentType("application/json; charset=UTF-8")
+								.setContent(status == 200 ? "{\"access_token\":\"token" + n + "\",\"expires_in\":3600}"
+										: "{\"error\":\"invalid_grant\"}");
+					}
+				};
+			}
+		};
+
+		Credential result = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+				.setTransport(transport).setJsonFactory(JacksonFactory.getDefaultInstance())
+				.setTokenServerUrl(new GenericUrl("http://localhost/token"))
+				.setClientAuthentication(new ClientParametersAuthentication("id", "secret")).build();
+		result.setAccessToken("token0").setRefreshToken("refresh").setExpiresInSeconds(expiresInSeconds);
+		return result;
+	}
+
+	private static void waitFor(AtomicInteger value, int expected) throws InterruptedException {
+		for (int i = 0; i < 100 && value.get() < expected; i++)
+			Thread.sleep(20);
+	}
+
+	@Test
+	public void testRefreshBeforeExpiry() throws InterruptedException {
+		TokenRefresher refresher = new TokenRefresher(new SystemLogger(), 300, 1);
+		Credential c = credential(200, 10);
+
+		refresher.track(c);
+		waitFor(tokenRequests, 1);
+
+		assertEquals(1, tokenRequests.get());
+		assertEquals("token1", c.getAccessToken());
+		// next refresh is 3600 - 300 seconds out
+		assertTrue(refresher.isTracked(c));
+
+		refresher.untrackAll();
+		assertFalse(refresher.isTracked(c));
+	}
+
+	@Test
+	public void testNotTracked() {
+		TokenRefresher refresher = new TokenRefresher(new SystemLogger(), 300, 1);
+
+		Credential withoutRefreshToken = credential(200, 10).setRefreshToken(null);
+		refresher.track(withoutRefreshToken);
+		assertFalse(refresher.isTracked(withoutRefreshToken));
+
+		Credential withoutExpiry = credential(200, 10).setExpirationTimeMilliseconds(null);
+		refresher.track(withoutExpiry);
+		assertFalse(refresher.isTracked(withoutExpiry));
+	}
+
+	@Test
+	public void testRejectedRefresh() throws InterruptedException {
+		TokenRefresher refresher = new TokenRefresher(new SystemLogger(), 300, 1);
+		Credential c = credential(400, 10);
+
+		refresher.track(c);
+		waitFor(tokenRequests, 1);
+		for (int i = 0; i < 100 && refresher.isTracked(c); i++)
+			Thread.sleep(20);
+
+		assertFalse(refresher.isTracked(c));
+		Thread.sleep(1200);
+		assertEquals(1, tokenRequests.get());
+	}
+}
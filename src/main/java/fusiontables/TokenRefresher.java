@@ -0,0 +1,117 @@
+package main.java.fusiontables;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.cg.common.core.Logging;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Refreshes the access tokens of tracked credentials marginSeconds before they
+ * expire, so requests don't run into a 401 and the refresh round trip. A
+ * failed refresh is retried after retrySeconds, the credential still refreshes
+ * itself on a 401 if all retries fail. Credentials without refresh token or
+ * expiry are left alone, so is a credential whose refresh gets rejected.
+ */
+class TokenRefresher {
+
+	public static final long DEFAULT_MARGIN_SECONDS = 300;
+	public static final long DEFAULT_RETRY_SECONDS = 30;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-token-refresh").build());
+
+	private final Logging logger;
+	private final long marginSeconds;
+	private final long retrySeconds;
+	private final Map<Credential, ScheduledFuture<?>> scheduled = new HashMap<Credential, ScheduledFuture<?>>();
+
+	TokenRefresher(Logging logger) {
+		this(logger, DEFAULT_MARGIN_SECONDS, DEFAULT_RETRY_SECONDS);
+	}
+
+	TokenRefresher(Logging logger, long marginSeconds, long retrySeconds) {
+		this.logger = logger;
+		this.marginSeconds = marginSeconds;
+		this.retrySeconds = retrySeconds;
+	}
+
+	synchronized void track(Credential credential) {
+		if (!scheduled.containsKey(credential))
+			scheduleNext(credential);
+	}
+
+	synchronized void untrack(Credential credential) {
+		ScheduledFuture<?> pending = scheduled.remove(credential);
+		if (pending != null)
+			pending.cancel(false);
+	}
+
+	synchronized void untrackAll() {
+		for (ScheduledFuture<?> pending : scheduled.values())
+			pending.cancel(false);
+		scheduled.clear();
+	}
+
+	synchronized boolean isTracked(Credential credential) {
+		return scheduled.containsKey(credential);
+	}
+
+	private synchronized void scheduleNext(Credential credential) {
+		Long expiresIn = credential.getExpiresInSeconds();
+		if (credential.getRefreshToken() == null || expiresIn == null) {
+			scheduled.remove(credential);
+			return;
+		}
+
+		schedule(credential, Math.max(0, expiresIn - marginSeconds));
+	}
+
+	private synchronized void schedule(final Credential credential, long delaySeconds) {
+		scheduled.put(credential, scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				refresh(credential);
+			}
+		}, delaySeconds, TimeUnit.SECONDS));
+	}
+
+	private void refresh(Credential credential) {
+		synchronized (this) {
+			if (!scheduled.containsKey(credential))
+				return;
+		}
+
+		boolean refreshed;
+		try {
+			refreshed = credential.refreshToken();
+		} catch (TokenResponseException e) {
+			// revoked or invalid grant, retrying won't help
+			logger.Error("token refresh rejected: " + e.getMessage());
+			untrack(credential);
+			return;
+		} catch (IOException e) {
+			logger.Error("token refresh failed: " + e.getMessage());
+			refreshed = false;
+		}
+
+		synchronized (this) {
+			// untracked while refreshing
+			if (!scheduled.containsKey(credential))
+				return;
+
+			if (refreshed)
+				scheduleNext(credential);
+			else
+				schedule(credential, retrySeconds);
+		}
+	}
+}
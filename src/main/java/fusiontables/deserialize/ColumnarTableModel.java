@@ -0,0 +1,435 @@
+package main.java.fusiontables.deserialize;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Read only, column oriented TableModel for query results. Cells are the text
+ * Fusion Tables sent, null for JSON null, typed values come from getDouble()
+ * and getDate(). NUMBER columns are held as double[], DATETIME columns as
+ * long[] epoch millis (UTC), everything else dictionary encoded. A typed
+ * column falls back to dictionary encoding if any of its values does not parse
+ * or its text can't be rebuilt exactly from the parsed value, e.g. integers
+ * beyond 2^53.
+ */
+public class ColumnarTableModel extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String NUMBER = "NUMBER";
+	public static final String DATETIME = "DATETIME";
+
+	private static final long NULL_DATETIME = Long.MIN_VALUE;
+	private static final String[] dateTimePatterns = { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd" };
+
+	private static final ThreadLocal<SimpleDateFormat[]> formats = new ThreadLocal<SimpleDateFormat[]>() {
+		@Override
+		protected SimpleDateFormat[] initialValue() {
+			return dateTimeFormats();
+		}
+	};
+
+	private final String[] names;
+	private final Column[] columns;
+	private final int rowCount;
+
+	private ColumnarTableModel(String[] names, Column[] columns, int rowCount) {
+		this.names = names;
+		this.columns = columns;
+		this.rowCount = rowCount;
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return names[column];
+	}
+
+	/**
+	 * @return the cell as sent, null for JSON null
+	 */
+	@Override
+	public Object getValueAt(int row, int column) {
+		return columns[column].get(row);
+	}
+
+	/**
+	 * @return NaN for null, empty and non numeric cells
+	 */
+	public double getDouble(int row, int column) {
+		Column c = columns[column];
+		if (c instanceof NumberColumn)
+			return ((NumberColumn) c).values[row];
+
+		String value = c.get(row);
+		if (value == null || value.length() == 0)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * @return null for null, empty and cells that are no DATETIME
+	 */
+	public Date getDate(int row, int column) {
+		Column c = columns[column];
+		if (c instanceof DateTimeColumn) {
+			long v = ((DateTimeColumn) c).values[row];
+			return v == NULL_DATETIME ? null : new Date(v);
+		}
+
+		String value = c.get(row);
+		return value == null ? null : parseDateTime(formats.get(), value);
+	}
+
+	/**
+	 * @return the types the columns ended up with, NUMBER, DATETIME or STRING
+	 */
+	public String getStorageType(int column) {
+		return columns[column].type();
+	}
+
+	/**
+	 * rough heap size of the cell data
+	 */
+	public long estimatedBytes() {
+		long result = 0;
+		for (Column c : columns)
+			result += c.estimatedBytes();
+		return result;
+	}
+
+	public static ColumnarTableModel of(List<String> columnNames, List<? extends List<String>> rows,
+			List<String> columnTypes) {
+		Builder builder = new Builder(columnNames, columnTypes);
+		for (List<String> row : rows)
+			builder.addRow(row);
+		return builder.build();
+	}
+
+	private static abstract class Column {
+		abstract String get(int row);
+
+		abstract String type();
+
+		abstract long estimatedBytes();
+	}
+
+	/**
+	 * integral values without fraction, others as Double.toString. A NUMBER
+	 * column is held as double[] only if all its values are written this way.
+	 */
+	public static String formatNumber(double d) {
+		if (d == Math.rint(d) && Math.abs(d) < 1e15)
+			return Long.toString((long) d);
+		return Double.toString(d);
+	}
+
+	private static class NumberColumn extends Column {
+		final double[] values;
+		// NaN rows that were empty, not null
+		final BitSet empty;
+
+		NumberColumn(double[] values, BitSet empty) {
+			this.values = values;
+			this.empty = empty;
+		}
+
+		@Override
+		String get(int row) {
+			double v = values[row];
+			if (Double.isNaN(v))
+				return empty.get(row) ? "" : null;
+			return formatNumber(v);
+		}
+
+		@Override
+		String type() {
+			return NUMBER;
+		}
+
+		@Override
+		long estimatedBytes() {
+			return 8L * values.length + empty.size() / 8;
+		}
+	}
+
+	private static class DateTimeColumn extends Column {
+		final long[] values;
+		// NULL_DATETIME rows that were empty, not null
+		final BitSet empty;
+		// index of the pattern all values were written in
+		final int pattern;
+
+		DateTimeColumn(long[] values, BitSet empty, int pattern) {
+			this.values = values;
+			this.empty = empty;
+			this.pattern = pattern;
+		}
+
+		@Override
+		String get(int row) {
+			long v = values[row];
+			if (v == NULL_DATETIME)
+				return empty.get(row) ? "" : null;
+			return formats.get()[pattern].format(new Date(v));
+		}
+
+		@Override
+		String type() {
+			return DATETIME;
+		}
+
+		@Override
+		long estimatedBytes() {
+			return 8L * values.length + empty.size() / 8;
+		}
+	}
+
+	private static class StringColumn extends Column {
+		final int[] codes;
+		final String[] dictionary;
+
+		StringColumn(int[] codes, String[] dictionary) {
+			this.codes = codes;
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		String get(int row) {
+			return dictionary[codes[row]];
+		}
+
+		@Override
+		String type() {
+			return "STRING";
+		}
+
+		@Override
+		long estimatedBytes() {
+			long result = 4L * codes.length;
+			for (String s : dictionary)
+				result += s == null ? 8 : 48 + 2L * s.length();
+			return result;
+		}
+	}
+
+	/**
+	 * Collects rows dictionary encoded, typed columns are converted in build(),
+	 * parsing each distinct value only once.
+	 */
+	public static class Builder {
+		private final String[] names;
+		private final String[] types;
+		private final ColumnBuffer[] buffers;
+		private int rowCount = 0;
+
+		/**
+		 * @param columnTypes
+		 *            Fusion Tables column types, may be null or contain nulls
+		 *            for unknown types
+		 */
+		public Builder(List<String> columnNames, List<String> columnTypes) {
+			names = columnNames.toArray(new String[columnNames.size()]);
+			types = new String[names.length];
+			buffers = new ColumnBuffer[names.length];
+			for (int i = 0; i < names.length; i++) {
+				buffers[i] = new ColumnBuffer();
+				if (columnTypes != null && i < columnTypes.size())
+					types[i] = columnTypes.get(i);
+			}
+		}
+
+		public void addRow(List<String> row) {
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i].add(i < row.size() ? row.get(i) : null);
+			rowCount++;
+		}
+
+		public int columnCount() {
+			return buffers.length;
+		}
+
+		public void add(int column, String value) {
+			buffers[column].add(value);
+		}
+
+		/**
+		 * to be called after the cells of a row got added, columns missing in
+		 * the row are set to null
+		 */
+		public void endRow() {
+			rowCount++;
+			for (ColumnBuffer b : buffers)
+				while (b.size < rowCount)
+					b.add(null);
+		}
+
+		public ColumnarTableModel build() {
+			Column[] columns = new Column[buffers.length];
+			for (int i = 0; i < buffers.length; i++)
+				columns[i] = buffers[i].toColumn(types[i], rowCount);
+			return new ColumnarTableModel(names, columns, rowCount);
+		}
+	}
+
+	private static class ColumnBuffer {
+		private final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+		private final List<String> dictionary = new ArrayList<String>();
+		private int[] codes = new int[16];
+		private int size = 0;
+
+		void add(String value) {
+			Integer code = codesByValue.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add(value);
+				codesByValue.put(value, code);
+			}
+			if (size == codes.length)
+				codes = Arrays.copyOf(codes, size * 2);
+			codes[size++] = code;
+		}
+
+		Column toColumn(String type, int rowCount) {
+			int[] rowCodes = Arrays.copyOf(codes, rowCount);
+
+			if (NUMBER.equalsIgnoreCase(type)) {
+				double[] decoded = parseNumbers();
+				if (decoded != null) {
+					double[] values = new double[rowCount];
+					for (int i = 0; i < rowCount; i++)
+						values[i] = decoded[rowCodes[i]];
+					return new NumberColumn(values, emptyRows(rowCodes));
+				}
+			} else if (DATETIME.equalsIgnoreCase(type)) {
+				SimpleDateFormat[] formats = dateTimeFormats();
+				int pattern = pattern(formats);
+				long[] decoded = pattern < 0 ? null : parseDateTimes(formats[pattern]);
+				if (decoded != null) {
+					long[] values = new long[rowCount];
+					for (int i = 0; i < rowCount; i++)
+						values[i] = decoded[rowCodes[i]];
+					return new DateTimeColumn(values, emptyRows(rowCodes), pattern);
+				}
+			}
+
+			return new StringColumn(rowCodes, dictionary.toArray(new String[dictionary.size()]));
+		}
+
+		private BitSet emptyRows(int[] rowCodes) {
+			BitSet result = new BitSet();
+			Integer empty = codesByValue.get("");
+			if (empty != null)
+				for (int i = 0; i < rowCodes.length; i++)
+					if (rowCodes[i] == empty)
+						result.set(i);
+			return result;
+		}
+
+		/**
+		 * @return null if a value does not parse or does not round trip
+		 */
+		private double[] parseNumbers() {
+			double[] result = new double[dictionary.size()];
+			for (int i = 0; i < result.length; i++) {
+				String value = dictionary.get(i);
+				if (value == null || value.length() == 0)
+					result[i] = Double.NaN;
+				else
+					try {
+						result[i] = Double.parseDouble(value);
+						if (Double.isNaN(result[i]) || !formatNumber(result[i]).equals(value))
+							return null;
+					} catch (NumberFormatException e) {
+						return null;
+					}
+			}
+			return result;
+		}
+
+		/**
+		 * @return index of the format the first value parses with, -1 if none
+		 *         does
+		 */
+		private int pattern(SimpleDateFormat[] formats) {
+			for (String value : dictionary)
+				if (value != null && value.length() > 0) {
+					for (int i = 0; i < formats.length; i++)
+						if (parseDateTime(new SimpleDateFormat[] { formats[i] }, value) != null)
+							return i;
+					return -1;
+				}
+			return 0;
+		}
+
+		/**
+		 * @return null if a value does not parse with format or does not round
+		 *         trip
+		 */
+		private long[] parseDateTimes(SimpleDateFormat format) {
+			SimpleDateFormat[] formats = { format };
+			long[] result = new long[dictionary.size()];
+			for (int i = 0; i < result.length; i++) {
+				String value = dictionary.get(i);
+				if (value == null || value.length() == 0)
+					result[i] = NULL_DATETIME;
+				else {
+					Date d = parseDateTime(formats, value);
+					if (d == null || d.getTime() == NULL_DATETIME || !format.format(d).equals(value))
+						return null;
+					result[i] = d.getTime();
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * strict, UTC parsers of the DATETIME formats, not thread safe
+	 */
+	public static SimpleDateFormat[] dateTimeFormats() {
+		SimpleDateFormat[] formats = new SimpleDateFormat[dateTimePatterns.length];
+		for (int i = 0; i < formats.length; i++) {
+			formats[i] = new SimpleDateFormat(dateTimePatterns[i]);
+			formats[i].setLenient(false);
+			formats[i].setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+		return formats;
+	}
+
+	/**
+	 * @return null if none of the formats parses the whole value
+	 */
+	public static Date parseDateTime(SimpleDateFormat[] formats, String value) {
+		for (SimpleDateFormat f : formats) {
+			ParsePosition pos = new ParsePosition(0);
+			Date d = f.parse(value, pos);
+			if (d != null && pos.getIndex() == value.length())
+				return d;
+		}
+		return null;
+	}
+}
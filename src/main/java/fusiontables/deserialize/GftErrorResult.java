@@ -0,0 +1,133 @@
+package main.java.fusiontables.deserialize;
+
+import java.io.IOException;
+
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.common.base.Optional;
+
+/**
+ * A failed request with the error Fusion Tables reported, message holds the
+ * error message without status line and JSON around it.
+ */
+public class GftErrorResult extends QueryResult {
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	/**
+	 * code in the error body, 0 if there was none
+	 */
+	public final int code;
+
+	/**
+	 * reason of the first error, e.g. badQueryCouldNotParse
+	 */
+	public final Optional<String> reason;
+
+	/**
+	 * location of the first error, e.g. the query parameter q
+	 */
+	public final Optional<String> location;
+
+	public GftErrorResult(HttpStatus status, int code, String reason, String location, String message) {
+		super(status, null, message);
+		this.code = code;
+		this.reason = Optional.fromNullable(reason);
+		this.location = Optional.fromNullable(location);
+	}
+
+	public static GftErrorResult of(HttpStatus status, GoogleJsonError details) {
+		String reason = null;
+		String location = null;
+		String message = details.getMessage();
+		if (details.getErrors() != null && !details.getErrors().isEmpty()) {
+			GoogleJsonError.ErrorInfo first = details.getErrors().get(0);
+			reason = first.getReason();
+			location = first.getLocation();
+			if (message == null)
+				message = first.getMessage();
+		}
+		return new GftErrorResult(status, details.getCode(), reason, location, message);
+	}
+
+	/**
+	 * parses an error body as in badRequestJson.txt, with or without status
+	 * line before it, bare or wrapped in "error"
+	 *
+	 * @return absent if there is no JSON object in text
+	 */
+	public static Optional<GftErrorResult> parse(HttpStatus status, String text) {
+		int start = text == null ? -1 : text.indexOf('{');
+		if (start < 0)
+			return Optional.absent();
+
+		try {
+			JsonParser parser = factory.createParser(text.substring(start));
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT)
+					return Optional.absent();
+				return Optional.of(read(parser, status));
+			} finally {
+				parser.close();
+			}
+		} catch (IOException e) {
+			return Optional.absent();
+		}
+	}
+
+	private static GftErrorResult read(JsonParser parser, HttpStatus status) throws IOException {
+		int code = 0;
+		String reason = null;
+		String location = null;
+		String message = null;
+		String firstMessage = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (field.equals("error") && value == JsonToken.START_OBJECT)
+				return read(parser, status);
+			else if (field.equals("code") && value == JsonToken.VALUE_NUMBER_INT)
+				code = parser.getIntValue();
+			else if (field.equals("message") && value == JsonToken.VALUE_STRING)
+				message = parser.getText();
+			else if (field.equals("errors") && value == JsonToken.START_ARRAY) {
+				// the first error is the one worth reporting
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String name = parser.getCurrentName();
+						parser.nextToken();
+						if (reason == null && name.equals("reason"))
+							reason = parser.getValueAsString();
+						else if (location == null && name.equals("location"))
+							location = parser.getValueAsString();
+						else if (firstMessage == null && name.equals("message"))
+							firstMessage = parser.getValueAsString();
+						else
+							parser.skipChildren();
+					}
+				}
+			} else
+				parser.skipChildren();
+		}
+
+		return new GftErrorResult(status, code, reason, location, message != null ? message : firstMessage);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder().append(status);
+		if (reason.isPresent())
+			s.append(' ').append(reason.get());
+		if (location.isPresent())
+			s.append(" at ").append(location.get());
+		if (message.isPresent())
+			s.append(": ").append(message.get());
+		return s.toString();
+	}
+}
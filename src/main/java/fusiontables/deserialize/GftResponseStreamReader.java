@@ -0,0 +1,274 @@
+package main.java.fusiontables.deserialize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Reads a query().sql response straight from the http stream into a
+ * GftResponseJson or a ColumnarTableModel, token by token. No intermediate
+ * String, no pretty print, no binding into rows. ColumnarTableModels come
+ * from one shared ObjectReader.
+ */
+public class GftResponseStreamReader {
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	private static final String COLUMN_TYPES = "columnTypes";
+
+	/**
+	 * Jackson's caches get built once, the column types of a response are
+	 * passed as attribute of the per call reader
+	 */
+	private static final ObjectReader tableReader = new ObjectMapper(factory)
+			.registerModule(new SimpleModule().addDeserializer(ColumnarTableModel.class, new TableDeserializer()))
+			.readerFor(ColumnarTableModel.class);
+
+	private interface Handler extends RowSink {
+		void kind(String kind);
+	}
+
+	private static class VectorHandler implements Handler {
+		final GftResponseJson result = new GftResponseJson();
+		private Vector<String> row;
+
+		VectorHandler() {
+			result.columns = new Vector<String>();
+			result.rows = new Vector<Vector<String>>();
+		}
+
+		@Override
+		public void kind(String kind) {
+			result.kind = kind;
+		}
+
+		@Override
+		public void columns(List<String> columns) {
+			result.columns.addAll(columns);
+		}
+
+		@Override
+		public void cell(int column, String value) {
+			if (row == null)
+				row = new Vector<String>(Math.max(result.columns.size(), 1));
+			row.add(value);
+		}
+
+		@Override
+		public void endRow() {
+			result.rows.add(row == null ? new Vector<String>() : row);
+			row = null;
+		}
+	}
+
+	private static class ColumnarHandler implements Handler {
+		private final Map<String, String> columnTypes;
+		private ColumnarTableModel.Builder builder;
+
+		ColumnarHandler(Map<String, String> columnTypes) {
+			this.columnTypes = columnTypes;
+		}
+
+		@Override
+		public void kind(String kind) {
+		}
+
+		@Override
+		public void columns(List<String> columns) {
+			List<String> types = new ArrayList<String>(columns.size());
+			for (String c : columns)
+				types.add(columnTypes.get(c));
+			builder = new ColumnarTableModel.Builder(columns, types);
+		}
+
+		@Override
+		public void cell(int column, String value) throws IOException {
+			checkColumnsRead();
+			if (column < builder.columnCount())
+				builder.add(column, value);
+		}
+
+		@Override
+		public void endRow() throws IOException {
+			checkColumnsRead();
+			builder.endRow();
+		}
+
+		private void checkColumnsRead() throws IOException {
+			if (builder == null)
+				throw new IOException("rows before columns in response");
+		}
+
+		ColumnarTableModel result() {
+			if (builder == null)
+				builder = new ColumnarTableModel.Builder(new ArrayList<String>(), null);
+			return builder.build();
+		}
+	}
+
+	/**
+	 * binds a response to a ColumnarTableModel, cells go from the parser into
+	 * the column of their type without rows in between
+	 */
+	private static class TableDeserializer extends StdDeserializer<ColumnarTableModel> {
+		private static final long serialVersionUID = 1L;
+
+		TableDeserializer() {
+			super(ColumnarTableModel.class);
+		}
+
+		@Override
+		public ColumnarTableModel deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+			@SuppressWarnings("unchecked")
+			Map<String, String> columnTypes = (Map<String, String>) ctxt.getAttribute(COLUMN_TYPES);
+			ColumnarHandler handler = new ColumnarHandler(
+					columnTypes == null ? new HashMap<String, String>() : columnTypes);
+			expect(parser.getCurrentToken(), JsonToken.START_OBJECT);
+			readObject(parser, handler);
+			return handler.result();
+		}
+	}
+
+	public static GftResponseJson read(InputStream content) throws IOException {
+		VectorHandler handler = new VectorHandler();
+		read(factory.createParser(content), handler);
+		return handler.result;
+	}
+
+	public static GftResponseJson read(String json) throws IOException {
+		VectorHandler handler = new VectorHandler();
+		read(factory.createParser(json), handler);
+		return handler.result;
+	}
+
+	/**
+	 * @param columnTypes
+	 *            Fusion Tables column types by column name, columns not
+	 *            contained are kept as strings
+	 */
+	public static ColumnarTableModel readTable(InputStream content, Map<String, String> columnTypes)
+			throws IOException {
+		return checkTable(tableReader.withAttribute(COLUMN_TYPES, columnTypes).<ColumnarTableModel> readValue(content));
+	}
+
+	/**
+	 * @param columnTypes
+	 *            Fusion Tables column types by column name, columns not
+	 *            contained are kept as strings
+	 */
+	public static ColumnarTableModel readTable(String json, Map<String, String> columnTypes) throws IOException {
+		return checkTable(tableReader.withAttribute(COLUMN_TYPES, columnTypes).<ColumnarTableModel> readValue(json));
+	}
+
+	/**
+	 * a top level null does not reach the deserializer
+	 */
+	private static ColumnarTableModel checkTable(ColumnarTableModel table) throws IOException {
+		if (table == null)
+			throw new IOException("unexpected token " + JsonToken.VALUE_NULL + ", expected " + JsonToken.START_OBJECT);
+		return table;
+	}
+
+	/**
+	 * passes the columns and rows to the sink as they are parsed, nothing of
+	 * the response is kept
+	 */
+	public static void stream(InputStream content, final RowSink sink) throws IOException {
+		read(factory.createParser(content), new Handler() {
+			@Override
+			public void kind(String kind) {
+			}
+
+			@Override
+			public void columns(List<String> columns) throws IOException {
+				sink.columns(columns);
+			}
+
+			@Override
+			public void cell(int column, String value) throws IOException {
+				sink.cell(column, value);
+			}
+
+			@Override
+			public void endRow() throws IOException {
+				sink.endRow();
+			}
+		});
+	}
+
+	private static void read(JsonParser parser, Handler handler) throws IOException {
+		try {
+			expect(parser.nextToken(), JsonToken.START_OBJECT);
+			readObject(parser, handler);
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static void readObject(JsonParser parser, Handler handler) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if ("columns".equals(field) && value == JsonToken.START_ARRAY)
+				handler.columns(readColumns(parser));
+			else if ("rows".equals(field) && value == JsonToken.START_ARRAY)
+				readRows(parser, handler);
+			else if ("kind".equals(field))
+				handler.kind(parser.getValueAsString());
+			else
+				parser.skipChildren();
+		}
+	}
+
+	private static List<String> readColumns(JsonParser parser) throws IOException {
+		List<String> columns = new ArrayList<String>();
+		while (parser.nextToken() != JsonToken.END_ARRAY)
+			columns.add(parser.getValueAsString());
+		return columns;
+	}
+
+	private static void readRows(JsonParser parser, Handler handler) throws IOException {
+		while (parser.nextToken() == JsonToken.START_ARRAY) {
+			int column = 0;
+			JsonToken t;
+			while ((t = parser.nextToken()) != JsonToken.END_ARRAY)
+				handler.cell(column++, cellValue(parser, t));
+			handler.endRow();
+		}
+	}
+
+	private static String cellValue(JsonParser parser, JsonToken t) throws IOException {
+		if (t == JsonToken.VALUE_NULL)
+			return null;
+		if (!t.isStructStart())
+			return parser.getText();
+
+		// geometry cells come as nested json, keep them as json text
+		StringWriter w = new StringWriter();
+		JsonGenerator g = factory.createGenerator(w);
+		g.copyCurrentStructure(parser);
+		g.close();
+		return w.toString();
+	}
+
+	private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected)
+			throw new IOException("unexpected token " + actual + ", expected " + expected);
+	}
+}
@@ -0,0 +1,19 @@
+package main.java.fusiontables.deserialize;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives a query result in the order the parts of the response arrive.
+ */
+public interface RowSink {
+	void columns(List<String> columns) throws IOException;
+
+	/**
+	 * @param value
+	 *            null for null cells, geometries as json text
+	 */
+	void cell(int column, String value) throws IOException;
+
+	void endRow() throws IOException;
+}
@@ -0,0 +1,90 @@
+package main.java.fusiontables.deserialize;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestColumnarTableModel {
+
+	@SuppressWarnings("unchecked")
+	private final List<List<String>> rows = Arrays.asList(Arrays.asList("a", "1", "2015-05-20 00:00:00", "x"),
+			Arrays.asList("b", "2.5", "2015-05-21 00:00:00", "1"), Arrays.asList("a", null, "", "2"));
+
+	private final List<String> names = Arrays.asList("Text", "Number", "Date", "Mixed");
+
+	@Test
+	public void testTypedColumns() {
+		ColumnarTableModel m = ColumnarTableModel.of(names, rows,
+				Arrays.asList("STRING", "NUMBER", "DATETIME", "NUMBER"));
+
+		assertEquals(3, m.getRowCount());
+		assertEquals(4, m.getColumnCount());
+		assertEquals("Number", m.getColumnName(1));
+
+		assertEquals("a", m.getValueAt(2, 0));
+
+		assertEquals("NUMBER", m.getStorageType(1));
+		assertEquals(2.5, m.getDouble(1, 1), 0);
+		assertEquals("1", m.getValueAt(0, 1));
+		assertNull(m.getValueAt(2, 1));
+
+		assertEquals("DATETIME", m.getStorageType(2));
+		assertEquals(1432080000000L, m.getDate(0, 2).getTime());
+		assertEquals("2015-05-20 00:00:00", m.getValueAt(0, 2));
+		assertEquals("", m.getValueAt(2, 2));
+		assertNull(m.getDate(2, 2));
+
+		// "x" does not parse, the column stays a string column
+		assertEquals("STRING", m.getStorageType(3));
+		assertEquals("x", m.getValueAt(0, 3));
+	}
+
+	@Test
+	public void testUntypedColumns() {
+		ColumnarTableModel m = ColumnarTableModel.of(names, rows, null);
+
+		for (int i = 0; i < m.getColumnCount(); i++)
+			assertEquals("STRING", m.getStorageType(i));
+		assertEquals("1", m.getValueAt(0, 1));
+		assertEquals(1, m.getDouble(0, 1), 0);
+		assertEquals(1432166400000L, m.getDate(1, 2).getTime());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		// text that doesn't come back the same from double or millis stays
+		@SuppressWarnings("unchecked")
+		List<List<String>> values = Arrays.asList(Arrays.asList("9007199254740993", "2015-05-20", "1", ""),
+				Arrays.asList("1.50", "2015-05-21 00:00:00", "1e3", null));
+		ColumnarTableModel m = ColumnarTableModel.of(names, values,
+				Arrays.asList("NUMBER", "DATETIME", "NUMBER", "NUMBER"));
+
+		assertEquals("STRING", m.getStorageType(0));
+		assertEquals("9007199254740993", m.getValueAt(0, 0));
+		assertEquals("1.50", m.getValueAt(1, 0));
+		assertEquals("STRING", m.getStorageType(1));
+		assertEquals("2015-05-20", m.getValueAt(0, 1));
+		assertEquals("STRING", m.getStorageType(2));
+		assertEquals(1000, m.getDouble(1, 2), 0);
+
+		assertEquals("NUMBER", m.getStorageType(3));
+		assertEquals("", m.getValueAt(0, 3));
+		assertNull(m.getValueAt(1, 3));
+		assertTrue(Double.isNaN(m.getDouble(0, 3)));
+	}
+
+	@Test
+	public void testShortRows() {
+		ColumnarTableModel.Builder b = new ColumnarTableModel.Builder(names, null);
+		b.add(0, "a");
+		b.endRow();
+
+		ColumnarTableModel m = b.build();
+		assertEquals(1, m.getRowCount());
+		assertEquals("a", m.getValueAt(0, 0));
+		assertNull(m.getValueAt(0, 3));
+	}
+}
@@ -2,8 +2,11 @@ package main.java.fusiontables.deserialize;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.table.TableModel;
 
@@ -46,6 +49,53 @@ public class TestDeserializeGftJson {
 
 	}
 
+	@Test
+	public void testStreamDeserializer() {
+		QueryResult dsResult = FusionTablesConnector
+				.deserializeGftJsonStream(FusionTablesConnector.class.getResourceAsStream("/jsonData.txt"));
+		assertEquals(HttpStatus.SC_OK, dsResult.status);
+		assertFalse(dsResult.message.isPresent());
+		TableModel data = dsResult.data.get();
+
+		assertEquals(2, data.getRowCount());
+		assertEquals(5, data.getColumnCount());
+		assertEquals("Date", data.getColumnName(0));
+		assertEquals("20", data.getValueAt(1, 4));
+	}
+
+	@Test
+	public void testDeserializerColumnTypes() {
+		String json = FileUtil.readFromStream(FusionTablesConnector.class.getResourceAsStream("/jsonData.txt"));
+		Map<String, String> columnTypes = new HashMap<String, String>();
+		columnTypes.put("Date", ColumnarTableModel.DATETIME);
+		columnTypes.put("total", ColumnarTableModel.NUMBER);
+
+		TableModel data = FusionTablesConnector.deserializeGftJson(json, columnTypes).data.get();
+		ColumnarTableModel columnar = (ColumnarTableModel) data;
+		assertEquals(ColumnarTableModel.DATETIME, columnar.getStorageType(0));
+		assertEquals("STRING", columnar.getStorageType(1));
+		assertEquals(ColumnarTableModel.NUMBER, columnar.getStorageType(4));
+		assertEquals(20.0, columnar.getDouble(1, 4), 0);
+		assertEquals("20", data.getValueAt(1, 4));
+
+		assertEquals(HttpStatus.SC_METHOD_FAILURE, FusionTablesConnector.deserializeGftJson("{\"rows\":[[1]]}").status);
+		assertEquals(HttpStatus.SC_METHOD_FAILURE,
+				FusionTablesConnector.deserializeGftJsonStream(new ByteArrayInputStream("null".getBytes())).status);
+	}
+
+	@Test
+	public void testStreamDeserializerCellTypes() throws IOException {
+		String json = "{\"kind\":\"fusiontables#sqlresponse\",\"columns\":[\"a\",\"b\",\"c\"],"
+				+ "\"rows\":[[1.5,null,{\"geometry\":{\"type\":\"Point\"}}]]}";
+		GftResponseJson data = GftResponseStreamReader.read(json);
+
+		assertEquals("fusiontables#sqlresponse", data.kind);
+		assertEquals(1, data.rows.size());
+		assertEquals("1.5", data.rows.get(0).get(0));
+		assertNull(data.rows.get(0).get(1));
+		assertEquals("{\"geometry\":{\"type\":\"Point\"}}", data.rows.get(0).get(2));
+	}
+
 	@Test
 	public void testDeserializerErrorResult() {
 
@@ -69,6 +119,39 @@ public class TestDeserializeGftJson {
 		assertEquals(HttpStatus.SC_BAD_REQUEST, dsResult.status);
 		assertTrue(dsResult.message.isPresent());
 		assertFalse(dsResult.data.isPresent());
+
+		GftErrorResult error = (GftErrorResult) dsResult;
+		assertEquals(400, error.code);
+		assertEquals("badQueryCouldNotParse", error.reason.get());
+		assertEquals("q", error.location.get());
+		assertEquals("Invalid query: Column `daatum' does not exist", error.message.get());
+	}
+
+	@Test
+	public void testErrorResultWrapped() {
+		GftErrorResult error = GftErrorResult.parse(HttpStatus.SC_NOT_FOUND,
+				"{\"error\":{\"errors\":[{\"domain\":\"fusiontables\",\"reason\":\"notFound\","
+						+ "\"message\":\"table t not found\",\"extra\":{\"a\":[1]}}],\"code\":404}}").get();
+		assertEquals(HttpStatus.SC_NOT_FOUND, error.status);
+		assertEquals(404, error.code);
+		assertEquals("notFound", error.reason.get());
+		assertFalse(error.location.isPresent());
+		assertEquals("table t not found", error.message.get());
+
+		assertFalse(GftErrorResult.parse(HttpStatus.SC_BAD_REQUEST, "400 Bad Request").isPresent());
+		assertFalse(GftErrorResult.parse(HttpStatus.SC_BAD_REQUEST, null).isPresent());
+	}
+
+	@Test
+	public void testStatusSniffing() {
+		assertEquals(HttpStatus.SC_OK, FusionTablesConnector.deserializeGftJson(" \n {\"columns\":[],\"rows\":[]} \n").status);
+		assertEquals(HttpStatus.SC_NO_CONTENT, FusionTablesConnector.deserializeGftJson(" {} ").status);
+		assertEquals(HttpStatus.SC_NO_CONTENT, FusionTablesConnector.deserializeGftJson("-40").status);
+		assertEquals(HttpStatus.SC_NO_CONTENT, FusionTablesConnector.deserializeGftJson("4x0 Bad").status);
+
+		QueryResult result = FusionTablesConnector.deserializeGftJson("\n404 Not Found");
+		assertEquals(HttpStatus.SC_NOT_FOUND, result.status);
+		assertEquals("\n404 Not Found", result.message.get());
 	}
 	
 	@Test
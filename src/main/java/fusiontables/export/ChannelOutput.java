@@ -0,0 +1,116 @@
+package main.java.fusiontables.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Little endian output through a direct buffer, written to the channel
+ * whenever it fills up.
+ */
+final class ChannelOutput {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private long bytesWritten = 0;
+
+	ChannelOutput(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush();
+	}
+
+	void putByte(int b) throws IOException {
+		ensure(1);
+		buffer.put((byte) b);
+	}
+
+	void putInt(int i) throws IOException {
+		ensure(4);
+		buffer.putInt(i);
+	}
+
+	void putLong(long l) throws IOException {
+		ensure(8);
+		buffer.putLong(l);
+	}
+
+	void putDouble(double d) throws IOException {
+		ensure(8);
+		buffer.putDouble(d);
+	}
+
+	void putUtf8(String s) throws IOException {
+		putUtf8(s, 0, s.length());
+	}
+
+	void putUtf8(String s, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				ensure(1);
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				ensure(2);
+				buffer.put((byte) (0xc0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				ensure(4);
+				buffer.put((byte) (0xf0 | cp >> 18));
+				buffer.put((byte) (0x80 | cp >> 12 & 0x3f));
+				buffer.put((byte) (0x80 | cp >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | cp & 0x3f));
+			} else {
+				// unpaired surrogates as '?', like String.getBytes
+				if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+					c = '?';
+				ensure(3);
+				buffer.put((byte) (0xe0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * the number of bytes putUtf8 writes
+	 */
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else
+				length += 3;
+		}
+		return length;
+	}
+
+	/**
+	 * writes what is buffered, blocks until the channel took all of it
+	 */
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			bytesWritten += channel.write(buffer);
+		buffer.clear();
+	}
+
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+}
@@ -0,0 +1,202 @@
+package main.java.fusiontables.export;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+
+/**
+ * Writes a query result column by column in batches of rows, similar to Arrow
+ * record batches. All numbers are little endian.
+ * 
+ * <pre>
+ * header   MAGIC, int column count,
+ *          per column: int name length, UTF-8 name, byte declared type
+ * batch    int row count (n > 0), per column:
+ *          byte encoding, validity bitmap of (n + 7) / 8 bytes, bit i of
+ *          byte i / 8 set for non null values, then the values:
+ *          FLOAT64 n doubles, TIMESTAMP_MILLIS n longs (UTC epoch millis),
+ *          UTF8 n + 1 int offsets followed by the UTF-8 bytes
+ * end      int 0
+ * </pre>
+ * 
+ * NUMBER and DATETIME columns are declared typed. A column of a batch is
+ * encoded UTF8 if any of its values does not parse, empty values are null.
+ */
+public class ColumnarExporter extends ResultExporter {
+
+	public static final byte[] MAGIC = { 'F', 'T', 'C', '1' };
+
+	public static final byte UTF8 = 0;
+	public static final byte FLOAT64 = 1;
+	public static final byte TIMESTAMP_MILLIS = 2;
+
+	static final int DEFAULT_BATCH_ROWS = 4096;
+
+	private final Map<String, String> columnTypes;
+	private final int batchRows;
+
+	private byte[] types;
+	private String[][] batch;
+	private int rows = 0;
+
+	private final double[] doubles;
+	private final long[] longs;
+	private final int[] lengths;
+	private SimpleDateFormat[] dateTimeFormats = null;
+
+	ColumnarExporter(WritableByteChannel channel, Map<String, String> columnTypes, int batchRows) {
+		super(channel);
+		this.columnTypes = columnTypes == null ? Collections.<String, String> emptyMap() : columnTypes;
+		this.batchRows = batchRows;
+		doubles = new double[batchRows];
+		longs = new long[batchRows];
+		lengths = new int[batchRows];
+	}
+
+	@Override
+	public void columns(List<String> columns) throws IOException {
+		types = new byte[columns.size()];
+		batch = new String[columns.size()][batchRows];
+
+		for (byte b : MAGIC)
+			out.putByte(b);
+		out.putInt(columns.size());
+		for (int i = 0; i < types.length; i++) {
+			String name = columns.get(i);
+			types[i] = typeOf(columnTypes.get(name));
+			out.putInt(ChannelOutput.utf8Length(name));
+			out.putUtf8(name);
+			out.putByte(types[i]);
+		}
+	}
+
+	private static byte typeOf(String fusionTablesType) {
+		if (ColumnarTableModel.NUMBER.equalsIgnoreCase(fusionTablesType))
+			return FLOAT64;
+		if (ColumnarTableModel.DATETIME.equalsIgnoreCase(fusionTablesType))
+			return TIMESTAMP_MILLIS;
+		return UTF8;
+	}
+
+	@Override
+	public void cell(int column, String value) throws IOException {
+		if (batch == null)
+			throw new IOException("rows before columns in response");
+		if (column < batch.length)
+			batch[column][rows] = value;
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		if (batch == null)
+			throw new IOException("rows before columns in response");
+		rowCount++;
+		if (++rows == batchRows)
+			writeBatch();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (batch == null)
+			columns(Collections.<String> emptyList());
+		if (rows > 0)
+			writeBatch();
+		out.putInt(0);
+		super.finish();
+	}
+
+	private void writeBatch() throws IOException {
+		out.putInt(rows);
+		for (int i = 0; i < batch.length; i++) {
+			String[] values = batch[i];
+			if (types[i] == FLOAT64 && parseNumbers(values))
+				writeDoubles(values);
+			else if (types[i] == TIMESTAMP_MILLIS && parseDateTimes(values))
+				writeLongs(values);
+			else
+				writeStrings(values);
+			Arrays.fill(values, 0, rows, null);
+		}
+		rows = 0;
+	}
+
+	private static boolean isNull(String value) {
+		return value == null || value.length() == 0;
+	}
+
+	private boolean parseNumbers(String[] values) {
+		for (int i = 0; i < rows; i++)
+			if (isNull(values[i]))
+				doubles[i] = 0;
+			else
+				try {
+					doubles[i] = Double.parseDouble(values[i]);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+		return true;
+	}
+
+	private boolean parseDateTimes(String[] values) {
+		if (dateTimeFormats == null)
+			dateTimeFormats = ColumnarTableModel.dateTimeFormats();
+
+		for (int i = 0; i < rows; i++)
+			if (isNull(values[i]))
+				longs[i] = 0;
+			else {
+				Date d = ColumnarTableModel.parseDateTime(dateTimeFormats, values[i]);
+				if (d == null)
+					return false;
+				longs[i] = d.getTime();
+			}
+		return true;
+	}
+
+	private void writeValidity(String[] values, boolean emptyIsNull) throws IOException {
+		for (int start = 0; start < rows; start += 8) {
+			int bits = 0;
+			for (int i = start; i < Math.min(start + 8, rows); i++)
+				if (values[i] != null && !(emptyIsNull && values[i].length() == 0))
+					bits |= 1 << (i - start);
+			out.putByte(bits);
+		}
+	}
+
+	private void writeDoubles(String[] values) throws IOException {
+		out.putByte(FLOAT64);
+		writeValidity(values, true);
+		for (int i = 0; i < rows; i++)
+			out.putDouble(doubles[i]);
+	}
+
+	private void writeLongs(String[] values) throws IOException {
+		out.putByte(TIMESTAMP_MILLIS);
+		writeValidity(values, true);
+		for (int i = 0; i < rows; i++)
+			out.putLong(longs[i]);
+	}
+
+	private void writeStrings(String[] values) throws IOException {
+		out.putByte(UTF8);
+		writeValidity(values, false);
+
+		int offset = 0;
+		out.putInt(offset);
+		for (int i = 0; i < rows; i++) {
+			lengths[i] = values[i] == null ? 0 : ChannelOutput.utf8Length(values[i]);
+			offset += lengths[i];
+			out.putInt(offset);
+		}
+		for (int i = 0; i < rows; i++)
+			if (lengths[i] > 0)
+				out.putUtf8(values[i]);
+	}
+}
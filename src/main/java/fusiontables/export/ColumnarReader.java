@@ -0,0 +1,146 @@
+package main.java.fusiontables.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import main.java.fusiontables.deserialize.ColumnarTableModel;
+import main.java.fusiontables.deserialize.RowSink;
+
+/**
+ * Reads one result written by ColumnarExporter from a buffer, e.g. a file's
+ * content, and passes it to a RowSink as strings. Numbers without fraction come
+ * as integers, timestamps as yyyy-MM-dd HH:mm:ss in UTC. The buffer is left
+ * positioned after the result, results written one after another can be read
+ * in turn.
+ */
+public class ColumnarReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final List<String> names;
+	private final byte[] types;
+	private SimpleDateFormat dateTimeFormat = null;
+
+	/**
+	 * reads the header
+	 */
+	public ColumnarReader(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			for (byte b : ColumnarExporter.MAGIC)
+				if (buffer.get() != b)
+					throw new IOException("not a columnar export");
+
+			int columns = buffer.getInt();
+			List<String> n = new ArrayList<String>(columns);
+			types = new byte[columns];
+			for (int i = 0; i < columns; i++) {
+				n.add(utf8(buffer.getInt()));
+				types[i] = buffer.get();
+			}
+			names = Collections.unmodifiableList(n);
+		} catch (RuntimeException e) {
+			throw truncated(e);
+		}
+	}
+
+	private static IOException truncated(RuntimeException e) {
+		return new IOException("truncated or corrupt columnar export", e);
+	}
+
+	public List<String> getColumnNames() {
+		return names;
+	}
+
+	/**
+	 * the declared types, ColumnarExporter.UTF8, FLOAT64 or TIMESTAMP_MILLIS
+	 */
+	public byte[] getColumnTypes() {
+		return types.clone();
+	}
+
+	/**
+	 * passes the column names and then all rows to the sink
+	 * 
+	 * @return the number of rows read
+	 */
+	public long read(RowSink sink) throws IOException {
+		sink.columns(names);
+
+		long rows = 0;
+		String[][] batch = new String[names.size()][];
+		try {
+			int n;
+			while ((n = buffer.getInt()) > 0) {
+				for (int c = 0; c < batch.length; c++)
+					batch[c] = readColumn(n, batch[c]);
+				for (int r = 0; r < n; r++) {
+					for (int c = 0; c < batch.length; c++)
+						sink.cell(c, batch[c][r]);
+					sink.endRow();
+				}
+				rows += n;
+			}
+		} catch (RuntimeException e) {
+			throw truncated(e);
+		}
+		return rows;
+	}
+
+	private String[] readColumn(int rows, String[] values) throws IOException {
+		if (values == null || values.length < rows)
+			values = new String[rows];
+
+		byte encoding = buffer.get();
+		byte[] validity = new byte[(rows + 7) / 8];
+		buffer.get(validity);
+
+		switch (encoding) {
+		case ColumnarExporter.FLOAT64:
+			for (int i = 0; i < rows; i++) {
+				double d = buffer.getDouble();
+				values[i] = valid(validity, i) ? ColumnarTableModel.formatNumber(d) : null;
+			}
+			break;
+		case ColumnarExporter.TIMESTAMP_MILLIS:
+			if (dateTimeFormat == null) {
+				dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+				dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			}
+			for (int i = 0; i < rows; i++) {
+				long millis = buffer.getLong();
+				values[i] = valid(validity, i) ? dateTimeFormat.format(new Date(millis)) : null;
+			}
+			break;
+		case ColumnarExporter.UTF8:
+			int[] offsets = new int[rows + 1];
+			for (int i = 0; i <= rows; i++)
+				offsets[i] = buffer.getInt();
+			for (int i = 0; i < rows; i++)
+				values[i] = valid(validity, i) ? utf8(offsets[i + 1] - offsets[i]) : null;
+			break;
+		default:
+			throw new IOException("unknown column encoding " + encoding);
+		}
+		return values;
+	}
+
+	private static boolean valid(byte[] validity, int row) {
+		return (validity[row >> 3] & 1 << (row & 7)) != 0;
+	}
+
+	private String utf8(int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
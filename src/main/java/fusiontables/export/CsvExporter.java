@@ -0,0 +1,70 @@
+package main.java.fusiontables.export;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+class CsvExporter extends ResultExporter {
+
+	private int column = 0;
+
+	CsvExporter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	@Override
+	public void columns(List<String> columns) throws IOException {
+		for (String c : columns)
+			field(c);
+		endLine();
+	}
+
+	@Override
+	public void cell(int column, String value) throws IOException {
+		field(value);
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		endLine();
+		rowCount++;
+	}
+
+	private void field(String value) throws IOException {
+		if (column++ > 0)
+			out.putByte(',');
+		if (value == null)
+			return;
+
+		if (!needsQuotes(value)) {
+			out.putUtf8(value);
+			return;
+		}
+
+		out.putByte('"');
+		int start = 0;
+		int quote;
+		while ((quote = value.indexOf('"', start)) >= 0) {
+			out.putUtf8(value, start, quote + 1);
+			out.putByte('"');
+			start = quote + 1;
+		}
+		out.putUtf8(value, start, value.length());
+		out.putByte('"');
+	}
+
+	private static boolean needsQuotes(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\r' || c == '\n')
+				return true;
+		}
+		return false;
+	}
+
+	private void endLine() throws IOException {
+		out.putByte('\r');
+		out.putByte('\n');
+		column = 0;
+	}
+}
@@ -0,0 +1,16 @@
+package main.java.fusiontables.export;
+
+/**
+ * Formats FusionTablesConnector.export writes query results in.
+ */
+public enum ExportFormat {
+	/**
+	 * RFC 4180, UTF-8, a header line with the column names, null cells empty
+	 */
+	CSV,
+
+	/**
+	 * column oriented batches of rows, see {@link ColumnarExporter}
+	 */
+	COLUMNAR
+}
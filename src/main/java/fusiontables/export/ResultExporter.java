@@ -0,0 +1,53 @@
+package main.java.fusiontables.export;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import main.java.fusiontables.deserialize.RowSink;
+
+/**
+ * Writes rows to a channel as they arrive. Only a bounded part of the result
+ * is held in memory, whatever its size.
+ */
+public abstract class ResultExporter implements RowSink {
+
+	final ChannelOutput out;
+	long rowCount = 0;
+
+	ResultExporter(WritableByteChannel channel) {
+		out = new ChannelOutput(channel);
+	}
+
+	/**
+	 * @param columnTypes
+	 *            Fusion Tables column types by column name, used by formats
+	 *            that store NUMBER and DATETIME columns typed
+	 */
+	public static ResultExporter create(ExportFormat format, WritableByteChannel channel,
+			Map<String, String> columnTypes) {
+		switch (format) {
+		case CSV:
+			return new CsvExporter(channel);
+		case COLUMNAR:
+			return new ColumnarExporter(channel, columnTypes, ColumnarExporter.DEFAULT_BATCH_ROWS);
+		default:
+			throw new IllegalArgumentException("unknown format " + format);
+		}
+	}
+
+	/**
+	 * writes what is still pending, to be called once after the last row
+	 */
+	public void finish() throws IOException {
+		out.flush();
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public long getBytesWritten() {
+		return out.getBytesWritten();
+	}
+}
@@ -0,0 +1,146 @@
+package main.java.fusiontables.export;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import main.java.fusiontables.deserialize.RowSink;
+
+public class TestResultExporter {
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	private void write(ResultExporter exporter, List<String> columns, String[]... rows) throws IOException {
+		exporter.columns(columns);
+		for (String[] row : rows) {
+			for (int i = 0; i < row.length; i++)
+				exporter.cell(i, row[i]);
+			exporter.endRow();
+		}
+		exporter.finish();
+		assertEquals(rows.length, exporter.getRowCount());
+		assertEquals(bytes.size(), exporter.getBytesWritten());
+	}
+
+	@Test
+	public void testCsv() throws IOException {
+		write(ResultExporter.create(ExportFormat.CSV, Channels.newChannel(bytes), null), Arrays.asList("a", "b,c"),
+				new String[] { "x", null }, new String[] { "say \"hi\"", "1\n2" }, new String[] { "\u00e4\ud83d\ude00" });
+
+		assertEquals("a,\"b,c\"\r\nx,\r\n\"say \"\"hi\"\"\",\"1\n2\"\r\n\u00e4\ud83d\ude00\r\n", bytes.toString("UTF-8"));
+	}
+
+	@Test
+	public void testColumnar() throws IOException {
+		Map<String, String> types = new HashMap<String, String>();
+		types.put("n", "NUMBER");
+		types.put("d", "DATETIME");
+		types.put("m", "NUMBER");
+
+		// batches of 2 rows, "x" makes the second batch of m a string column
+		write(new ColumnarExporter(Channels.newChannel(bytes), types, 2), Arrays.asList("s", "n", "d", "m"),
+				new String[] { "a", "1.5", "1970-01-01 00:00:01", "1" }, new String[] { null, "", null, "2" },
+				new String[] { "\u00e4", "3", "1970-01-02", "x" });
+
+		ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		for (byte m : ColumnarExporter.MAGIC)
+			assertEquals(m, b.get());
+		assertEquals(4, b.getInt());
+		byte[] declared = { ColumnarExporter.UTF8, ColumnarExporter.FLOAT64, ColumnarExporter.TIMESTAMP_MILLIS,
+				ColumnarExporter.FLOAT64 };
+		for (byte type : declared) {
+			assertEquals(1, b.getInt());
+			b.get();
+			assertEquals(type, b.get());
+		}
+
+		assertEquals(2, b.getInt());
+		assertEquals(ColumnarExporter.UTF8, b.get());
+		assertEquals(1, b.get());
+		assertEquals(0, b.getInt());
+		assertEquals(1, b.getInt());
+		assertEquals(1, b.getInt());
+		assertEquals('a', b.get());
+
+		assertEquals(ColumnarExporter.FLOAT64, b.get());
+		assertEquals(1, b.get());
+		assertEquals(1.5, b.getDouble(), 0);
+		b.getDouble();
+
+		assertEquals(ColumnarExporter.TIMESTAMP_MILLIS, b.get());
+		assertEquals(1, b.get());
+		assertEquals(1000, b.getLong());
+		b.getLong();
+
+		assertEquals(ColumnarExporter.FLOAT64, b.get());
+		assertEquals(3, b.get());
+		assertEquals(1, b.getDouble(), 0);
+		assertEquals(2, b.getDouble(), 0);
+
+		assertEquals(1, b.getInt());
+		assertEquals(ColumnarExporter.UTF8, b.get());
+		assertEquals(1, b.get());
+		assertEquals(0, b.getInt());
+		assertEquals(2, b.getInt());
+		byte[] utf8 = new byte[2];
+		b.get(utf8);
+		assertEquals("\u00e4", new String(utf8, "UTF-8"));
+
+		assertEquals(ColumnarExporter.FLOAT64, b.get());
+		assertEquals(1, b.get());
+		assertEquals(3, b.getDouble(), 0);
+
+		assertEquals(ColumnarExporter.TIMESTAMP_MILLIS, b.get());
+		assertEquals(1, b.get());
+		assertEquals(86400000L, b.getLong());
+
+		assertEquals(ColumnarExporter.UTF8, b.get());
+		assertEquals(1, b.get());
+		assertEquals(0, b.getInt());
+		assertEquals(1, b.getInt());
+		assertEquals('x', b.get());
+
+		assertEquals(0, b.getInt());
+		assertFalse(b.hasRemaining());
+	}
+
+	@Test
+	public void testColumnarRoundTrip() throws IOException {
+		Map<String, String> types = new HashMap<String, String>();
+		types.put("n", "NUMBER");
+		types.put("d", "DATETIME");
+		write(new ColumnarExporter(Channels.newChannel(bytes), types, 2), Arrays.asList("s", "n", "d"),
+				new String[] { "a", "1.5", "2015-05-20" }, new String[] { null, "2", null },
+				new String[] { "\u00e4", "", "2015-05-21 10:00:00" });
+
+		final StringBuilder read = new StringBuilder();
+		ColumnarReader reader = new ColumnarReader(ByteBuffer.wrap(bytes.toByteArray()));
+		assertEquals(Arrays.asList("s", "n", "d"), reader.getColumnNames());
+		assertEquals(3, reader.read(new RowSink() {
+			@Override
+			public void columns(List<String> columns) {
+			}
+
+			@Override
+			public void cell(int column, String value) {
+				read.append(value).append(column == 2 ? "" : ",");
+			}
+
+			@Override
+			public void endRow() {
+				read.append('|');
+			}
+		}));
+		assertEquals("a,1.5,2015-05-20 00:00:00|null,2,null|\u00e4,null,2015-05-21 10:00:00|", read.toString());
+	}
+}
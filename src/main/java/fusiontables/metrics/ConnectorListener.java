@@ -0,0 +1,9 @@
+package main.java.fusiontables.metrics;
+
+/**
+ * Gets told about every completed connector operation. Called on the thread
+ * that ran the operation, so implementations should be quick and thread safe.
+ */
+public interface ConnectorListener {
+	void operationCompleted(OperationEvent event);
+}
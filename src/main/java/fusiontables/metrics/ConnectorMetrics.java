@@ -0,0 +1,55 @@
+package main.java.fusiontables.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The built in listener, keeps OperationMetrics per operation and exposes
+ * them as MBeans named
+ * main.java.fusiontables:type=FusionTablesConnector,name=..,operation=..
+ */
+public class ConnectorMetrics implements ConnectorListener {
+
+	private final Map<Operation, OperationMetrics> metrics = new EnumMap<Operation, OperationMetrics>(
+			Operation.class);
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	public ConnectorMetrics() {
+		for (Operation o : Operation.values())
+			metrics.put(o, new OperationMetrics());
+	}
+
+	@Override
+	public void operationCompleted(OperationEvent event) {
+		metrics.get(event.operation).record(event);
+	}
+
+	public OperationMetrics get(Operation operation) {
+		return metrics.get(operation);
+	}
+
+	public synchronized void registerMBeans(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Operation o : Operation.values()) {
+			ObjectName objectName = new ObjectName(String.format(
+					"main.java.fusiontables:type=FusionTablesConnector,name=%s,operation=%s",
+					ObjectName.quote(name), o.displayName()));
+			server.registerMBean(metrics.get(o), objectName);
+			registered.add(objectName);
+		}
+	}
+
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName n : registered)
+			server.unregisterMBean(n);
+		registered.clear();
+	}
+}
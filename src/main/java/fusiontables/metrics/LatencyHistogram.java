@@ -0,0 +1,80 @@
+package main.java.fusiontables.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free, log-linear histogram of microsecond values in the spirit of
+ * HdrHistogram: each power of two range is split in 32 buckets, so recorded
+ * values are off by at most about 3%.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = 2 * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	static int index(long value) {
+		if (value < LINEAR)
+			return (int) Math.max(value, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+	}
+
+	static long lowerBound(int index) {
+		if (index < LINEAR)
+			return index;
+		int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+		int sub = (index - LINEAR) % SUB_COUNT;
+		return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+	}
+
+	public void record(long micros) {
+		counts.incrementAndGet(index(micros));
+		total.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+			;
+	}
+
+	public long count() {
+		return total.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = total.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param quantile
+	 *            0..1
+	 * @return lower bound of the bucket holding the quantile, 0 if empty
+	 */
+	public long percentile(double quantile) {
+		long n = total.get();
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0)
+				return Math.min(lowerBound(i), max.get());
+		}
+		return max.get();
+	}
+}
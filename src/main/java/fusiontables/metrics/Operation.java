@@ -0,0 +1,24 @@
+package main.java.fusiontables.metrics;
+
+/**
+ * The connector operations that get measured.
+ */
+public enum Operation {
+	EXECUTE_SQL, FETCH, EXPORT, GET_TABLE_INFO, DELETE_TABLE, RENAME_TABLE, CREATE_SAMPLE_TABLE, AUTHORIZE;
+
+	/**
+	 * camel case name as used for the JMX object names
+	 */
+	public String displayName() {
+		StringBuilder sb = new StringBuilder();
+		boolean upper = false;
+		for (char c : name().toLowerCase().toCharArray())
+			if (c == '_')
+				upper = true;
+			else {
+				sb.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,35 @@
+package main.java.fusiontables.metrics;
+
+import org.cg.common.http.HttpStatus;
+
+/**
+ * What one connector operation took and moved. For SQL requests, wire time
+ * lasts until the response headers arrived, deserialization covers reading and
+ * parsing the body. Response bytes are the body as read, after gzip decoding.
+ */
+public class OperationEvent {
+	public final Operation operation;
+	public final HttpStatus status;
+	public final long totalNanos;
+	public final long wireNanos;
+	public final long deserializationNanos;
+	public final long requestBytes;
+	public final long responseBytes;
+	public final long rows;
+
+	public OperationEvent(Operation operation, HttpStatus status, long totalNanos, long wireNanos,
+			long deserializationNanos, long requestBytes, long responseBytes, long rows) {
+		this.operation = operation;
+		this.status = status;
+		this.totalNanos = totalNanos;
+		this.wireNanos = wireNanos;
+		this.deserializationNanos = deserializationNanos;
+		this.requestBytes = requestBytes;
+		this.responseBytes = responseBytes;
+		this.rows = rows;
+	}
+
+	public boolean failed() {
+		return status != HttpStatus.SC_OK;
+	}
+}
@@ -0,0 +1,129 @@
+package main.java.fusiontables.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cg.common.http.HttpStatus;
+
+/**
+ * Running totals and latency distribution of one operation.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final ConcurrentHashMap<HttpStatus, AtomicLong> errorsByStatus = new ConcurrentHashMap<HttpStatus, AtomicLong>();
+	private final AtomicLong wireNanos = new AtomicLong();
+	private final AtomicLong deserializationNanos = new AtomicLong();
+	private final AtomicLong requestBytes = new AtomicLong();
+	private final AtomicLong responseBytes = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+
+	void record(OperationEvent e) {
+		latency.record(e.totalNanos / 1000);
+		wireNanos.addAndGet(e.wireNanos);
+		deserializationNanos.addAndGet(e.deserializationNanos);
+		requestBytes.addAndGet(e.requestBytes);
+		responseBytes.addAndGet(e.responseBytes);
+		rows.addAndGet(e.rows);
+
+		if (e.failed()) {
+			errors.incrementAndGet();
+			AtomicLong count = errorsByStatus.get(e.status);
+			if (count == null) {
+				AtomicLong fresh = new AtomicLong();
+				count = errorsByStatus.putIfAbsent(e.status, fresh);
+				if (count == null)
+					count = fresh;
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public Map<HttpStatus, Long> getErrorCounts() {
+		Map<HttpStatus, Long> result = new TreeMap<HttpStatus, Long>();
+		for (Map.Entry<HttpStatus, AtomicLong> e : errorsByStatus.entrySet())
+			result.put(e.getKey(), e.getValue().get());
+		return result;
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000d;
+	}
+
+	@Override
+	public long getCount() {
+		return latency.count();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	@Override
+	public String getErrorsByStatus() {
+		return getErrorCounts().toString();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.mean() / 1000d;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return millis(latency.percentile(0.5));
+	}
+
+	@Override
+	public double getP90Millis() {
+		return millis(latency.percentile(0.9));
+	}
+
+	@Override
+	public double getP99Millis() {
+		return millis(latency.percentile(0.99));
+	}
+
+	@Override
+	public double getP999Millis() {
+		return millis(latency.percentile(0.999));
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return millis(latency.max());
+	}
+
+	@Override
+	public double getWireMillis() {
+		return wireNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getDeserializationMillis() {
+		return deserializationNanos.get() / 1e6;
+	}
+
+	@Override
+	public long getRequestBytes() {
+		return requestBytes.get();
+	}
+
+	@Override
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	@Override
+	public long getRows() {
+		return rows.get();
+	}
+}
@@ -0,0 +1,34 @@
+package main.java.fusiontables.metrics;
+
+/**
+ * JMX view of one connector operation, times in milliseconds.
+ */
+public interface OperationMetricsMBean {
+	long getCount();
+
+	long getErrorCount();
+
+	String getErrorsByStatus();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getP999Millis();
+
+	double getMaxMillis();
+
+	double getWireMillis();
+
+	double getDeserializationMillis();
+
+	long getRequestBytes();
+
+	long getResponseBytes();
+
+	long getRows();
+}
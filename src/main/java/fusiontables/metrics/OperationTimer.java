@@ -0,0 +1,78 @@
+package main.java.fusiontables.metrics;
+
+import java.util.List;
+
+import org.cg.common.core.Logging;
+import org.cg.common.http.HttpStatus;
+
+/**
+ * Measures one operation while it runs and reports it to the listeners on
+ * stop(). Not thread safe, one instance per call. A failing listener is logged
+ * and doesn't keep the others or the operation from completing.
+ */
+public class OperationTimer {
+
+	private final Operation operation;
+	private final List<ConnectorListener> listeners;
+	private final Logging logger;
+	private final long start = System.nanoTime();
+
+	private long wireEnd = 0;
+	private long requestBytes = 0;
+	private long responseBytes = 0;
+	private long rows = 0;
+	private HttpStatus status = HttpStatus.SC_OK;
+
+	public OperationTimer(Operation operation, List<ConnectorListener> listeners, Logging logger) {
+		this.operation = operation;
+		this.listeners = listeners;
+		this.logger = logger;
+	}
+
+	/**
+	 * marks the end of the network part
+	 */
+	public OperationTimer wireDone() {
+		wireEnd = System.nanoTime();
+		return this;
+	}
+
+	public OperationTimer requestBytes(long value) {
+		requestBytes = value;
+		return this;
+	}
+
+	public OperationTimer responseBytes(long value) {
+		responseBytes = value;
+		return this;
+	}
+
+	public OperationTimer rows(long value) {
+		rows = value;
+		return this;
+	}
+
+	public OperationTimer status(HttpStatus value) {
+		status = value;
+		return this;
+	}
+
+	public void stop() {
+		if (listeners.isEmpty())
+			return;
+
+		long end = System.nanoTime();
+		long wire = wireEnd == 0 ? end - start : wireEnd - start;
+		long deserialization = wireEnd == 0 ? 0 : end - wireEnd;
+
+		OperationEvent event = new OperationEvent(operation, status, end - start, wire, deserialization, requestBytes,
+				responseBytes, rows);
+		for (ConnectorListener l : listeners)
+			try {
+				l.operationCompleted(event);
+			} catch (RuntimeException e) {
+				if (logger != null)
+					logger.Error("connector listener failed on " + operation + ": " + e);
+			}
+	}
+}
@@ -0,0 +1,52 @@
+package main.java.fusiontables.metrics;
+
+import static org.junit.Assert.*;
+
+import org.cg.common.http.HttpStatus;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+	@Test
+	public void testBuckets() {
+		for (long v : new long[] { 0, 1, 63, 64, 65, 100, 1000, 123456, 1L << 40, Long.MAX_VALUE }) {
+			long lower = LatencyHistogram.lowerBound(LatencyHistogram.index(v));
+			assertTrue(lower <= v);
+			assertTrue(v - lower <= v / 32);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.percentile(0.99));
+
+		for (int i = 1; i <= 1000; i++)
+			h.record(i * 10);
+
+		assertEquals(1000, h.count());
+		assertEquals(10000, h.max());
+		assertEquals(5005, h.mean(), 0.001);
+		assertEquals(5000, h.percentile(0.5), 5000 / 32);
+		assertEquals(9900, h.percentile(0.99), 9900 / 32);
+		assertEquals(10000, h.percentile(1), 10000 / 32);
+	}
+
+	@Test
+	public void testOperationMetrics() {
+		OperationMetrics m = new OperationMetrics();
+		m.record(new OperationEvent(Operation.FETCH, HttpStatus.SC_OK, 3000000, 2000000, 1000000, 10, 200, 5));
+		m.record(new OperationEvent(Operation.FETCH, HttpStatus.SC_NOT_FOUND, 1000000, 1000000, 0, 10, 0, 0));
+		m.record(new OperationEvent(Operation.FETCH, HttpStatus.SC_NOT_FOUND, 1000000, 1000000, 0, 10, 0, 0));
+
+		assertEquals(3, m.getCount());
+		assertEquals(2, m.getErrorCount());
+		assertEquals(Long.valueOf(2), m.getErrorCounts().get(HttpStatus.SC_NOT_FOUND));
+		assertEquals(30, m.getRequestBytes());
+		assertEquals(200, m.getResponseBytes());
+		assertEquals(5, m.getRows());
+		assertEquals(4, m.getWireMillis(), 0.001);
+		assertEquals(1, m.getDeserializationMillis(), 0.001);
+		assertEquals(3, m.getMaxMillis(), 0.001);
+	}
+}
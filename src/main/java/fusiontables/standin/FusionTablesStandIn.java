@@ -0,0 +1,780 @@
+package main.java.fusiontables.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory stand-in for the parts of the Fusion Tables v2 API the connector
+ * uses: table list/insert/patch/delete, column list and query sql. Meant for
+ * offline load and latency tests, point a connector at it with
+ * FusionTablesConnector.connectTo(getRootUrl(), ...).
+ *
+ * SQL support is minimal: SELECT cols|* FROM t [WHERE col = 'value'] [ORDER
+ * BY ROWID] [OFFSET n] [LIMIT m], semicolon separated INSERT INTO t (cols) VALUES (...) and DROP
+ * TABLE t. Latency, jitter and error rate apply to every request. Like Google's
+ * front ends it rejects request URLs longer than MAX_URL_CHARS.
+ */
+public class FusionTablesStandIn {
+
+	private static final String servicePath = "/fusiontables/v2/";
+
+	public static final int MAX_URL_CHARS = 8192;
+
+	private static final Pattern select = Pattern.compile(
+			"SELECT\\s+(.+?)\\s+FROM\\s+('[^']*'|\\S+)(?:\\s+WHERE\\s+(\\S+)\\s*=\\s*'([^']*)')?"
+					+ "(?:\\s+ORDER\\s+BY\\s+ROWID)?(?:\\s+OFFSET\\s+(\\d+))?(?:\\s+LIMIT\\s+(\\d+))?",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern insert = Pattern.compile(
+			"INSERT\\s+INTO\\s+('[^']*'|\\S+)\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\((.*)\\)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern drop = Pattern.compile("DROP\\s+TABLE\\s+('[^']*'|\\S+)", Pattern.CASE_INSENSITIVE);
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Map<String, StandInTable> tables = Collections
+			.synchronizedMap(new LinkedHashMap<String, StandInTable>());
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final Random random = new Random();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private volatile long latencyMillis = 0;
+	private volatile long jitterMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile long bytesPerSecond = 0;
+	private volatile int listPageSize = 0;
+	private volatile boolean listColumns = true;
+	private int quotaPerSecond = 0;
+	private long quotaWindow = 0;
+	private int quotaUsed = 0;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	static class StandInTable {
+		final String tableId;
+		volatile String name;
+		volatile String description;
+		final List<String> columnNames = new ArrayList<String>();
+		final List<String> columnTypes = new ArrayList<String>();
+		final List<List<Object>> rows = Collections.synchronizedList(new ArrayList<List<Object>>());
+
+		StandInTable(String tableId, String name, String description) {
+			this.tableId = tableId;
+			this.name = name;
+			this.description = description;
+		}
+
+		Map<String, Object> toJson() {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("kind", "fusiontables#table");
+			result.put("tableId", tableId);
+			result.put("name", name);
+			result.put("description", description);
+			result.put("isExportable", true);
+			result.put("attribution", "");
+			result.put("attributionLink", "");
+			result.put("columnPropertiesJsonSchema", "");
+			result.put("tablePropertiesJsonSchema", "");
+			List<Map<String, Object>> columns = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < columnNames.size(); i++)
+				columns.add(columnJson(i));
+			result.put("columns", columns);
+			return result;
+		}
+
+		Map<String, Object> columnJson(int i) {
+			Map<String, Object> c = new LinkedHashMap<String, Object>();
+			c.put("kind", "fusiontables#column");
+			c.put("columnId", i);
+			c.put("name", columnNames.get(i));
+			c.put("type", columnTypes.get(i));
+			c.put("description", "");
+			c.put("formatPattern", "NONE");
+			c.put("validateData", false);
+			return c;
+		}
+	}
+
+	private static class StandInException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int code;
+		final String reason;
+
+		StandInException(int code, String reason, String message) {
+			super(message);
+			this.code = code;
+			this.reason = reason;
+		}
+	}
+
+	static {
+		// without, small responses wait for the delayed ACK of the headers
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * @param port
+	 *            0 for any free port
+	 */
+	public FusionTablesStandIn(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ftc-standin-%d").build());
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				FusionTablesStandIn.this.handle(exchange);
+			}
+		});
+	}
+
+	public FusionTablesStandIn start() {
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * to be used as root URL of the Fusiontables client
+	 */
+	public String getRootUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * fixed delay plus a uniformly distributed random part per request
+	 */
+	public FusionTablesStandIn setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	/**
+	 * delays each response by its size over bytesPerSecond, 0 for no limit
+	 */
+	public FusionTablesStandIn setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * tables per page of the table list, 0 for all in one page
+	 */
+	public FusionTablesStandIn setListPageSize(int listPageSize) {
+		this.listPageSize = listPageSize;
+		return this;
+	}
+
+	/**
+	 * false leaves the columns out of the table list, they have to be listed
+	 * per table
+	 */
+	public FusionTablesStandIn setListColumns(boolean listColumns) {
+		this.listColumns = listColumns;
+		return this;
+	}
+
+	/**
+	 * share of requests answered with 503 backendError, 0..1
+	 */
+	public FusionTablesStandIn setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * requests per second answered normally, the rest of a second gets 403
+	 * userRateLimitExceeded. 0 for no limit.
+	 */
+	public synchronized FusionTablesStandIn setQuota(int requestsPerSecond) {
+		quotaPerSecond = requestsPerSecond;
+		return this;
+	}
+
+	private synchronized boolean overQuota() {
+		if (quotaPerSecond <= 0)
+			return false;
+
+		long window = System.currentTimeMillis() / 1000;
+		if (window != quotaWindow) {
+			quotaWindow = window;
+			quotaUsed = 0;
+		}
+		return ++quotaUsed > quotaPerSecond;
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * response body bytes as sent, after compression
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public String addTable(String name, List<String> columnNames, List<String> columnTypes) {
+		StandInTable t = new StandInTable(newTableId(), name, "");
+		t.columnNames.addAll(columnNames);
+		t.columnTypes.addAll(columnTypes);
+		tables.put(t.tableId, t);
+		return t.tableId;
+	}
+
+	/**
+	 * a STRING table with rows x columns cells of cellChars characters each,
+	 * to produce responses of a given size
+	 */
+	public String addGeneratedTable(String name, int rows, int columns, int cellChars) {
+		List<String> names = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		for (int c = 0; c < columns; c++) {
+			names.add("col" + c);
+			types.add("STRING");
+		}
+		String id = addTable(name, names, types);
+		StandInTable t = tables.get(id);
+
+		StringBuilder cell = new StringBuilder();
+		for (int r = 0; r < rows; r++) {
+			List<Object> row = new ArrayList<Object>(columns);
+			for (int c = 0; c < columns; c++) {
+				cell.setLength(0);
+				cell.append(r).append('.').append(c);
+				while (cell.length() < cellChars)
+					cell.append('x');
+				row.add(cell.toString());
+			}
+			t.rows.add(row);
+		}
+		return id;
+	}
+
+	private String newTableId() {
+		return "1standin" + nextId.getAndIncrement();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (exchange.getRequestURI().toString().length() > MAX_URL_CHARS)
+				throw new StandInException(414, "requestUriTooLong", "Request-URI Too Large");
+			simulateLatency();
+			if (errorRate > 0 && random.nextDouble() < errorRate)
+				throw new StandInException(503, "backendError", "simulated backend error");
+			if (overQuota())
+				throw new StandInException(403, "userRateLimitExceeded", "User Rate Limit Exceeded");
+
+			Object body = route(exchange);
+			String fields = parameter(exchange.getRequestURI().getRawQuery(), "fields");
+			respond(exchange, 200, fields == null ? body : select(body, parseFields(fields)));
+		} catch (StandInException e) {
+			respond(exchange, e.code, error(e));
+		} catch (IOException e) {
+			respond(exchange, 400, error(new StandInException(400, "parseError", String.valueOf(e.getMessage()))));
+		} catch (RuntimeException e) {
+			respond(exchange, 500, error(new StandInException(500, "internalError", String.valueOf(e.getMessage()))));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void simulateLatency() {
+		sleep(latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0));
+	}
+
+	private static void sleep(long millis) {
+		if (millis > 0)
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	private Object route(HttpExchange exchange) throws IOException, StandInException {
+		URI uri = exchange.getRequestURI();
+		String path = uri.getPath();
+		String method = exchange.getRequestMethod();
+		String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+		if (override != null)
+			method = override;
+
+		if (!path.startsWith(servicePath))
+			throw new StandInException(404, "notFound", "unknown path " + path);
+		String resource = path.substring(servicePath.length());
+
+		if (resource.equals("query")) {
+			String sql = parameter(uri.getRawQuery(), "sql");
+			if (sql == null)
+				sql = parameter(new String(readAll(requestBody(exchange)), "UTF-8"), "sql");
+			if (sql == null)
+				throw new StandInException(400, "required", "sql parameter missing");
+			return sql(sql);
+		}
+
+		if (resource.equals("tables")) {
+			if (method.equals("GET"))
+				return list(uri.getRawQuery());
+			if (method.equals("POST"))
+				return insertTable(requestBody(exchange));
+		}
+
+		if (resource.startsWith("tables/") && resource.endsWith("/columns") && method.equals("GET"))
+			return columns(table(resource.substring("tables/".length(), resource.length() - "/columns".length())),
+					uri.getRawQuery());
+
+		if (resource.startsWith("tables/")) {
+			String tableId = resource.substring("tables/".length());
+			if (method.equals("PATCH") || method.equals("PUT"))
+				return patchTable(tableId, requestBody(exchange));
+			if (method.equals("DELETE")) {
+				deleteTable(tableId);
+				return null;
+			}
+			if (method.equals("GET"))
+				return table(tableId).toJson();
+		}
+
+		throw new StandInException(404, "notFound", method + " " + path + " not supported");
+	}
+
+	/**
+	 * the google client gzips request content by default
+	 */
+	private static InputStream requestBody(HttpExchange exchange) throws IOException {
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			return new GZIPInputStream(exchange.getRequestBody());
+		return exchange.getRequestBody();
+	}
+
+	private Map<String, Object> list(String query) throws IOException, StandInException {
+		List<StandInTable> all;
+		synchronized (tables) {
+			all = new ArrayList<StandInTable>(tables.values());
+		}
+
+		int pageSize = listPageSize > 0 ? listPageSize : Integer.MAX_VALUE;
+		int[] page = page(query, all.size(), pageSize, pageSize);
+		List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+		for (int i = page[0]; i < page[1]; i++) {
+			Map<String, Object> table = all.get(i).toJson();
+			if (!listColumns)
+				table.remove("columns");
+			items.add(table);
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("kind", "fusiontables#tableList");
+		result.put("items", items);
+		if (page[1] < all.size())
+			result.put("nextPageToken", String.valueOf(page[1]));
+		return result;
+	}
+
+	private Map<String, Object> columns(StandInTable t, String query) throws IOException, StandInException {
+		// five by default as the real service does
+		int[] page = page(query, t.columnNames.size(), 5, Integer.MAX_VALUE);
+		List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+		for (int i = page[0]; i < page[1]; i++)
+			items.add(t.columnJson(i));
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("kind", "fusiontables#columnList");
+		result.put("totalItems", t.columnNames.size());
+		result.put("items", items);
+		if (page[1] < t.columnNames.size())
+			result.put("nextPageToken", String.valueOf(page[1]));
+		return result;
+	}
+
+	/**
+	 * start and end of the page maxResults and pageToken of the request ask
+	 * for, page tokens are start indexes
+	 */
+	private static int[] page(String query, int count, int defaultSize, int maxSize)
+			throws IOException, StandInException {
+		try {
+			String token = parameter(query, "pageToken");
+			String maxResults = parameter(query, "maxResults");
+			int start = Math.min(token == null ? 0 : Integer.parseInt(token), count);
+			int size = Math.min(maxResults == null ? defaultSize : Integer.parseInt(maxResults), maxSize);
+			return new int[] { start, (int) Math.min((long) start + Math.max(size, 1), count) };
+		} catch (NumberFormatException e) {
+			throw new StandInException(400, "invalid", "invalid page: " + e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> insertTable(InputStream body) throws IOException {
+		Map<String, Object> json = mapper.readValue(body, Map.class);
+		StandInTable t = new StandInTable(newTableId(), (String) json.get("name"), (String) json.get("description"));
+		List<Map<String, Object>> columns = (List<Map<String, Object>>) json.get("columns");
+		if (columns != null)
+			for (Map<String, Object> c : columns) {
+				t.columnNames.add((String) c.get("name"));
+				t.columnTypes.add((String) c.get("type"));
+			}
+		tables.put(t.tableId, t);
+		return t.toJson();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> patchTable(String tableId, InputStream body) throws IOException, StandInException {
+		StandInTable t = table(tableId);
+		Map<String, Object> json = mapper.readValue(body, Map.class);
+		if (json.containsKey("name"))
+			t.name = (String) json.get("name");
+		if (json.containsKey("description"))
+			t.description = (String) json.get("description");
+		return t.toJson();
+	}
+
+	private void deleteTable(String tableId) throws StandInException {
+		if (tables.remove(tableId) == null)
+			throw new StandInException(404, "notFound", "table " + tableId + " not found");
+	}
+
+	private StandInTable table(String nameOrId) throws StandInException {
+		String key = unquote(nameOrId);
+		StandInTable t = tables.get(key);
+		if (t != null)
+			return t;
+		synchronized (tables) {
+			for (StandInTable candidate : tables.values())
+				if (key.equals(candidate.name))
+					return candidate;
+		}
+		throw new StandInException(404, "notFound", "table " + key + " not found");
+	}
+
+	private Map<String, Object> sql(String sql) throws StandInException {
+		String statement = sql.trim();
+		while (statement.endsWith(";"))
+			statement = statement.substring(0, statement.length() - 1).trim();
+
+		Matcher m = select.matcher(statement);
+		if (m.matches())
+			return select(m);
+
+		m = drop.matcher(statement);
+		if (m.matches()) {
+			deleteTable(table(m.group(1)).tableId);
+			return response(Collections.singletonList("result"),
+					Collections.singletonList(Collections.<Object> singletonList("success")));
+		}
+
+		List<List<Object>> rowIds = new ArrayList<List<Object>>();
+		for (String single : splitStatements(statement)) {
+			m = insert.matcher(single.trim());
+			if (!m.matches())
+				throw new StandInException(400, "badQueryCouldNotParse", "Invalid query: " + single);
+			rowIds.add(Collections.<Object> singletonList(String.valueOf(insert(m))));
+		}
+		return response(Collections.singletonList("rowid"), rowIds);
+	}
+
+	private Map<String, Object> select(Matcher m) throws StandInException {
+		StandInTable t = table(m.group(2));
+
+		List<Integer> selected = new ArrayList<Integer>();
+		List<String> names = new ArrayList<String>();
+		if (m.group(1).trim().equals("*")) {
+			for (int i = 0; i < t.columnNames.size(); i++)
+				selected.add(i);
+			names.addAll(t.columnNames);
+		} else
+			for (String c : m.group(1).split(",")) {
+				String name = unquote(c.trim());
+				selected.add(columnIndex(t, name));
+				names.add(name);
+			}
+
+		int whereColumn = m.group(3) == null ? -1 : columnIndex(t, unquote(m.group(3)));
+		String whereValue = m.group(4);
+		long offset = m.group(5) == null ? 0 : Long.parseLong(m.group(5));
+		long limit = m.group(6) == null ? Long.MAX_VALUE : Long.parseLong(m.group(6));
+
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		long matched = 0;
+		synchronized (t.rows) {
+			for (List<Object> row : t.rows) {
+				if (whereColumn >= 0 && !whereValue.equals(String.valueOf(row.get(whereColumn))))
+					continue;
+				if (matched++ < offset)
+					continue;
+				if (rows.size() >= limit)
+					break;
+				List<Object> out = new ArrayList<Object>(selected.size());
+				for (int i : selected)
+					out.add(row.get(i));
+				rows.add(out);
+			}
+		}
+		return response(names, rows);
+	}
+
+	private long insert(Matcher m) throws StandInException {
+		StandInTable t = table(m.group(1));
+		String[] columns = m.group(2).split(",");
+		List<String> values = parseValues(m.group(3));
+		if (values.size() != columns.length)
+			throw new StandInException(400, "badQueryCouldNotParse", "number of columns and values differ");
+
+		List<Object> row = new ArrayList<Object>(Collections.nCopies(t.columnNames.size(), (Object) ""));
+		for (int i = 0; i < columns.length; i++)
+			row.set(columnIndex(t, unquote(columns[i].trim())), values.get(i));
+		synchronized (t.rows) {
+			t.rows.add(row);
+			return t.rows.size();
+		}
+	}
+
+	private static int columnIndex(StandInTable t, String name) throws StandInException {
+		int result = t.columnNames.indexOf(name);
+		if (result < 0)
+			throw new StandInException(400, "badQueryCouldNotParse",
+					"Invalid query: Column `" + name + "' does not exist");
+		return result;
+	}
+
+	private static Map<String, Object> response(List<String> columns, List<List<Object>> rows) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("kind", "fusiontables#sqlresponse");
+		result.put("columns", columns);
+		result.put("rows", rows);
+		return result;
+	}
+
+	private static Map<String, Object> error(StandInException e) {
+		Map<String, Object> detail = new LinkedHashMap<String, Object>();
+		detail.put("domain", "fusiontables");
+		detail.put("reason", e.reason);
+		detail.put("message", e.getMessage());
+
+		Map<String, Object> error = new LinkedHashMap<String, Object>();
+		error.put("errors", Collections.singletonList(detail));
+		error.put("code", e.code);
+		error.put("message", e.getMessage());
+
+		return Collections.<String, Object> singletonMap("error", error);
+	}
+
+	private void respond(HttpExchange exchange, int code, Object body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(code == 200 ? 204 : code, -1);
+			return;
+		}
+		byte[] bytes = mapper.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+
+		if (acceptsGzip(exchange)) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(bytes);
+			gzip.close();
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+
+		bytesSent.addAndGet(bytes.length);
+		if (bytesPerSecond > 0)
+			sleep(bytes.length * 1000L / bytesPerSecond);
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * like Google's servers, compress only if the user agent says gzip too
+	 */
+	private static boolean acceptsGzip(HttpExchange exchange) {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		String userAgent = exchange.getRequestHeaders().getFirst("User-Agent");
+		return accept != null && accept.contains("gzip") && userAgent != null && userAgent.contains("gzip");
+	}
+
+	/**
+	 * parses a partial response selector like
+	 * items(tableId,columns(name,type)),nextPageToken into nested maps, a
+	 * selected field without sub selection maps to null. a/b is read as a(b).
+	 */
+	static Map<String, Object> parseFields(String fields) throws IOException {
+		int[] pos = { 0 };
+		Map<String, Object> result = parseFields(fields.replace(" ", ""), pos);
+		if (pos[0] != fields.replace(" ", "").length())
+			throw new IOException("invalid fields selector " + fields);
+		return result;
+	}
+
+	private static Map<String, Object> parseFields(String fields, int[] pos) throws IOException {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		while (pos[0] < fields.length()) {
+			int start = pos[0];
+			while (pos[0] < fields.length() && "(),/".indexOf(fields.charAt(pos[0])) < 0)
+				pos[0]++;
+			String name = fields.substring(start, pos[0]);
+			if (name.isEmpty())
+				throw new IOException("invalid fields selector " + fields);
+
+			Object sub = null;
+			if (pos[0] < fields.length() && fields.charAt(pos[0]) == '(') {
+				pos[0]++;
+				sub = parseFields(fields, pos);
+				if (pos[0] >= fields.length() || fields.charAt(pos[0]) != ')')
+					throw new IOException("invalid fields selector " + fields);
+				pos[0]++;
+			} else if (pos[0] < fields.length() && fields.charAt(pos[0]) == '/') {
+				pos[0]++;
+				int end = pos[0];
+				while (end < fields.length() && fields.charAt(end) != ',' && fields.charAt(end) != ')')
+					end++;
+				sub = parseFields(fields.substring(pos[0], end), new int[] { 0 });
+				pos[0] = end;
+			}
+			result.put(name, sub);
+
+			if (pos[0] < fields.length() && fields.charAt(pos[0]) == ',')
+				pos[0]++;
+			else
+				break;
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object select(Object json, Map<String, Object> fields) {
+		if (fields == null)
+			return json;
+
+		if (json instanceof List) {
+			List<Object> result = new ArrayList<Object>();
+			for (Object o : (List<Object>) json)
+				result.add(select(o, fields));
+			return result;
+		}
+
+		if (!(json instanceof Map))
+			return json;
+
+		Map<String, Object> map = (Map<String, Object>) json;
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> f : fields.entrySet())
+			if (map.containsKey(f.getKey()))
+				result.put(f.getKey(), select(map.get(f.getKey()), (Map<String, Object>) f.getValue()));
+		return result;
+	}
+
+	/**
+	 * splits at semicolons outside of single quotes
+	 */
+	private static List<String> splitStatements(String sql) {
+		List<String> result = new ArrayList<String>();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '\'')
+				quoted = !quoted;
+			else if (c == ';' && !quoted) {
+				result.add(sql.substring(start, i));
+				start = i + 1;
+			}
+		}
+		if (start < sql.length())
+			result.add(sql.substring(start));
+		return result;
+	}
+
+	/**
+	 * comma separated literals, quoted strings with backslash escapes or bare
+	 * numbers
+	 */
+	private static List<String> parseValues(String values) {
+		List<String> result = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < values.length(); i++) {
+			char c = values.charAt(i);
+			if (quoted && c == '\\' && i + 1 < values.length())
+				current.append(values.charAt(++i));
+			else if (c == '\'')
+				quoted = !quoted;
+			else if (c == ',' && !quoted) {
+				result.add(current.toString().trim());
+				current.setLength(0);
+			} else if (quoted || !Character.isWhitespace(c))
+				current.append(c);
+		}
+		result.add(current.toString().trim());
+		return result;
+	}
+
+	private static String unquote(String s) {
+		if (s.length() >= 2 && (s.startsWith("'") && s.endsWith("'") || s.startsWith("\"") && s.endsWith("\"")))
+			return s.substring(1, s.length() - 1);
+		return s;
+	}
+
+	private static String parameter(String query, String name) throws IOException {
+		if (query == null)
+			return null;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0 && pair.substring(0, eq).equals(name))
+				return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+		}
+		return null;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+		FusionTablesStandIn standIn = new FusionTablesStandIn(port, 16).start();
+		standIn.addGeneratedTable("generated", 10000, 5, 10);
+		System.out.println("Fusion Tables stand-in at " + standIn.getRootUrl());
+	}
+}
@@ -0,0 +1,505 @@
+package main.java.fusiontables.standin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.cg.common.core.SystemLogger;
+import org.cg.common.http.HttpStatus;
+import org.cg.ftc.shared.structures.QueryResult;
+import org.cg.ftc.shared.structures.TableInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import main.java.fusiontables.AuthInfo;
+import main.java.fusiontables.BatchWriter;
+import main.java.fusiontables.FusionTablesConnector;
+import main.java.fusiontables.Replica;
+import main.java.fusiontables.RequestScheduler;
+import main.java.fusiontables.TableInfoChanges;
+import main.java.fusiontables.TableInfoListener;
+import main.java.fusiontables.deserialize.GftErrorResult;
+import main.java.fusiontables.export.ExportFormat;
+import main.java.fusiontables.metrics.ConnectorListener;
+import main.java.fusiontables.metrics.Operation;
+import main.java.fusiontables.metrics.OperationEvent;
+import main.java.fusiontables.metrics.OperationMetrics;
+
+public class TestFusionTablesStandIn {
+
+	private FusionTablesStandIn standIn;
+	private FusionTablesConnector connector;
+
+	@Before
+	public void setup() throws IOException {
+		standIn = new FusionTablesStandIn(0, 4).start();
+		connector = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				TestFusionTablesStandIn.class);
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("test"));
+		connector.getRequestScheduler().setBackoff(1, 20);
+	}
+
+	@After
+	public void tearDown() {
+		standIn.stop();
+	}
+
+	@Test
+	public void testTableLifecycle() throws IOException {
+		final List<TableInfoChanges> changes = new ArrayList<TableInfoChanges>();
+		// a failing listener doesn't keep the changes from the others
+		connector.addTableInfoListener(new TableInfoListener() {
+			@Override
+			public void tablesChanged(TableInfoChanges c) {
+				throw new IllegalStateException("listener failed");
+			}
+		});
+		connector.addTableInfoListener(new TableInfoListener() {
+			@Override
+			public void tablesChanged(TableInfoChanges c) {
+				changes.add(c);
+			}
+		});
+
+		String tableId = connector.createSampleTable();
+
+		List<TableInfo> tables = connector.getTableInfo();
+		assertEquals(1, tables.size());
+		assertEquals(tableId, tables.get(0).id);
+		assertEquals(4, tables.get(0).columns.size());
+
+		connector.executeSql("INSERT INTO " + tableId + " (Text,Number) VALUES ('a', 1);INSERT INTO " + tableId
+				+ " (Text,Number) VALUES ('b\\'s', 2)");
+
+		QueryResult result = connector.fetch("SELECT Text, Number FROM " + tableId);
+		assertEquals(HttpStatus.SC_OK, result.status);
+		assertEquals(2, result.data.get().getRowCount());
+		assertEquals("b's", result.data.get().getValueAt(1, 0));
+		assertEquals("2", result.data.get().getValueAt(1, 1));
+
+		connector.renameTable(tableId, "renamed");
+		assertEquals("renamed", connector.getTableInfo().get(0).name);
+
+		connector.deleteTable(tableId);
+		assertTrue(connector.getTableInfo().isEmpty());
+
+		assertEquals(3, changes.size());
+		assertEquals(tableId, changes.get(0).added.get(0).id);
+		assertEquals("renamed", changes.get(1).modified.get(0).name);
+		assertEquals(tableId, changes.get(2).removed.get(0).id);
+	}
+
+	@Test
+	public void testExport() throws IOException {
+		String tableId = standIn.addGeneratedTable("generated", 5000, 3, 10);
+		QueryResult fetched = connector.fetch("SELECT * FROM " + tableId);
+
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		assertEquals(5000, connector.export("SELECT * FROM " + tableId, ExportFormat.CSV, Channels.newChannel(csv)));
+		String[] lines = csv.toString("UTF-8").split("\r\n");
+		assertEquals(5001, lines.length);
+		assertEquals(fetched.data.get().getColumnName(0), lines[0].split(",")[0]);
+
+		ByteArrayOutputStream columnar = new ByteArrayOutputStream();
+		assertEquals(5000,
+				connector.export("SELECT * FROM " + tableId, ExportFormat.COLUMNAR, Channels.newChannel(columnar)));
+		assertTrue(columnar.size() > 0);
+		assertEquals(2, connector.getMetrics().get(Operation.EXPORT).getCount());
+
+		try {
+			connector.export("DELETE FROM " + tableId, ExportFormat.CSV, Channels.newChannel(csv));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testBatchWriter() throws IOException {
+		String tableId = standIn.addTable("t", Arrays.asList("first name", "added"), Arrays.asList("STRING", "STRING"));
+		final List<Object[]> failed = new ArrayList<Object[]>();
+		BatchWriter writer = connector.createBatchWriter(60000).setMaxStatements(2)
+				.setFailureListener(new BatchWriter.FailureListener() {
+					@Override
+					public void rowsFailed(String id, String[] columns, List<Object[]> rows, IOException cause) {
+						failed.addAll(rows);
+					}
+				});
+
+		String[] columns = { "first name", "added" };
+		for (int i = 0; i < 3; i++)
+			writer.add(tableId, columns, new Object[] { "n" + i, new Date(86400000L * i + 3723000) });
+		writer.add("missing", columns, new Object[] { "x", null });
+
+		try {
+			writer.flush();
+			fail();
+		} catch (IOException e) {
+		}
+		assertEquals(3, writer.getRowsWritten());
+		assertEquals(1, writer.getRowsFailed());
+		assertEquals(1, failed.size());
+		assertEquals("x", failed.get(0)[0]);
+
+		QueryResult result = connector.fetch("SELECT * FROM " + tableId);
+		assertEquals(3, result.data.get().getRowCount());
+		assertEquals("n2", result.data.get().getValueAt(2, 0));
+		assertEquals("1970-01-03 01:02:03", result.data.get().getValueAt(2, 1));
+	}
+
+	@Test
+	public void testBatchWriterUrlLimit() throws IOException {
+		String tableId = standIn.addTable("t", Arrays.asList("Text"), Arrays.asList("STRING"));
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 200)
+			text.append("Grüße, ");
+
+		// about 600 chars URL encoded
+		String tooLong = Strings.repeat(text.toString(), 16);
+		try {
+			connector.executeSql("SELECT * FROM " + tableId + " WHERE Text = '" + tooLong + "'");
+			fail();
+		} catch (IOException e) {
+		}
+
+		// with the default limits every batch fits into the URL
+		BatchWriter writer = connector.createBatchWriter(60000);
+		for (int i = 0; i < 100; i++)
+			writer.add(tableId, new String[] { "Text" }, new Object[] { text.toString() + i });
+		writer.close();
+		assertEquals(0, writer.getRowsFailed());
+		assertEquals(100, writer.getRowsWritten());
+		assertTrue(writer.getRequests() > 1);
+		assertEquals(100, connector.fetch("SELECT * FROM " + tableId).data.get().getRowCount());
+	}
+
+	@Test
+	public void testReplica() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "ftc-replica-test-" + System.nanoTime());
+		String tableId = standIn.addTable("t", Arrays.asList("Text", "Number"), Arrays.asList("STRING", "NUMBER"));
+		connector.executeSql("INSERT INTO t (Text,Number) VALUES ('a', 1);INSERT INTO t (Text,Number) VALUES ('b', 2)");
+
+		Replica replica = connector.enableReplica(directory);
+		replica.mirror("t");
+		assertEquals(2, replica.getRowCount(tableId));
+
+		long requests = standIn.getRequestCount();
+		QueryResult result = connector.fetch("SELECT SUM(Number) FROM t WHERE Text > 'a'");
+		assertEquals(HttpStatus.SC_OK, result.status);
+		assertEquals("2", result.data.get().getValueAt(0, 0));
+		assertEquals(requests, standIn.getRequestCount());
+		assertEquals(1, replica.getLocalQueries());
+
+		// own writes make queries go remote until the next sync, which only
+		// fetches the new rows
+		connector.executeSql("INSERT INTO " + tableId + " (Text,Number) VALUES ('c', 3)");
+		assertEquals(3, connector.fetch("SELECT * FROM t").data.get().getRowCount());
+		assertEquals(1, replica.getRemoteQueries());
+		replica.sync();
+		assertEquals(3, replica.getRowCount(tableId));
+		assertEquals("6", connector.fetch("SELECT SUM(Number) FROM t").data.get().getValueAt(0, 0));
+		assertEquals(2, replica.getLocalQueries());
+
+		// the mirror survives on disk
+		connector.disableReplica();
+		FusionTablesConnector other = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				TestFusionTablesStandIn.class);
+		other.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("test"));
+		Replica reopened = other.enableReplica(directory);
+		reopened.mirror(tableId);
+		assertEquals(3, reopened.getRowCount(tableId));
+
+		reopened.unmirror(tableId);
+		assertEquals(0, directory.listFiles().length);
+		directory.delete();
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		String tableId = standIn.addGeneratedTable("generated", 100, 3, 10);
+		String query = "SELECT * FROM " + tableId;
+
+		// one pool thread, a call only runs once the one before let go of it
+		FusionTablesConnector single = new FusionTablesConnector(new SystemLogger(), Optional.<AuthInfo> absent(),
+				TestFusionTablesStandIn.class, 1);
+		single.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("test"));
+
+		assertEquals(1, single.getTableInfoAsync().get().size());
+		assertTrue(single.executeSqlAsync(query).get().contains("rows"));
+		assertEquals(100, single.fetchAsync(query).get().data.get().getRowCount());
+
+		standIn.setLatency(5000, 0);
+		long start = System.currentTimeMillis();
+		ListenableFuture<QueryResult> late = single.fetchAsync(query, 200, TimeUnit.MILLISECONDS);
+		try {
+			late.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		ListenableFuture<String> cancelled = single.executeSqlAsync(query);
+		Thread.sleep(200);
+		assertTrue(cancelled.cancel(true));
+
+		standIn.setLatency(0, 0);
+		assertEquals(100, single.fetchAsync(query, 2, TimeUnit.SECONDS).get().data.get().getRowCount());
+		assertTrue(System.currentTimeMillis() - start < 2000);
+	}
+
+	@Test
+	public void testReadAfterWrite() throws Exception {
+		String tableId = standIn.addGeneratedTable("generated", 2000, 5, 10);
+		String query = "SELECT * FROM " + tableId;
+		assertEquals(1, connector.getTableInfo().size());
+
+		ListenableFuture<QueryResult> slow = readDuringWrite(tableId);
+		assertEquals(2001, connector.fetch(query).data.get().getRowCount());
+		assertEquals(2000, slow.get().data.get().getRowCount());
+	}
+
+	@Test
+	public void testConnectionChange() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "ftc-replica-test-" + System.nanoTime());
+		standIn.addTable("t", Arrays.asList("Text"), Arrays.asList("STRING"));
+		standIn.addTable("u", Arrays.asList("Text"), Arrays.asList("STRING"));
+		connector.enableResultCache(100000000);
+		Replica replica = connector.enableReplica(directory);
+		replica.mirror("u");
+		assertEquals(HttpStatus.SC_OK, connector.fetch("SELECT * FROM t").status);
+		assertEquals(HttpStatus.SC_OK, connector.fetch("SELECT * FROM u").status);
+
+		// neither cached results nor mirrors of the previous account answer
+		connector.reset(Optional.<AuthInfo> absent());
+		assertFalse(connector.fetch("SELECT * FROM t").status == HttpStatus.SC_OK);
+		assertFalse(connector.fetch("SELECT * FROM u").status == HttpStatus.SC_OK);
+
+		connector.connectTo(standIn.getRootUrl(), FusionTablesConnector.accessToken("test"));
+		long local = replica.getLocalQueries();
+		replica.sync();
+		assertEquals(HttpStatus.SC_OK, connector.fetch("SELECT * FROM u").status);
+		assertEquals(local + 1, replica.getLocalQueries());
+
+		connector.disableReplica();
+		replica.unmirror("u");
+		directory.delete();
+	}
+
+	@Test
+	public void testCacheAfterWrite() throws Exception {
+		String tableId = standIn.addGeneratedTable("generated", 2000, 5, 10);
+		String query = "SELECT * FROM " + tableId;
+		assertEquals(1, connector.getTableInfo().size());
+		connector.enableResultCache(100000000);
+
+		// the read from before the write must not end up in the cache
+		ListenableFuture<QueryResult> slow = readDuringWrite(tableId);
+		assertEquals(2000, slow.get().data.get().getRowCount());
+		assertEquals(2001, connector.fetch(query).data.get().getRowCount());
+		assertEquals(2001, connector.fetch(query).data.get().getRowCount());
+		assertEquals(1, connector.getResultCacheStats().hitCount());
+	}
+
+	/**
+	 * a read of the table that is answered right away but takes a while to
+	 * arrive, and an insert done while it is in flight
+	 */
+	private ListenableFuture<QueryResult> readDuringWrite(String tableId) throws Exception {
+		standIn.setBandwidth(20000);
+		long requests = standIn.getRequestCount();
+		ListenableFuture<QueryResult> slow = connector.fetchAsync("SELECT * FROM " + tableId);
+		while (standIn.getRequestCount() == requests)
+			Thread.sleep(10);
+		Thread.sleep(100);
+
+		connector.executeSql("INSERT INTO " + tableId + " (col0) VALUES ('new')");
+		assertFalse(slow.isDone());
+		standIn.setBandwidth(0);
+		return slow;
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		String tableId = standIn.addGeneratedTable("generated", 100, 3, 10);
+		assertEquals(1, connector.getTableInfo().size());
+		standIn.setLatency(300, 0);
+
+		long requests = standIn.getRequestCount();
+		List<ListenableFuture<QueryResult>> results = new ArrayList<ListenableFuture<QueryResult>>();
+		for (int i = 0; i < 8; i++)
+			results.add(connector.fetchAsync("SELECT *  FROM " + tableId + (i % 2 == 0 ? "" : ";")));
+		for (ListenableFuture<QueryResult> r : results)
+			assertEquals(100, r.get().data.get().getRowCount());
+		assertEquals(requests + 1, standIn.getRequestCount());
+
+		connector.invalidateTableInfo();
+		List<ListenableFuture<List<TableInfo>>> tables = new ArrayList<ListenableFuture<List<TableInfo>>>();
+		for (int i = 0; i < 8; i++)
+			tables.add(connector.getTableInfoAsync());
+		for (ListenableFuture<List<TableInfo>> t : tables)
+			assertEquals(1, t.get().size());
+		assertEquals(requests + 2, standIn.getRequestCount());
+		assertEquals(14, connector.getCoalescedRequests());
+	}
+
+	@Test
+	public void testTablePages() {
+		List<String> names = Arrays.asList("a", "b", "c", "d", "e", "f", "g");
+		List<String> types = Arrays.asList("STRING", "NUMBER", "STRING", "STRING", "STRING", "STRING", "DATETIME");
+		for (int i = 0; i < 10; i++)
+			standIn.addTable("t" + i, names, types);
+		standIn.setListPageSize(3).setListColumns(false);
+
+		long requests = standIn.getRequestCount();
+		List<TableInfo> tables = connector.getTableInfo();
+		assertEquals(10, tables.size());
+		for (int i = 0; i < 10; i++) {
+			TableInfo t = tables.get(i);
+			assertEquals("t" + i, t.name);
+			assertEquals(7, t.columns.size());
+			assertEquals("b", t.columns.get(1).name);
+			assertEquals("DATETIME", t.columns.get(6).type);
+		}
+		// 4 pages of tables, 2 pages of columns per table
+		assertEquals(requests + 4 + 20, standIn.getRequestCount());
+
+		// the columns come with the list, no more per table requests
+		standIn.setListColumns(true);
+		connector.invalidateTableInfo();
+		assertEquals(10, connector.getTableInfo().size());
+		assertEquals(requests + 4 + 20 + 4, standIn.getRequestCount());
+	}
+
+	@Test
+	public void testErrors() {
+		QueryResult result = connector.fetch("SELECT daatum FROM nowhere");
+		assertEquals(HttpStatus.SC_NOT_FOUND, result.status);
+		assertFalse(result.data.isPresent());
+		assertEquals("notFound", ((GftErrorResult) result).reason.get());
+		assertEquals("table nowhere not found", result.message.get());
+
+		standIn.setErrorRate(1);
+		result = connector.fetch("SELECT * FROM " + standIn.addTable("t", Arrays.asList("a"), Arrays.asList("STRING")));
+		assertFalse(result.status == HttpStatus.SC_OK);
+		assertEquals(RequestScheduler.DEFAULT_MAX_RETRIES, connector.getRequestScheduler().getRetries());
+	}
+
+	@Test
+	public void testRetries() throws IOException {
+		String tableId = standIn.addTable("t", Arrays.asList("a"), Arrays.asList("STRING"));
+		connector.getTableInfo();
+
+		// reads are retried on 5xx, writes are not
+		standIn.setErrorRate(0.2);
+		for (int i = 0; i < 10; i++)
+			assertEquals(HttpStatus.SC_OK, connector.fetch("SELECT * FROM " + tableId).status);
+		standIn.setErrorRate(0);
+
+		// rate limited requests are retried and slow the scheduler down
+		connector.getRequestScheduler().setBackoff(200, 1000).setMaxRetries(10);
+		standIn.setQuota(2);
+		for (int i = 0; i < 5; i++)
+			connector.executeSql("INSERT INTO " + tableId + " (a) VALUES ('" + i + "')");
+		standIn.setQuota(0);
+
+		RequestScheduler scheduler = connector.getRequestScheduler();
+		assertTrue(scheduler.getRetries() > 0);
+		assertTrue(scheduler.getRateLimitedResponses() > 0);
+		// without configured rate, the limiter took over
+		assertTrue(scheduler.getCurrentRate() > 0);
+		assertEquals(5, connector.fetch("SELECT * FROM " + tableId).data.get().getRowCount());
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		final List<OperationEvent> events = new ArrayList<OperationEvent>();
+		connector.addListener(new ConnectorListener() {
+			@Override
+			public void operationCompleted(OperationEvent event) {
+				events.add(event);
+			}
+		});
+
+		String tableId = standIn.addGeneratedTable("generated", 100, 3, 10);
+		connector.fetch("SELECT * FROM " + tableId);
+		connector.fetch("SELECT * FROM nowhere");
+
+		OperationMetrics fetch = connector.getMetrics().get(Operation.FETCH);
+		assertEquals(2, fetch.getCount());
+		assertEquals(1, fetch.getErrorCount());
+		assertEquals(Long.valueOf(1), fetch.getErrorCounts().get(HttpStatus.SC_NOT_FOUND));
+		assertEquals(100, fetch.getRows());
+		assertTrue(fetch.getResponseBytes() > 100 * 3 * 10);
+		assertEquals(1, connector.getMetrics().get(Operation.GET_TABLE_INFO).getCount());
+
+		assertEquals(3, events.size());
+		assertEquals(Operation.GET_TABLE_INFO, events.get(0).operation);
+		assertTrue(events.get(1).totalNanos >= events.get(1).wireNanos);
+
+		// a failing listener doesn't fail the operation, the buffered fetch
+		// reports one event with the same body bytes as the streamed one
+		connector.addListener(new ConnectorListener() {
+			@Override
+			public void operationCompleted(OperationEvent event) {
+				throw new IllegalStateException();
+			}
+		});
+		connector.setStreamingFetch(false);
+		assertEquals(100, connector.fetch("SELECT * FROM " + tableId).data.get().getRowCount());
+		assertEquals(4, events.size());
+		assertEquals(Operation.FETCH, events.get(3).operation);
+		assertEquals(events.get(1).responseBytes, events.get(3).responseBytes);
+	}
+
+	@Test
+	public void testCompactResponses() {
+		for (int i = 0; i < 20; i++)
+			standIn.addGeneratedTable("generated" + i, 200, 5, 10);
+		String query = "SELECT * FROM " + connector.getTableInfo().get(0).id;
+
+		connector.setCompactResponses(false);
+		long before = standIn.getBytesSent();
+		connector.invalidateTableInfo();
+		List<TableInfo> full = connector.getTableInfo();
+		long fullListBytes = standIn.getBytesSent() - before;
+		before = standIn.getBytesSent();
+		QueryResult fullResult = connector.fetch(query);
+		long fullQueryBytes = standIn.getBytesSent() - before;
+
+		connector.setCompactResponses(true);
+		before = standIn.getBytesSent();
+		connector.invalidateTableInfo();
+		List<TableInfo> compact = connector.getTableInfo();
+		long compactListBytes = standIn.getBytesSent() - before;
+		before = standIn.getBytesSent();
+		QueryResult compactResult = connector.fetch(query);
+		long compactQueryBytes = standIn.getBytesSent() - before;
+
+		assertEquals(full.size(), compact.size());
+		for (int i = 0; i < full.size(); i++) {
+			assertEquals(full.get(i).id, compact.get(i).id);
+			assertEquals(full.get(i).name, compact.get(i).name);
+			assertEquals(full.get(i).columns.size(), compact.get(i).columns.size());
+			assertEquals(full.get(i).columns.get(0).type, compact.get(i).columns.get(0).type);
+		}
+		assertEquals(fullResult.data.get().getRowCount(), compactResult.data.get().getRowCount());
+		assertEquals(fullResult.data.get().getValueAt(199, 4), compactResult.data.get().getValueAt(199, 4));
+
+		assertTrue(compactListBytes * 4 < fullListBytes);
+		assertTrue(compactQueryBytes * 4 < fullQueryBytes);
+	}
+}